@@ -1,15 +1,25 @@
 package se325.flights.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import se325.flights.CabinClass;
+
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A DTO for a booking request for some number of seats on a particular flight.
+ * <p>
+ * Either the requested seats are given explicitly, or (if there are no requested seats) the number of seats is given,
+ * optionally with a cabin class, in which case the server picks the seats. If keepTogether is set, the server will
+ * only pick seats which are adjacent to each other.
  */
 public class BookingRequestDTO {
 
     private long flightId;
     private List<String> requestedSeats = new ArrayList<>();
+    private int numSeats;
+    private CabinClass cabinClass;
+    private boolean keepTogether;
 
     public BookingRequestDTO() {
 
@@ -20,6 +30,13 @@ public class BookingRequestDTO {
         this.requestedSeats.addAll(List.of(seats));
     }
 
+    public BookingRequestDTO(long flightId, CabinClass cabinClass, int numSeats, boolean keepTogether) {
+        this.flightId = flightId;
+        this.cabinClass = cabinClass;
+        this.numSeats = numSeats;
+        this.keepTogether = keepTogether;
+    }
+
     public long getFlightId() {
         return flightId;
     }
@@ -35,4 +52,36 @@ public class BookingRequestDTO {
     public void setRequestedSeats(List<String> requestedSeats) {
         this.requestedSeats = requestedSeats;
     }
+
+    public int getNumSeats() {
+        return numSeats;
+    }
+
+    public void setNumSeats(int numSeats) {
+        this.numSeats = numSeats;
+    }
+
+    public CabinClass getCabinClass() {
+        return cabinClass;
+    }
+
+    public void setCabinClass(CabinClass cabinClass) {
+        this.cabinClass = cabinClass;
+    }
+
+    public boolean isKeepTogether() {
+        return keepTogether;
+    }
+
+    public void setKeepTogether(boolean keepTogether) {
+        this.keepTogether = keepTogether;
+    }
+
+    /**
+     * Gets a value indicating whether the server should pick the seats for this request.
+     */
+    @JsonIgnore
+    public boolean isSeatAssignmentRequested() {
+        return (requestedSeats == null || requestedSeats.isEmpty()) && numSeats > 0;
+    }
 }
@@ -0,0 +1,58 @@
+package se325.flights.dto;
+
+import java.net.URI;
+
+/**
+ * A DTO for the outcome of a single booking request within a batch. The status is the HTTP status code the request
+ * would have received if it had been made on its own: 201 if the booking was made (in which case location points to
+ * the new booking), 404 if the flight doesn't exist, or 409 if the seats couldn't be booked (with the reason given).
+ */
+public class BookingResultDTO {
+
+    private long flightId;
+    private int status;
+    private URI location;
+    private String reason;
+
+    public BookingResultDTO() {
+    }
+
+    public BookingResultDTO(long flightId, int status, URI location, String reason) {
+        this.flightId = flightId;
+        this.status = status;
+        this.location = location;
+        this.reason = reason;
+    }
+
+    public long getFlightId() {
+        return flightId;
+    }
+
+    public void setFlightId(long flightId) {
+        this.flightId = flightId;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public URI getLocation() {
+        return location;
+    }
+
+    public void setLocation(URI location) {
+        this.location = location;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+}
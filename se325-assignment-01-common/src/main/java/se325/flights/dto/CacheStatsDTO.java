@@ -0,0 +1,55 @@
+package se325.flights.dto;
+
+/**
+ * A DTO for statistics about a server-side cache: the number of lookups which were found (hits) or not found (misses),
+ * the number of entries evicted because the cache was full or they had expired, and the number of entries it holds.
+ */
+public class CacheStatsDTO {
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private int size;
+
+    public CacheStatsDTO() {
+    }
+
+    public CacheStatsDTO(long hits, long misses, long evictions, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public void setMisses(long misses) {
+        this.misses = misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public void setEvictions(long evictions) {
+        this.evictions = evictions;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+}
@@ -0,0 +1,65 @@
+package se325.flights.dto;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import se325.flights.CabinClass;
+import se325.flights.jackson.LocalDateDeserializer;
+import se325.flights.jackson.LocalDateSerializer;
+
+import java.time.LocalDate;
+
+/**
+ * A DTO for one day of a fare calendar: the lowest price of a seat on a flight departing on that date (in the origin's
+ * timezone) which still has unbooked seats, along with that flight's id and the seat's cabin class.
+ */
+public class FareCalendarDayDTO {
+
+    private LocalDate date;
+    private int price;
+    private CabinClass cabinClass;
+    private Long flightId;
+
+    public FareCalendarDayDTO() {
+    }
+
+    public FareCalendarDayDTO(LocalDate date, int price, CabinClass cabinClass, Long flightId) {
+        this.date = date;
+        this.price = price;
+        this.cabinClass = cabinClass;
+        this.flightId = flightId;
+    }
+
+    @JsonSerialize(using = LocalDateSerializer.class)
+    @JsonDeserialize(using = LocalDateDeserializer.class)
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public void setDate(LocalDate date) {
+        this.date = date;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public void setPrice(int price) {
+        this.price = price;
+    }
+
+    public CabinClass getCabinClass() {
+        return cabinClass;
+    }
+
+    public void setCabinClass(CabinClass cabinClass) {
+        this.cabinClass = cabinClass;
+    }
+
+    public Long getFlightId() {
+        return flightId;
+    }
+
+    public void setFlightId(Long flightId) {
+        this.flightId = flightId;
+    }
+}
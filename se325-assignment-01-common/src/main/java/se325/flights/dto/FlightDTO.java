@@ -1,15 +1,20 @@
 package se325.flights.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import se325.flights.CabinClass;
 import se325.flights.jackson.ZonedDateTimeDeserializer;
 import se325.flights.jackson.ZonedDateTimeSerializer;
 
 import java.time.ZonedDateTime;
+import java.util.Map;
 import java.util.Objects;
 
 /**
- * A DTO with info about a flight, including where (and when) the flight arrives / departs.
+ * A DTO with info about a flight, including where (and when) the flight arrives / departs. Optionally also includes the
+ * number of unbooked seats of each cabin class, which isn't considered by {@link #equals(Object)} as it changes with
+ * every booking.
  */
 public class FlightDTO {
 
@@ -24,6 +29,8 @@ public class FlightDTO {
 
     private String aircraftName;
 
+    private Map<CabinClass, Integer> seatsRemaining;
+
     public FlightDTO() {
     }
 
@@ -97,6 +104,18 @@ public class FlightDTO {
         this.destination = destination;
     }
 
+    /**
+     * Gets the number of unbooked seats of each cabin class on the flight, or null if they weren't requested
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Map<CabinClass, Integer> getSeatsRemaining() {
+        return seatsRemaining;
+    }
+
+    public void setSeatsRemaining(Map<CabinClass, Integer> seatsRemaining) {
+        this.seatsRemaining = seatsRemaining;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
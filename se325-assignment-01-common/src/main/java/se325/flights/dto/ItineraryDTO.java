@@ -0,0 +1,38 @@
+package se325.flights.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DTO for a sequence of connecting flights from an origin to a destination, and the total time in minutes from the
+ * first flight's departure to the last flight's arrival (including time spent waiting for connections).
+ */
+public class ItineraryDTO {
+
+    private List<FlightDTO> flights;
+    private long durationMinutes;
+
+    public ItineraryDTO() {
+    }
+
+    public ItineraryDTO(List<FlightDTO> flights, long durationMinutes) {
+        this.flights = new ArrayList<>(flights);
+        this.durationMinutes = durationMinutes;
+    }
+
+    public List<FlightDTO> getFlights() {
+        return flights;
+    }
+
+    public void setFlights(List<FlightDTO> flights) {
+        this.flights = flights;
+    }
+
+    public long getDurationMinutes() {
+        return durationMinutes;
+    }
+
+    public void setDurationMinutes(long durationMinutes) {
+        this.durationMinutes = durationMinutes;
+    }
+}
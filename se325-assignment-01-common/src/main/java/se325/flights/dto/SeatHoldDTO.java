@@ -0,0 +1,66 @@
+package se325.flights.dto;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import se325.flights.jackson.ZonedDateTimeDeserializer;
+import se325.flights.jackson.ZonedDateTimeSerializer;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DTO with info about a temporary hold on some seats of a flight. The seats can't be booked by anyone else until the
+ * hold is confirmed (turning it into a booking), released, or it expires.
+ */
+public class SeatHoldDTO {
+
+    private String id;
+    private long flightId;
+    private List<String> seats;
+    private ZonedDateTime expiresAt;
+
+    public SeatHoldDTO() {
+    }
+
+    public SeatHoldDTO(String id, long flightId, List<String> seats, ZonedDateTime expiresAt) {
+        this.id = id;
+        this.flightId = flightId;
+        this.seats = new ArrayList<>(seats);
+        this.expiresAt = expiresAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getFlightId() {
+        return flightId;
+    }
+
+    public void setFlightId(long flightId) {
+        this.flightId = flightId;
+    }
+
+    public List<String> getSeats() {
+        return seats;
+    }
+
+    public void setSeats(List<String> seats) {
+        this.seats = seats;
+    }
+
+    @JsonSerialize(using = ZonedDateTimeSerializer.class)
+    @JsonDeserialize(using = ZonedDateTimeDeserializer.class)
+    public ZonedDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(ZonedDateTime expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
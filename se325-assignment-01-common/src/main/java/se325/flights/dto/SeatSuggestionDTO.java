@@ -0,0 +1,38 @@
+package se325.flights.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DTO for a group of seats on a flight which are currently available, and which the server suggests booking
+ * together.
+ */
+public class SeatSuggestionDTO {
+
+    private List<String> seats;
+    private int totalCost;
+
+    public SeatSuggestionDTO() {
+    }
+
+    public SeatSuggestionDTO(List<String> seats, int totalCost) {
+        this.seats = new ArrayList<>(seats);
+        this.totalCost = totalCost;
+    }
+
+    public List<String> getSeats() {
+        return seats;
+    }
+
+    public void setSeats(List<String> seats) {
+        this.seats = seats;
+    }
+
+    public int getTotalCost() {
+        return totalCost;
+    }
+
+    public void setTotalCost(int totalCost) {
+        this.totalCost = totalCost;
+    }
+}
@@ -0,0 +1,28 @@
+package se325.flights.jackson;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+public class LocalDateDeserializer extends StdDeserializer<LocalDate> {
+
+    private static DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    public LocalDateDeserializer() {
+        this(null);
+    }
+
+    public LocalDateDeserializer(Class<LocalDate> clazz) {
+        super(clazz);
+    }
+
+    @Override
+    public LocalDate deserialize(JsonParser jsonParser, DeserializationContext deserializationContext)
+            throws IOException {
+        return LocalDate.parse(jsonParser.getText(), FORMATTER);
+    }
+}
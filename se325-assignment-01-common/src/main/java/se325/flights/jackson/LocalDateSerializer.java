@@ -0,0 +1,28 @@
+package se325.flights.jackson;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+public class LocalDateSerializer extends StdSerializer<LocalDate> {
+
+    private static DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    public LocalDateSerializer() {
+        this(null);
+    }
+
+    public LocalDateSerializer(Class<LocalDate> clazz) {
+        super(clazz);
+    }
+
+    @Override
+    public void serialize(LocalDate date, JsonGenerator jsonGenerator, SerializerProvider serializerProvider)
+            throws IOException {
+        jsonGenerator.writeString(date.format(FORMATTER));
+    }
+}
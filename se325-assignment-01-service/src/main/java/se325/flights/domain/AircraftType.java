@@ -21,6 +21,9 @@ public class AircraftType {
     @ElementCollection(fetch = FetchType.EAGER)
     private Set<SeatingZone> seatingZones = new HashSet<>();
 
+    @Transient
+    private SeatLayout seatLayout;
+
     public Long getId() {
         return id;
     }
@@ -41,6 +44,19 @@ public class AircraftType {
         return seatingZones;
     }
 
+    /**
+     * Gets the {@link SeatLayout} of this aircraft, which maps each of its seats to a unique ordinal. The layout is
+     * built from this aircraft's seating zones on first use, and cached for the lifetime of this instance.
+     *
+     * @return this aircraft's seat layout
+     */
+    public SeatLayout getSeatLayout() {
+        if (seatLayout == null) {
+            seatLayout = new SeatLayout(seatingZones);
+        }
+        return seatLayout;
+    }
+
     /**
      * Gets the total number of seats on this aircraft.
      *
@@ -17,14 +17,29 @@ import java.util.stream.Collectors;
  * requests result in {@link FlightBooking} instances being created. The price of a particular booking depends on the
  * {@link CabinClass} of the seats being booked (determined by the {@link AircraftType} of a flight), and the
  * price-per-cabin-class for a particular cabin class on a flight.
+ * <p>
+ * Which seats are booked is also tracked by a seat occupancy bitmap stored on the flight's own row, with one bit per
+ * seat ordinal in the aircraft's {@link SeatLayout}. Availability checks, remaining-seat counts and booked seat lists
+ * use this bitmap, so they never need to load the flight's bookings and their seats.
+ * <p>
+ * Flights are indexed by route and departure time, so that searching a route for the flights departing within a date
+ * range only reads the flights in that range.
  */
 @Entity
+@Table(indexes = @Index(name = "IDX_FLIGHT_ROUTE_DEPARTURE", columnList = "origin_id, destination_id, departureTime"))
 public class Flight {
 
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
+    /**
+     * Incremented whenever this flight's row changes (e.g. when a booking changes its seat occupancy), allowing
+     * concurrent changes to be detected without holding a lock.
+     */
+    @Version
+    private long version;
+
     private String name;
     private ZonedDateTime departureTime;
     private ZonedDateTime arrivalTime;
@@ -43,6 +58,14 @@ public class Flight {
     @ElementCollection(fetch = FetchType.EAGER)
     private Set<SeatPricing> seatPricings = new HashSet<>();
 
+    /**
+     * One bit per seat ordinal (see {@link SeatLayout}), set if that seat is booked. Stored in
+     * {@link BitSet#toByteArray()} format. Null is equivalent to an empty bitmap (e.g. for flights inserted directly
+     * into the database).
+     */
+    @Column(length = 1024)
+    private byte[] seatOccupancy;
+
     public Long getId() {
         return id;
     }
@@ -51,6 +74,10 @@ public class Flight {
         this.id = id;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
     public String getName() {
         return name;
     }
@@ -90,6 +117,9 @@ public class Flight {
     /**
      * Gets a list of all {@link Seat}s which have already been booked on this flight. Accumulates all the booked seats
      * on all of this flight's {@link FlightBooking}s.
+     * <p>
+     * Note that this loads every booking on this flight, and every seat in those bookings. Prefer
+     * {@link #getBookedSeatCodes()} or {@link #isSeatBooked(String)} where the seat prices aren't required.
      *
      * @return a list of {@link Seat} instances
      */
@@ -102,6 +132,48 @@ public class Flight {
         return Collections.unmodifiableList(seats);
     }
 
+    /**
+     * Gets the codes of all seats which have already been booked on this flight, in seat ordinal order (see
+     * {@link SeatLayout}). Read directly from this flight's seat occupancy bitmap.
+     *
+     * @return a list of seat codes
+     */
+    public List<String> getBookedSeatCodes() {
+        SeatLayout layout = aircraftType.getSeatLayout();
+        BitSet occupancy = getSeatOccupancy();
+
+        List<String> seatCodes = new ArrayList<>(occupancy.cardinality());
+        for (int i = occupancy.nextSetBit(0); i >= 0; i = occupancy.nextSetBit(i + 1)) {
+            seatCodes.add(layout.getSeatCode(i));
+        }
+        return seatCodes;
+    }
+
+    /**
+     * Gets a value indicating whether the seat with the given code has been booked on this flight.
+     *
+     * @param seatCode the seat code to check
+     * @return true if the seat is booked, false if it's unbooked or isn't a valid seat on this flight
+     */
+    public boolean isSeatBooked(String seatCode) {
+        int ordinal = aircraftType.getSeatLayout().getOrdinal(seatCode);
+        return ordinal >= 0 && getSeatOccupancy().get(ordinal);
+    }
+
+    /**
+     * Gets a copy of this flight's seat occupancy bitmap. Bit i is set if the seat with ordinal i (see
+     * {@link SeatLayout}) is booked. Changes to the returned instance do not affect this flight.
+     *
+     * @return the seat occupancy bitmap
+     */
+    public BitSet getSeatOccupancy() {
+        return seatOccupancy == null ? new BitSet() : BitSet.valueOf(seatOccupancy);
+    }
+
+    private void setSeatOccupancy(BitSet occupancy) {
+        this.seatOccupancy = occupancy.toByteArray();
+    }
+
     /**
      * Gets the total number of seats on this flight. Obtained directly from the {@link AircraftType#getTotalNumSeats()}
      * method.
@@ -118,7 +190,57 @@ public class Flight {
      * @return the number of unbooked seats on this flight
      */
     public int getNumSeatsRemaining() {
-        return getTotalNumSeats() - getBookedSeats().size();
+        return getTotalNumSeats() - getSeatOccupancy().cardinality();
+    }
+
+    /**
+     * Gets the number of seats remaining (i.e. unbooked seats) of the given cabin class on this flight. If the given
+     * cabin class is null, returns the number of unbooked seats of all classes.
+     *
+     * @param cabinClass the cabin class to check
+     * @return the number of unbooked seats of that cabin class on this flight
+     */
+    public int getNumSeatsRemaining(CabinClass cabinClass) {
+        return getNumSeatsAvailable(cabinClass, new BitSet());
+    }
+
+    /**
+     * Gets the number of seats remaining (i.e. unbooked seats) of each cabin class on this flight, in a single pass
+     * over this flight's seat occupancy bitmap. Like the bitmap itself, this never loads the flight's bookings.
+     *
+     * @return the number of unbooked seats of each cabin class which this flight's aircraft has
+     */
+    public Map<CabinClass, Integer> getNumSeatsRemainingByCabinClass() {
+        SeatLayout layout = aircraftType.getSeatLayout();
+        BitSet occupancy = getSeatOccupancy();
+        Map<CabinClass, Integer> remaining = new EnumMap<>(CabinClass.class);
+        List<SeatingZone> zones = layout.getZones();
+        for (int i = 0; i < zones.size(); i++) {
+            SeatingZone zone = zones.get(i);
+            int from = layout.getZoneOffset(i);
+            int to = from + zone.getNumSeatsInZone();
+            remaining.merge(zone.getCabinClass(), zone.getNumSeatsInZone() - occupancy.get(from, to).cardinality(),
+                    Integer::sum);
+        }
+        return remaining;
+    }
+
+    /**
+     * Gets the number of seats of the given cabin class on this flight which are neither booked nor held. If the given
+     * cabin class is null, returns the number of such seats of all classes.
+     *
+     * @param cabinClass the cabin class to check
+     * @param heldSeats  the ordinals of seats which are currently held
+     * @return the number of available seats of that cabin class on this flight
+     */
+    public int getNumSeatsAvailable(CabinClass cabinClass, BitSet heldSeats) {
+        BitSet unavailable = getSeatOccupancy();
+        unavailable.or(heldSeats);
+        if (cabinClass == null) {
+            return getTotalNumSeats() - unavailable.cardinality();
+        }
+
+        return aircraftType.getSeatLayout().getNumSeatsAvailable(cabinClass, unavailable);
     }
 
     /**
@@ -136,6 +258,25 @@ public class Flight {
                 .orElse(0);
     }
 
+    /**
+     * Gets the total price of the given seats on this flight. Invalid seat codes are ignored.
+     *
+     * @param seatCodes the seat codes to price
+     * @return the sum of the prices of those seats
+     */
+    public int getPriceFor(Collection<String> seatCodes) {
+        SeatLayout layout = aircraftType.getSeatLayout();
+        Map<CabinClass, Integer> pricings = getSeatPricings();
+        int total = 0;
+        for (String seatCode : seatCodes) {
+            int ordinal = layout.getOrdinal(seatCode);
+            if (ordinal >= 0) {
+                total += pricings.getOrDefault(layout.getCabinClass(ordinal), 0);
+            }
+        }
+        return total;
+    }
+
     /**
      * Gets all seat pricings for this flight. If there's not an entry in this map for a particular {@link CabinClass},
      * then it is assumed that there are no seats of that class on this flight.
@@ -159,23 +300,112 @@ public class Flight {
      *                          if any of the requested seats are invalid.
      */
     public FlightBooking makeBooking(User user, List<String> seatCodes) throws BookingException {
-        ensureNotEmptyBooking(seatCodes);
-        ensureUnbooked(seatCodes);
+        return makeBooking(user, seatCodes, new BitSet());
+    }
 
-        FlightBooking result = new FlightBooking(user, this);
+    /**
+     * Attempts to make a booking for the given seats for the given user on this flight, without taking any of the given
+     * held seats.
+     *
+     * @param user      the user who's making the booking
+     * @param seatCodes the seat codes to book
+     * @param heldSeats the ordinals of seats which are currently held by other users
+     * @throws BookingException if the booking is for 0 seats, or any of the requested seats are already booked or
+     *                          held, or if any of the requested seats are invalid.
+     */
+    public FlightBooking makeBooking(User user, List<String> seatCodes, BitSet heldSeats) throws BookingException {
+        BitSet requested = ensureAvailable(seatCodes, heldSeats);
 
-        for (String i : seatCodes){
-            int priceTemp = getPriceFor(aircraftType.getCabinClass(i));
-            Seat tempSeat = new Seat(i, priceTemp);
+        SeatLayout layout = aircraftType.getSeatLayout();
+        FlightBooking result = new FlightBooking(user, this);
 
-            result.getSeats().add(tempSeat);
+        for (int i = requested.nextSetBit(0); i >= 0; i = requested.nextSetBit(i + 1)) {
+            int price = getPriceFor(layout.getCabinClass(i));
+            result.addSeat(new Seat(layout.getSeatCode(i), price));
         }
 
+        BitSet occupancy = getSeatOccupancy();
+        occupancy.or(requested);
+        setSeatOccupancy(occupancy);
+
         bookings.add(result);
 
         return result;
     }
 
+    /**
+     * Picks the given number of seats of the given cabin class on this flight, which are neither booked nor unavailable
+     * for any other reason. See {@link SeatLayout#findAvailableSeats(CabinClass, int, boolean, BitSet)}.
+     *
+     * @param cabinClass   the cabin class of the seats to pick, or null for any cabin class
+     * @param numSeats     the number of seats to pick
+     * @param keepTogether whether the seats should be adjacent to each other
+     * @param unavailable  the ordinals of seats which can't be picked even though they aren't booked, e.g. held seats
+     * @return the codes of the picked seats, in row order then letter order
+     * @throws BookingException if the request is for 0 seats, or there aren't enough available seats (together, if
+     *                          required)
+     */
+    public List<String> assignSeats(CabinClass cabinClass, int numSeats, boolean keepTogether, BitSet unavailable)
+            throws BookingException {
+        if (numSeats <= 0) {
+            throw new BookingException("Cannot make a booking for 0 seats");
+        }
+
+        SeatLayout layout = aircraftType.getSeatLayout();
+        BitSet taken = getSeatOccupancy();
+        taken.or(unavailable);
+
+        BitSet seats = layout.findAvailableSeats(cabinClass, numSeats, keepTogether, taken);
+        if (seats == null) {
+            throw new BookingException(keepTogether
+                    ? "Not enough seats of the given class are available together"
+                    : "Not enough seats of the given class are available");
+        }
+        return seats.stream().mapToObj(layout::getSeatCode).collect(Collectors.toList());
+    }
+
+    /**
+     * Suggests groups of the given number of adjacent seats of the given cabin class on this flight, which are neither
+     * booked nor unavailable for any other reason. See {@link SeatLayout#findSeatGroups(CabinClass, int, BitSet, int)}.
+     *
+     * @param cabinClass     the cabin class of the seats to suggest, or null for any cabin class
+     * @param numSeats       the number of seats in each suggestion
+     * @param unavailable    the ordinals of seats which can't be suggested even though they aren't booked
+     * @param maxSuggestions the maximum number of suggestions to return
+     * @return the codes of the seats in each suggestion, best first. Empty if there aren't enough available seats.
+     */
+    public List<List<String>> suggestSeats(CabinClass cabinClass, int numSeats, BitSet unavailable,
+                                           int maxSuggestions) {
+        SeatLayout layout = aircraftType.getSeatLayout();
+        BitSet taken = getSeatOccupancy();
+        taken.or(unavailable);
+
+        return layout.findSeatGroups(cabinClass, numSeats, taken, maxSuggestions).stream()
+                .map(seats -> seats.stream().mapToObj(layout::getSeatCode).collect(Collectors.toList()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Marks the seats of the given booking as booked in this flight's seat occupancy bitmap. Used to re-apply a booking
+     * to freshly-loaded flight state, for bookings whose seats were claimed through their {@link SeatReservation}s
+     * while this flight was unlocked.
+     *
+     * @param booking a booking on this flight, made by {@link #makeBooking(User, List)}
+     * @throws BookingException if any of the booking's seats are already marked as booked
+     */
+    public void occupySeats(FlightBooking booking) throws BookingException {
+        SeatLayout layout = aircraftType.getSeatLayout();
+        BitSet occupancy = getSeatOccupancy();
+        for (Seat seat : booking.getSeats()) {
+            int ordinal = layout.getOrdinal(seat.getSeatCode());
+            if (ordinal < 0 || occupancy.get(ordinal)) {
+                throw new BookingException("One ore more seats are already booked");
+            }
+            occupancy.set(ordinal);
+        }
+        setSeatOccupancy(occupancy);
+    }
+
     public FlightBooking makeBooking(User user, String... seatCodes) throws BookingException {
         return makeBooking(user, List.of(seatCodes));
     }
@@ -193,20 +423,52 @@ public class Flight {
     }
 
     /**
-     * Ensures that an incoming booking request isn't for seats which are already booked.
+     * Ensures that an incoming booking request is for one or more valid seats, which aren't already booked or held.
      *
      * @param seatCodes the booking request
-     * @throws BookingException if the booking request is for seats which are already booked
+     * @param heldSeats the ordinals of seats which are currently held by other users
+     * @return a bitmap containing the ordinals of the requested seats
+     * @throws BookingException if the booking request is empty, or for invalid seats, or seats which are already
+     *                          booked or held
      */
-    private void ensureUnbooked(List<String> seatCodes) throws BookingException {
-        List<String> bookedSeatCodes = getBookedSeats().stream().map(Seat::getSeatCode).collect(Collectors.toList());
-        boolean alreadyBooked = seatCodes.stream().anyMatch(bookedSeatCodes::contains);
-        if (alreadyBooked) {
+    public BitSet ensureAvailable(List<String> seatCodes, BitSet heldSeats) throws BookingException {
+        ensureNotEmptyBooking(seatCodes);
+
+        SeatLayout layout = aircraftType.getSeatLayout();
+        BitSet requested = new BitSet(layout.getNumSeats());
+        for (String seatCode : seatCodes) {
+            int ordinal = layout.getOrdinal(seatCode);
+            if (ordinal < 0) {
+                throw new BookingException("Seat with the given code not found on this aircraft");
+            }
+            requested.set(ordinal);
+        }
+
+        if (requested.intersects(getSeatOccupancy())) {
             throw new BookingException("One ore more seats are already booked");
         }
+        if (requested.intersects(heldSeats)) {
+            throw new BookingException("One or more seats are held by another user");
+        }
+        return requested;
     }
 
+    /**
+     * Removes the given booking from this flight, and marks all of its seats as unbooked.
+     *
+     * @param booking the booking to remove
+     */
     public void removeBooking(FlightBooking booking) {
+        SeatLayout layout = aircraftType.getSeatLayout();
+        BitSet occupancy = getSeatOccupancy();
+        for (Seat seat : booking.getSeats()) {
+            int ordinal = layout.getOrdinal(seat.getSeatCode());
+            if (ordinal >= 0) {
+                occupancy.clear(ordinal);
+            }
+        }
+        setSeatOccupancy(occupancy);
+
         this.bookings.remove(booking);
         booking.setFlight(null);
     }
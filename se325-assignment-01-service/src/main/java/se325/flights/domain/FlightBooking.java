@@ -1,6 +1,7 @@
 package se325.flights.domain;
 
 import javax.persistence.*;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -23,6 +24,9 @@ public class FlightBooking {
     @ElementCollection
     private Set<Seat> seats = new HashSet<>();
 
+    @OneToMany(mappedBy = "booking", cascade = CascadeType.ALL, orphanRemoval = true)
+    private Set<SeatReservation> reservations = new HashSet<>();
+
     /**
      * Default constructor, required by JPA / Hibernate
      */
@@ -64,6 +68,23 @@ public class FlightBooking {
         return seats;
     }
 
+    /**
+     * Gets the {@link SeatReservation}s which claim this booking's seats on its flight.
+     */
+    public Set<SeatReservation> getReservations() {
+        return Collections.unmodifiableSet(reservations);
+    }
+
+    /**
+     * Adds the given seat to this booking, along with a {@link SeatReservation} claiming it on this booking's flight.
+     *
+     * @param seat the seat to add
+     */
+    void addSeat(Seat seat) {
+        seats.add(seat);
+        reservations.add(new SeatReservation(this, seat.getSeatCode()));
+    }
+
     /**
      * Gets the price of this booking. The price is calculated by summing the price of all {@link Seat}s in this
      * booking (using their {@link Seat#getPrice()} method).
@@ -0,0 +1,90 @@
+package se325.flights.domain;
+
+import javax.persistence.*;
+
+/**
+ * Records that a booking operation requested with a particular idempotency key (sent by clients in the Idempotency-Key
+ * header) has succeeded, so that retries of the same request return the original outcome instead of being repeated.
+ * <p>
+ * Each record is saved in the same transaction as the operation it records, and keys are unique per user and
+ * operation - so a request can never be applied twice, even if the in-memory cache of outcomes has forgotten it.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_IDEMPOTENCYRECORD_USER_OPERATION_KEY",
+        columnNames = {"userId", "operation", "idempotencyKey"}))
+public class IdempotencyRecord {
+
+    /**
+     * The operations which can be made idempotent
+     */
+    public enum Operation {
+        MAKE_BOOKING, CANCEL_BOOKING
+    }
+
+    /**
+     * The maximum length of an idempotency key
+     */
+    public static final int MAX_KEY_LENGTH = 255;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private long userId;
+
+    @Enumerated(EnumType.STRING)
+    private Operation operation;
+
+    @Column(length = MAX_KEY_LENGTH)
+    private String idempotencyKey;
+
+    /**
+     * Identifies the request which was made with the key, so that the key can't be re-used for a different request
+     */
+    @Column(length = 64)
+    private String requestHash;
+
+    /**
+     * The id of the booking which was made or cancelled
+     */
+    private long bookingId;
+
+    /**
+     * Default constructor, required by JPA / Hibernate
+     */
+    public IdempotencyRecord() {
+    }
+
+    public IdempotencyRecord(long userId, Operation operation, String idempotencyKey, String requestHash,
+                             long bookingId) {
+        this.userId = userId;
+        this.operation = operation;
+        this.idempotencyKey = idempotencyKey;
+        this.requestHash = requestHash;
+        this.bookingId = bookingId;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public String getRequestHash() {
+        return requestHash;
+    }
+
+    public long getBookingId() {
+        return bookingId;
+    }
+}
@@ -0,0 +1,351 @@
+package se325.flights.domain;
+
+import se325.flights.CabinClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Describes the seat map of an {@link AircraftType} as a dense range of seat ordinals. Every valid seat on the
+ * aircraft is given a unique ordinal between 0 (inclusive) and {@link #getNumSeats()} (exclusive), in row order and
+ * then in the letter order given by {@link SeatingZone#getSeatCodeData()}.
+ * <p>
+ * Ordinals let per-flight seat state be stored as a compact bitmap (see {@link Flight}), rather than as a collection
+ * of {@link Seat} rows which would need to be loaded and scanned for every availability check.
+ * <p>
+ * Instances are immutable, and are obtained from {@link AircraftType#getSeatLayout()}.
+ */
+public class SeatLayout {
+
+    private final SeatingZone[] zones;
+    private final int[] zoneOffsets;
+    private final int numSeats;
+
+    /**
+     * Maps (row number - firstRow) to the index of the zone containing that row, or -1 if no zone contains it.
+     */
+    private final int[] rowZones;
+    private final int firstRow;
+
+    SeatLayout(Collection<SeatingZone> seatingZones) {
+        List<SeatingZone> sorted = new ArrayList<>(seatingZones);
+        sorted.sort(Comparator.comparingInt(SeatingZone::getStartingRowNumber)
+                .thenComparing(SeatingZone::getSeatCodeData));
+
+        this.zones = sorted.toArray(new SeatingZone[0]);
+        this.zoneOffsets = new int[zones.length];
+
+        int offset = 0;
+        int minRow = Integer.MAX_VALUE;
+        int maxRow = Integer.MIN_VALUE;
+        for (int i = 0; i < zones.length; i++) {
+            zoneOffsets[i] = offset;
+            offset += zones[i].getNumSeatsInZone();
+            minRow = Math.min(minRow, zones[i].getStartingRowNumber());
+            maxRow = Math.max(maxRow, zones[i].getStartingRowNumber() + zones[i].getNumRows() - 1);
+        }
+        this.numSeats = offset;
+
+        if (zones.length == 0) {
+            this.firstRow = 0;
+            this.rowZones = new int[0];
+        } else {
+            this.firstRow = minRow;
+            this.rowZones = new int[maxRow - minRow + 1];
+            Arrays.fill(rowZones, -1);
+            for (int i = 0; i < zones.length; i++) {
+                for (int r = 0; r < zones[i].getNumRows(); r++) {
+                    rowZones[zones[i].getStartingRowNumber() + r - firstRow] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the total number of seats in this layout, which is also the exclusive upper bound of all seat ordinals.
+     */
+    public int getNumSeats() {
+        return numSeats;
+    }
+
+    /**
+     * Gets the ordinal of the seat with the given seat code.
+     *
+     * @param seatCode the seat code, e.g. "23J"
+     * @return the seat's ordinal, or -1 if the seat code is malformed or doesn't exist in this layout
+     */
+    public int getOrdinal(String seatCode) {
+        if (seatCode == null || seatCode.length() < 2) {
+            return -1;
+        }
+
+        int rowNumber;
+        try {
+            rowNumber = Integer.parseInt(seatCode.substring(0, seatCode.length() - 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        int rowIndex = rowNumber - firstRow;
+        if (rowIndex < 0 || rowIndex >= rowZones.length || rowZones[rowIndex] < 0) {
+            return -1;
+        }
+
+        int zoneIndex = rowZones[rowIndex];
+        SeatingZone zone = zones[zoneIndex];
+        int letterIndex = zone.getSeatCodeData().indexOf(seatCode.charAt(seatCode.length() - 1));
+        if (letterIndex < 0) {
+            return -1;
+        }
+
+        int rowsIntoZone = rowNumber - zone.getStartingRowNumber();
+        return zoneOffsets[zoneIndex] + rowsIntoZone * zone.getSeatCodeData().length() + letterIndex;
+    }
+
+    /**
+     * Gets the seat code of the seat with the given ordinal.
+     *
+     * @param ordinal the ordinal to look up
+     * @return the seat code, e.g. "23J"
+     * @throws IndexOutOfBoundsException if the ordinal is outside this layout
+     */
+    public String getSeatCode(int ordinal) {
+        int zoneIndex = getZoneIndex(ordinal);
+        SeatingZone zone = zones[zoneIndex];
+        int seatsPerRow = zone.getSeatCodeData().length();
+        int seatIntoZone = ordinal - zoneOffsets[zoneIndex];
+
+        return (zone.getStartingRowNumber() + seatIntoZone / seatsPerRow) + ""
+                + zone.getSeatCodeData().charAt(seatIntoZone % seatsPerRow);
+    }
+
+    /**
+     * Gets the cabin class of the seat with the given ordinal.
+     *
+     * @param ordinal the ordinal to look up
+     * @return the seat's {@link CabinClass}
+     * @throws IndexOutOfBoundsException if the ordinal is outside this layout
+     */
+    public CabinClass getCabinClass(int ordinal) {
+        return zones[getZoneIndex(ordinal)].getCabinClass();
+    }
+
+    /**
+     * Gets the seating zones of this layout, sorted by starting row number.
+     */
+    public List<SeatingZone> getZones() {
+        return List.of(zones);
+    }
+
+    /**
+     * Gets the ordinal of the first seat in the given zone. Seats in a zone occupy a contiguous range of ordinals,
+     * starting at this value.
+     *
+     * @param zoneIndex the index of the zone, as in {@link #getZones()}
+     */
+    public int getZoneOffset(int zoneIndex) {
+        return zoneOffsets[zoneIndex];
+    }
+
+    /**
+     * Gets the number of seats of the given cabin class in this layout which aren't unavailable.
+     *
+     * @param cabinClass  the cabin class to count
+     * @param unavailable the ordinals of seats which can't be booked
+     * @return the number of available seats of that cabin class
+     */
+    public int getNumSeatsAvailable(CabinClass cabinClass, BitSet unavailable) {
+        int available = 0;
+        for (int i = 0; i < zones.length; i++) {
+            if (zones[i].getCabinClass() == cabinClass) {
+                int from = zoneOffsets[i];
+                int to = from + zones[i].getNumSeatsInZone();
+                available += zones[i].getNumSeatsInZone() - unavailable.get(from, to).cardinality();
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Picks the given number of seats of the given cabin class which aren't unavailable.
+     * <p>
+     * Without keepTogether, the first available seats (by ordinal) are picked. With keepTogether, the best group found
+     * by {@link #findSeatGroups(CabinClass, int, BitSet, int)} is picked.
+     *
+     * @param cabinClass   the cabin class of the seats to pick, or null for any cabin class
+     * @param numSeats     the number of seats to pick
+     * @param keepTogether whether the seats should be adjacent to each other
+     * @param unavailable  the ordinals of seats which can't be picked
+     * @return the ordinals of the picked seats, or null if there aren't enough available seats (together, if required)
+     */
+    public BitSet findAvailableSeats(CabinClass cabinClass, int numSeats, boolean keepTogether, BitSet unavailable) {
+        if (keepTogether) {
+            List<BitSet> groups = findSeatGroups(cabinClass, numSeats, unavailable, 1);
+            return groups.isEmpty() ? null : groups.get(0);
+        }
+
+        BitSet seats = new BitSet(numSeats);
+        for (int z = 0; z < zones.length; z++) {
+            if (cabinClass != null && zones[z].getCabinClass() != cabinClass) {
+                continue;
+            }
+            int to = zoneOffsets[z] + zones[z].getNumSeatsInZone();
+            for (int i = unavailable.nextClearBit(zoneOffsets[z]); i < to; i = unavailable.nextClearBit(i + 1)) {
+                seats.set(i);
+                if (seats.cardinality() == numSeats) {
+                    return seats;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds groups of the given number of adjacent seats of the given cabin class which aren't unavailable. Seats are
+     * adjacent if they're in the same row, and their letters are next to each other in their zone's
+     * {@link SeatingZone#getSeatCodeData()}.
+     * <p>
+     * Each run of adjacent available seats which is long enough gives one group. The shortest runs come first (ties are
+     * broken by position), so that longer runs are left for larger groups. If no single row has a long enough run, a
+     * single group is returned instead, taken from the fewest consecutive rows which have enough available seats
+     * between them.
+     * <p>
+     * Works directly on the seat ordinal bitmap, so takes time proportional to the number of rows, regardless of how
+     * many seats have been booked.
+     *
+     * @param cabinClass  the cabin class of the seats to find, or null for any cabin class
+     * @param numSeats    the number of seats in each group
+     * @param unavailable the ordinals of seats which can't be picked
+     * @param maxGroups   the maximum number of groups to return
+     * @return the ordinals of the seats in each group, best first. Empty if there aren't enough available seats.
+     */
+    public List<BitSet> findSeatGroups(CabinClass cabinClass, int numSeats, BitSet unavailable, int maxGroups) {
+        List<BitSet> groups = new ArrayList<>();
+        if (numSeats <= 0 || maxGroups <= 0) {
+            return groups;
+        }
+
+        List<int[]> runs = findRunsInOneRow(cabinClass, numSeats, unavailable);
+        if (!runs.isEmpty()) {
+            runs.sort(Comparator.<int[]>comparingInt(run -> run[1]).thenComparingInt(run -> run[0]));
+            for (int i = 0; i < runs.size() && i < maxGroups; i++) {
+                BitSet seats = new BitSet(numSeats);
+                seats.set(runs.get(i)[0], runs.get(i)[0] + numSeats);
+                groups.add(seats);
+            }
+            return groups;
+        }
+
+        BitSet seats = findSeatsInConsecutiveRows(cabinClass, numSeats, unavailable);
+        if (seats != null) {
+            groups.add(seats);
+        }
+        return groups;
+    }
+
+    /**
+     * Finds all runs of adjacent available seats in a single row which are at least numSeats long, as
+     * [first ordinal, length] pairs in ordinal order.
+     */
+    private List<int[]> findRunsInOneRow(CabinClass cabinClass, int numSeats, BitSet unavailable) {
+        List<int[]> runs = new ArrayList<>();
+
+        for (int z = 0; z < zones.length; z++) {
+            if (cabinClass != null && zones[z].getCabinClass() != cabinClass) {
+                continue;
+            }
+            int seatsPerRow = zones[z].getSeatCodeData().length();
+            if (seatsPerRow < numSeats) {
+                continue;
+            }
+            for (int r = 0; r < zones[z].getNumRows(); r++) {
+                int rowEnd = zoneOffsets[z] + (r + 1) * seatsPerRow;
+                int i = zoneOffsets[z] + r * seatsPerRow;
+                while (i < rowEnd) {
+                    int runStart = unavailable.nextClearBit(i);
+                    if (runStart >= rowEnd) {
+                        break;
+                    }
+                    int nextUnavailable = unavailable.nextSetBit(runStart);
+                    int runEnd = nextUnavailable < 0 || nextUnavailable > rowEnd ? rowEnd : nextUnavailable;
+                    if (runEnd - runStart >= numSeats) {
+                        runs.add(new int[]{runStart, runEnd - runStart});
+                    }
+                    i = runEnd;
+                }
+            }
+        }
+        return runs;
+    }
+
+    private BitSet findSeatsInConsecutiveRows(CabinClass cabinClass, int numSeats, BitSet unavailable) {
+        // The rows of the given cabin class, in row order, as [row number, first ordinal, end ordinal, available seats]
+        List<int[]> rows = new ArrayList<>();
+        for (int z = 0; z < zones.length; z++) {
+            if (cabinClass != null && zones[z].getCabinClass() != cabinClass) {
+                continue;
+            }
+            int seatsPerRow = zones[z].getSeatCodeData().length();
+            for (int r = 0; r < zones[z].getNumRows(); r++) {
+                int from = zoneOffsets[z] + r * seatsPerRow;
+                int to = from + seatsPerRow;
+                int available = seatsPerRow - unavailable.get(from, to).cardinality();
+                rows.add(new int[]{zones[z].getStartingRowNumber() + r, from, to, available});
+            }
+        }
+
+        // Slide a window of consecutive rows along, keeping the narrowest window with enough available seats
+        int bestFirst = -1;
+        int bestLast = -1;
+        int first = 0;
+        int available = 0;
+        for (int last = 0; last < rows.size(); last++) {
+            if (last > first && rows.get(last)[0] != rows.get(last - 1)[0] + 1) {
+                first = last;
+                available = 0;
+            }
+            available += rows.get(last)[3];
+            while (available - rows.get(first)[3] >= numSeats) {
+                available -= rows.get(first)[3];
+                first++;
+            }
+            if (available >= numSeats && (bestFirst < 0 || last - first < bestLast - bestFirst)) {
+                bestFirst = first;
+                bestLast = last;
+            }
+        }
+
+        if (bestFirst < 0) {
+            return null;
+        }
+        BitSet seats = new BitSet(numSeats);
+        int to = rows.get(bestLast)[2];
+        for (int i = unavailable.nextClearBit(rows.get(bestFirst)[1]); seats.cardinality() < numSeats && i < to;
+             i = unavailable.nextClearBit(i + 1)) {
+            seats.set(i);
+        }
+        return seats;
+    }
+
+    private int getZoneIndex(int ordinal) {
+        if (ordinal < 0 || ordinal >= numSeats) {
+            throw new IndexOutOfBoundsException("Seat ordinal " + ordinal + " is not in this layout");
+        }
+
+        // Zones are few (usually < 10), so a binary search over their offsets is plenty fast
+        int index = Arrays.binarySearch(zoneOffsets, ordinal);
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        // Skip over any empty zones sharing the same offset
+        while (index < zones.length - 1 && zoneOffsets[index + 1] <= ordinal) {
+            index++;
+        }
+        return index;
+    }
+}
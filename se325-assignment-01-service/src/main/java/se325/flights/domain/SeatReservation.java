@@ -0,0 +1,63 @@
+package se325.flights.domain;
+
+import javax.persistence.*;
+
+/**
+ * Represents the claim of a single seat on a {@link Flight} by a {@link FlightBooking}. There is a unique constraint on
+ * (flight, seat code), so the database itself rejects any attempt to book the same seat twice - even by transactions
+ * which haven't locked the flight.
+ * <p>
+ * SeatReservations are created by {@link Flight#makeBooking(User, String...)}, and are removed along with their
+ * booking.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "UK_SEATRESERVATION_FLIGHT_SEAT",
+        columnNames = {"flight_id", "seatCode"}))
+public class SeatReservation {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    private Flight flight;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    private FlightBooking booking;
+
+    private String seatCode;
+
+    /**
+     * Default constructor, required by JPA / Hibernate
+     */
+    public SeatReservation() {
+    }
+
+    /**
+     * Creates a new SeatReservation
+     *
+     * @param booking  the booking claiming the seat
+     * @param seatCode the code of the seat being claimed, e.g. "23J"
+     */
+    public SeatReservation(FlightBooking booking, String seatCode) {
+        this.booking = booking;
+        this.flight = booking.getFlight();
+        this.seatCode = seatCode;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Flight getFlight() {
+        return flight;
+    }
+
+    public FlightBooking getBooking() {
+        return booking;
+    }
+
+    public String getSeatCode() {
+        return seatCode;
+    }
+}
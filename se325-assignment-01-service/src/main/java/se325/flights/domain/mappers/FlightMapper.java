@@ -1,12 +1,9 @@
 package se325.flights.domain.mappers;
 
 import se325.flights.domain.Flight;
-import se325.flights.domain.Seat;
 import se325.flights.dto.BookingInfoDTO;
 import se325.flights.dto.FlightDTO;
 
-import java.util.stream.Collectors;
-
 /**
  * A mapper to convert between {@link Flight} and {@link FlightDTO} or {@link BookingInfoDTO} instances
  */
@@ -24,10 +21,22 @@ public class FlightMapper {
         );
     }
 
+    /**
+     * Maps the given flight to a DTO, optionally including the number of unbooked seats of each cabin class. These come
+     * from the flight's seat occupancy bitmap, so don't require its bookings to be loaded.
+     */
+    public static FlightDTO toDTO(Flight domainFlight, boolean includeSeatsRemaining) {
+        FlightDTO dto = toDTO(domainFlight);
+        if (includeSeatsRemaining) {
+            dto.setSeatsRemaining(domainFlight.getNumSeatsRemainingByCabinClass());
+        }
+        return dto;
+    }
+
     public static BookingInfoDTO toBookingInfoDTO(Flight domainFlight) {
         return new BookingInfoDTO(
                 AircraftMapper.toDTO(domainFlight.getAircraftType()),
-                domainFlight.getBookedSeats().stream().map(Seat::getSeatCode).collect(Collectors.toList()),
+                domainFlight.getBookedSeatCodes(),
                 domainFlight.getSeatPricings()
         );
     }
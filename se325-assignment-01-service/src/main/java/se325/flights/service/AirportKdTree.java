@@ -0,0 +1,129 @@
+package se325.flights.service;
+
+import se325.flights.domain.Airport;
+
+import java.util.*;
+
+/**
+ * A k-d tree of airports, for finding all airports within a given distance of a point without checking every airport.
+ * <p>
+ * Each airport is stored as a point on the unit sphere in 3D (x, y, z) coordinates, rather than as its latitude and
+ * longitude. The straight-line distance between two such points increases with the great-circle distance between
+ * them, so a great-circle radius can be converted to a straight-line one and searched for directly - with no special
+ * cases near the poles or the antimeridian, where latitude / longitude boxes break down.
+ * <p>
+ * The tree is stored implicitly in an array: the median of each range (along the axis for its depth) is the root of
+ * that range's subtree, with the points before and after it forming its left and right subtrees. A query visits only
+ * the subtrees whose splitting plane is within the search radius, so its cost grows with the logarithm of the number
+ * of airports plus the number found, rather than with the number of airports. Immutable once built.
+ */
+public class AirportKdTree {
+
+    /**
+     * The mean radius of the Earth, in kilometres
+     */
+    public static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final Airport[] airports;
+
+    /**
+     * The x, y and z coordinates of each airport in {@link #airports}, at indices 3i, 3i + 1 and 3i + 2
+     */
+    private final double[] coordinates;
+
+    /**
+     * Builds a tree containing the given airports.
+     */
+    public AirportKdTree(Collection<Airport> airports) {
+        int size = airports.size();
+        Integer[] order = new Integer[size];
+        double[] unsorted = new double[size * 3];
+        Airport[] unsortedAirports = airports.toArray(new Airport[0]);
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            toUnitVector(unsortedAirports[i].getLatitude(), unsortedAirports[i].getLongitude(), unsorted, i * 3);
+        }
+        build(order, unsorted, 0, size, 0);
+
+        this.airports = new Airport[size];
+        this.coordinates = new double[size * 3];
+        for (int i = 0; i < size; i++) {
+            this.airports[i] = unsortedAirports[order[i]];
+            System.arraycopy(unsorted, order[i] * 3, coordinates, i * 3, 3);
+        }
+    }
+
+    /**
+     * Sorts the given range of points along the axis for the given depth, putting the median in the middle, then does
+     * the same for the points either side of it
+     */
+    private static void build(Integer[] order, double[] coordinates, int from, int to, int depth) {
+        if (to - from <= 1) {
+            return;
+        }
+        int axis = depth % 3;
+        Arrays.sort(order, from, to, Comparator.comparingDouble(i -> coordinates[i * 3 + axis]));
+        int mid = (from + to) >>> 1;
+        build(order, coordinates, from, mid, depth + 1);
+        build(order, coordinates, mid + 1, to, depth + 1);
+    }
+
+    /**
+     * Finds all airports within the given great-circle distance of the given point.
+     *
+     * @param latitude  the latitude of the point, in degrees
+     * @param longitude the longitude of the point, in degrees
+     * @param radiusKm  the distance, in kilometres
+     * @return the airports within the distance (including any at the point itself), in no particular order
+     */
+    public List<Airport> findWithin(double latitude, double longitude, double radiusKm) {
+        double[] point = new double[3];
+        toUnitVector(latitude, longitude, point, 0);
+
+        // The straight-line distance through the sphere which corresponds to the great-circle distance
+        double angle = Math.min(radiusKm / EARTH_RADIUS_KM, Math.PI);
+        double chord = 2 * Math.sin(angle / 2);
+
+        List<Airport> found = new ArrayList<>();
+        findWithin(point, chord * chord, 0, airports.length, 0, found);
+        return found;
+    }
+
+    private void findWithin(double[] point, double maxDistanceSquared, int from, int to, int depth,
+                            List<Airport> found) {
+        if (from >= to) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        double dx = point[0] - coordinates[mid * 3];
+        double dy = point[1] - coordinates[mid * 3 + 1];
+        double dz = point[2] - coordinates[mid * 3 + 2];
+        if (dx * dx + dy * dy + dz * dz <= maxDistanceSquared) {
+            found.add(airports[mid]);
+        }
+
+        int axis = depth % 3;
+        double offset = axis == 0 ? dx : axis == 1 ? dy : dz;
+        // Search the side of the splitting plane containing the point, then the other side only if the plane is close
+        // enough for it to contain any matches
+        if (offset < 0) {
+            findWithin(point, maxDistanceSquared, from, mid, depth + 1, found);
+            if (offset * offset <= maxDistanceSquared) {
+                findWithin(point, maxDistanceSquared, mid + 1, to, depth + 1, found);
+            }
+        } else {
+            findWithin(point, maxDistanceSquared, mid + 1, to, depth + 1, found);
+            if (offset * offset <= maxDistanceSquared) {
+                findWithin(point, maxDistanceSquared, from, mid, depth + 1, found);
+            }
+        }
+    }
+
+    private static void toUnitVector(double latitude, double longitude, double[] result, int offset) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        result[offset] = Math.cos(lat) * Math.cos(lon);
+        result[offset + 1] = Math.cos(lat) * Math.sin(lon);
+        result[offset + 2] = Math.sin(lat);
+    }
+}
@@ -0,0 +1,97 @@
+package se325.flights.service;
+
+import se325.flights.domain.Airport;
+import se325.flights.domain.mappers.AirportMapper;
+import se325.flights.dto.AirportDTO;
+import se325.flights.dto.FlightDTO;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JAX-RS Resource class for retrieving information about airports.
+ */
+
+@Path("/airports")
+public class AirportsResource {
+
+    /**
+     * Suggests airports matching what a user has typed so far, best match first. See
+     * {@link FlightCatalog#suggestAirports(String, int)}.
+     */
+    @GET
+    @Path("suggest")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response suggestAirports(@QueryParam("q") String query,
+                                    @QueryParam("limit") @DefaultValue("10") int limit) {
+        if (query == null || query.isBlank() || limit <= 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        List<AirportDTO> suggestions = new ArrayList<>();
+        for (Airport airport : FlightCatalog.instance().suggestAirports(query, limit)) {
+            suggestions.add(AirportMapper.toDTO(airport));
+        }
+        return Response.ok(suggestions).build();
+    }
+
+    /**
+     * Finds the airports most similar to the given query, tolerating typos (e.g. "Aukland"), most similar first. See
+     * {@link FlightCatalog#searchAirports(String, int)}.
+     */
+    @GET
+    @Path("search")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response searchAirports(@QueryParam("q") String query,
+                                   @QueryParam("limit") @DefaultValue("10") int limit) {
+        if (query == null || query.isBlank() || limit <= 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        List<AirportDTO> matches = new ArrayList<>();
+        for (Airport airport : FlightCatalog.instance().searchAirports(query, limit)) {
+            matches.add(AirportMapper.toDTO(airport));
+        }
+        return Response.ok(matches).build();
+    }
+
+    /**
+     * Gets the next flights departing from the airport with the given code, in order of departure time, e.g. for a
+     * departure board. Served from memory, without reading the database. See {@link DepartureBoard}.
+     *
+     * @param from  the earliest departure time to include, as an ISO date / time with an offset (e.g.
+     *              "2022-08-10T15:00:00Z"). Defaults to the current time.
+     * @param limit the maximum number of flights to return
+     */
+    @GET
+    @Path("{code}/departures")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response departures(@PathParam("code") String code,
+                               @QueryParam("from") String from,
+                               @QueryParam("limit") @DefaultValue("10") int limit) {
+        if (limit <= 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        Instant fromTime = Instant.now();
+        if (from != null) {
+            try {
+                fromTime = ZonedDateTime.parse(from, DateTimeFormatter.ISO_DATE_TIME).toInstant();
+            } catch (DateTimeParseException e) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+        }
+
+        List<FlightDTO> departures = DepartureBoard.instance().getDepartures(code, fromTime, limit);
+        if (departures == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(departures).build();
+    }
+}
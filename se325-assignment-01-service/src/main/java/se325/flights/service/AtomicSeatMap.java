@@ -0,0 +1,122 @@
+package se325.flights.service;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe, lock-free seat occupancy bitmap for a single flight. Bit i is set if the seat with ordinal i (see
+ * {@link se325.flights.domain.SeatLayout}) is claimed.
+ * <p>
+ * Multi-seat claims are all-or-nothing: {@link #tryClaim(int...)} sets each requested bit with a compare-and-set, and
+ * if any of them is already set, clears the bits it set so far and fails. A seat can therefore never be claimed by two
+ * callers at once. A failed claim may briefly make its other seats look taken to concurrent callers, which can cause
+ * those callers to fail too - but never to succeed wrongly.
+ */
+public class AtomicSeatMap {
+
+    private final int numSeats;
+    private final AtomicLongArray words;
+
+    /**
+     * Creates a new AtomicSeatMap
+     *
+     * @param numSeats the number of seats on the flight
+     * @param claimed  the seats which are already claimed
+     */
+    public AtomicSeatMap(int numSeats, BitSet claimed) {
+        this.numSeats = numSeats;
+        this.words = new AtomicLongArray((numSeats + 63) / 64);
+
+        long[] initial = claimed.toLongArray();
+        for (int i = 0; i < initial.length && i < words.length(); i++) {
+            words.set(i, initial[i]);
+        }
+    }
+
+    public int getNumSeats() {
+        return numSeats;
+    }
+
+    /**
+     * Attempts to claim all the given seats.
+     *
+     * @param ordinals the seats to claim. Must be distinct, and within [0, {@link #getNumSeats()}).
+     * @return true if all seats were claimed, false if any of them was already claimed (in which case none are)
+     */
+    public boolean tryClaim(int... ordinals) {
+        for (int i = 0; i < ordinals.length; i++) {
+            if (!claim(ordinals[i])) {
+                for (int j = 0; j < i; j++) {
+                    release(ordinals[j]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases all the given seats, which should previously have been claimed.
+     *
+     * @param ordinals the seats to release
+     */
+    public void release(int... ordinals) {
+        for (int ordinal : ordinals) {
+            release(ordinal);
+        }
+    }
+
+    /**
+     * Gets a value indicating whether the seat with the given ordinal is currently claimed.
+     */
+    public boolean isClaimed(int ordinal) {
+        return (words.get(ordinal >>> 6) & (1L << ordinal)) != 0;
+    }
+
+    /**
+     * Gets the number of currently claimed seats.
+     */
+    public int getNumClaimed() {
+        int count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Gets a snapshot of the currently claimed seats. The snapshot is not atomic with respect to concurrent claims.
+     */
+    public BitSet snapshot() {
+        long[] copy = new long[words.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = words.get(i);
+        }
+        return BitSet.valueOf(copy);
+    }
+
+    private boolean claim(int ordinal) {
+        int index = ordinal >>> 6;
+        long mask = 1L << ordinal;
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(int ordinal) {
+        int index = ordinal >>> 6;
+        long mask = 1L << ordinal;
+        while (true) {
+            long word = words.get(index);
+            if (words.compareAndSet(index, word, word & ~mask)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package se325.flights.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.flights.domain.Flight;
+import se325.flights.domain.FlightBooking;
+import se325.flights.domain.Seat;
+import se325.flights.domain.SeatLayout;
+import se325.flights.util.ConfigUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the seats booked and unbooked on each flight, from which the booked seats of every flight
+ * can be rebuilt at startup without loading any flights through Hibernate. Used by {@link SeatAllocator} to load seat
+ * maps, if enabled (booking.journal.enabled).
+ * <p>
+ * Events are appended to memory-mapped segment files. Once a segment is full, or after every
+ * booking.journal.snapshotEvents events, a new segment is started. After the latter, a snapshot of every flight's seat
+ * state is written, and the segments it covers are deleted. At startup, the latest snapshot is loaded and the remaining
+ * segments are replayed. If booking.journal.fsync is set, recording an event waits until it's been forced to disk -
+ * but a single force covers every event appended so far, so concurrent bookings share the cost.
+ * <p>
+ * Events are recorded after their transaction commits, so events for the same flight may be recorded out of order.
+ * Each event therefore carries the flight's version after the change, and each seat only takes on the state of the
+ * event with the highest version to touch it - which makes replay independent of event order, and idempotent.
+ * <p>
+ * The database remains the source of truth: an event can be lost if the service stops between a commit and its
+ * event being recorded. The journal must be enabled from when the database is created (and is discarded when the
+ * database is reset), so it's only useful with a database which outlives the service.
+ */
+public class BookingJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingJournal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.bin.tmp";
+    private static final int SNAPSHOT_MAGIC = 0x534E4150;
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    /**
+     * Record layout: length (int), CRC32 of the payload (int), then the payload - flight id (long), flight version
+     * (long), booked (byte), number of seats on the flight (short), number of ordinals (short), ordinals (short each).
+     * A zero length marks the end of a segment.
+     */
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int PAYLOAD_HEADER_BYTES = 21;
+
+    private static BookingJournal instance;
+
+    public static BookingJournal instance() {
+        if (instance == null) {
+            instance = new BookingJournal(
+                    Paths.get(ConfigUtils.getString("booking.journal.dir", "journal")),
+                    ConfigUtils.getInt("booking.journal.segmentBytes", 16 * 1024 * 1024),
+                    ConfigUtils.getInt("booking.journal.snapshotEvents", 10000),
+                    ConfigUtils.getBoolean("booking.journal.fsync", true));
+        }
+        return instance;
+    }
+
+    /**
+     * Gets a value indicating whether the journal is enabled (booking.journal.enabled).
+     */
+    public static boolean isEnabled() {
+        return ConfigUtils.getBoolean("booking.journal.enabled", false);
+    }
+
+    /**
+     * The booked seats of a single flight, along with the version of the latest event to touch each seat
+     */
+    private static class FlightState {
+        private final long[] versions;
+        private final BitSet booked;
+
+        private FlightState(int numSeats) {
+            this(new long[numSeats], new BitSet(numSeats));
+        }
+
+        private FlightState(long[] versions, BitSet booked) {
+            this.versions = versions;
+            this.booked = booked;
+        }
+
+        private void apply(long version, boolean isBooked, int[] ordinals) {
+            for (int ordinal : ordinals) {
+                if (ordinal < versions.length && version > versions[ordinal]) {
+                    versions[ordinal] = version;
+                    booked.set(ordinal, isBooked);
+                }
+            }
+        }
+
+        private FlightState copy() {
+            return new FlightState(versions.clone(), (BitSet) booked.clone());
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int snapshotEvents;
+    private final boolean fsync;
+
+    private final Map<Long, FlightState> flights = new HashMap<>();
+    private final ExecutorService snapshotThread = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "booking-journal-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final Object snapshotLock = new Object();
+
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    private long appendedEvents;
+    private int eventsSinceSnapshot;
+
+    private final Object syncLock = new Object();
+    private long syncedEvents;
+
+    /**
+     * Creates a new BookingJournal, recovering the seat state recorded in the given directory (if any).
+     *
+     * @param directory      the directory containing the journal's segment and snapshot files
+     * @param segmentBytes   the size of each segment file
+     * @param snapshotEvents the number of events after which to take a snapshot
+     * @param fsync          whether recording an event should wait until it has been forced to disk
+     * @throws UncheckedIOException if the journal couldn't be read, or a new segment couldn't be created
+     */
+    public BookingJournal(Path directory, int segmentBytes, int snapshotEvents, boolean fsync) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.snapshotEvents = Math.max(1, snapshotEvents);
+        this.fsync = fsync;
+
+        try {
+            Files.createDirectories(directory);
+            recover();
+            // The last segment may end with a partly-written event, so new events always go in a new segment
+            roll();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Records that the given booking's seats have been booked. Must be called after the booking is committed.
+     */
+    public void recordBooking(FlightBooking booking) {
+        Flight flight = booking.getFlight();
+        List<String> seatCodes = booking.getSeats().stream().map(Seat::getSeatCode).collect(Collectors.toList());
+        record(flight, true, seatCodes);
+    }
+
+    /**
+     * Records that the given seats on the given flight have been unbooked. Must be called after the cancellation is
+     * committed, with the flight instance that was modified (so that its version is up to date).
+     */
+    public void recordCancellation(Flight flight, Collection<String> seatCodes) {
+        record(flight, false, seatCodes);
+    }
+
+    /**
+     * Records that the given seats have been booked.
+     *
+     * @param flightId the id of the flight
+     * @param version  the flight's version after the seats were booked
+     * @param numSeats the total number of seats on the flight
+     * @param ordinals the ordinals of the booked seats (see {@link SeatLayout})
+     */
+    public void recordBooked(long flightId, long version, int numSeats, int... ordinals) {
+        append(flightId, version, true, numSeats, ordinals);
+    }
+
+    /**
+     * Records that the given seats have been unbooked.
+     *
+     * @param flightId the id of the flight
+     * @param version  the flight's version after the seats were unbooked
+     * @param numSeats the total number of seats on the flight
+     * @param ordinals the ordinals of the unbooked seats (see {@link SeatLayout})
+     */
+    public void recordUnbooked(long flightId, long version, int numSeats, int... ordinals) {
+        append(flightId, version, false, numSeats, ordinals);
+    }
+
+    /**
+     * Gets the booked seats of the given flight, according to the journal.
+     *
+     * @param flightId the id of the flight
+     * @return a bitmap of booked seat ordinals, or null if no events have been recorded for the flight
+     */
+    public synchronized BitSet getBookedSeats(long flightId) {
+        FlightState state = flights.get(flightId);
+        return state == null ? null : (BitSet) state.booked.clone();
+    }
+
+    /**
+     * Writes a snapshot of every flight's seat state, and deletes the segments it covers.
+     */
+    public void snapshot() {
+        synchronized (snapshotLock) {
+            Map<Long, FlightState> copy = new HashMap<>();
+            long lastSegment;
+            try {
+                synchronized (this) {
+                    flights.forEach((flightId, state) -> copy.put(flightId, state.copy()));
+                    lastSegment = segmentNumber;
+                    roll();
+                    eventsSinceSnapshot = 0;
+                }
+                writeSnapshot(copy);
+                for (Path path : listSegments()) {
+                    if (getSegmentNumber(path) <= lastSegment) {
+                        Files.delete(path);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to write journal snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Discards every event and snapshot, e.g. when the database has been reset.
+     */
+    public synchronized void clear() {
+        try {
+            closeSegment();
+            for (Path path : listSegments()) {
+                Files.delete(path);
+            }
+            Files.deleteIfExists(directory.resolve(SNAPSHOT_FILE));
+            flights.clear();
+            eventsSinceSnapshot = 0;
+            roll();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces any unwritten events to disk, and closes the current segment. The journal can't be used afterwards.
+     */
+    public synchronized void close() {
+        snapshotThread.shutdown();
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void record(Flight flight, boolean isBooked, Collection<String> seatCodes) {
+        SeatLayout layout = flight.getAircraftType().getSeatLayout();
+        int[] ordinals = seatCodes.stream().mapToInt(layout::getOrdinal).filter(ordinal -> ordinal >= 0).toArray();
+        append(flight.getId(), flight.getVersion(), isBooked, layout.getNumSeats(), ordinals);
+    }
+
+    private void append(long flightId, long version, boolean isBooked, int numSeats, int[] ordinals) {
+        int payloadBytes = PAYLOAD_HEADER_BYTES + 2 * ordinals.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payloadBytes);
+        record.putInt(payloadBytes).putInt(0)
+                .putLong(flightId).putLong(version).put((byte) (isBooked ? 1 : 0))
+                .putShort((short) numSeats).putShort((short) ordinals.length);
+        for (int ordinal : ordinals) {
+            record.putShort((short) ordinal);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_BYTES, payloadBytes);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        long eventNumber;
+        try {
+            synchronized (this) {
+                // Leave room for the zero length which marks the end of the segment
+                if (segment.remaining() < record.remaining() + 4) {
+                    roll();
+                }
+                segment.put(record);
+                flights.computeIfAbsent(flightId, id -> new FlightState(numSeats)).apply(version, isBooked, ordinals);
+                eventNumber = ++appendedEvents;
+
+                if (++eventsSinceSnapshot >= snapshotEvents && snapshotPending.compareAndSet(false, true)) {
+                    snapshotThread.submit(() -> {
+                        snapshotPending.set(false);
+                        snapshot();
+                    });
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to record journal event for flight " + flightId, e);
+            return;
+        }
+
+        if (fsync) {
+            sync(eventNumber);
+        }
+    }
+
+    /**
+     * Waits until the given event has been forced to disk. Whichever thread forces the current segment covers every
+     * event appended before it started, so threads waiting behind it usually find they have nothing left to do.
+     */
+    private void sync(long eventNumber) {
+        synchronized (syncLock) {
+            if (syncedEvents >= eventNumber) {
+                return;
+            }
+            MappedByteBuffer buffer;
+            long appended;
+            synchronized (this) {
+                buffer = segment;
+                appended = appendedEvents;
+            }
+            // Earlier segments were forced when they were rolled
+            buffer.force();
+            syncedEvents = appended;
+        }
+    }
+
+    /**
+     * Finishes the current segment (if any), and starts a new one. Must be called while synchronized on this journal.
+     */
+    private void roll() throws IOException {
+        closeSegment();
+        segmentNumber++;
+        segmentChannel = FileChannel.open(getSegmentPath(segmentNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+
+    private void closeSegment() throws IOException {
+        if (segmentChannel != null) {
+            segment.force();
+            segmentChannel.close();
+            segmentChannel = null;
+        }
+    }
+
+    private void recover() throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotPath)) {
+            readSnapshot(snapshotPath);
+        }
+        for (Path path : listSegments()) {
+            segmentNumber = Math.max(segmentNumber, getSegmentNumber(path));
+            replay(path);
+        }
+        LOGGER.info("Recovered booking journal with seat state for " + flights.size() + " flights");
+    }
+
+    /**
+     * Applies every complete event in the given segment. Stops at the end marker, or at the first event which is
+     * incomplete or corrupt.
+     */
+    private void replay(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_BYTES + PAYLOAD_HEADER_BYTES) {
+                int payloadBytes = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (payloadBytes < PAYLOAD_HEADER_BYTES || payloadBytes > buffer.remaining()) {
+                    break;
+                }
+
+                ByteBuffer payload = buffer.slice();
+                payload.limit(payloadBytes);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != expectedCrc) {
+                    LOGGER.warn("Ignoring corrupt journal event in " + path);
+                    break;
+                }
+                buffer.position(buffer.position() + payloadBytes);
+
+                long flightId = payload.getLong();
+                long version = payload.getLong();
+                boolean isBooked = payload.get() != 0;
+                int numSeats = payload.getShort();
+                int[] ordinals = new int[payload.getShort()];
+                for (int i = 0; i < ordinals.length; i++) {
+                    ordinals[i] = payload.getShort();
+                }
+                flights.computeIfAbsent(flightId, id -> new FlightState(numSeats)).apply(version, isBooked, ordinals);
+            }
+        }
+    }
+
+    private void readSnapshot(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a journal snapshot: " + path);
+            }
+            int numFlights = in.readInt();
+            for (int i = 0; i < numFlights; i++) {
+                long flightId = in.readLong();
+                long[] versions = new long[in.readInt()];
+                for (int seat = 0; seat < versions.length; seat++) {
+                    versions[seat] = in.readLong();
+                }
+                byte[] booked = new byte[in.readInt()];
+                in.readFully(booked);
+                flights.put(flightId, new FlightState(versions, BitSet.valueOf(booked)));
+            }
+        }
+    }
+
+    /**
+     * Writes the given seat state to a temporary file, then moves it over the previous snapshot, so that there's always
+     * a complete snapshot on disk.
+     */
+    private void writeSnapshot(Map<Long, FlightState> states) throws IOException {
+        Path tempPath = directory.resolve(SNAPSHOT_TEMP_FILE);
+        try (FileOutputStream file = new FileOutputStream(tempPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(states.size());
+            for (Map.Entry<Long, FlightState> entry : states.entrySet()) {
+                FlightState state = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeInt(state.versions.length);
+                for (long version : state.versions) {
+                    out.writeLong(version);
+                }
+                byte[] booked = state.booked.toByteArray();
+                out.writeInt(booked.length);
+                out.write(booked);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tempPath, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted(Comparator.comparingLong(BookingJournal::getSegmentNumber))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path getSegmentPath(long number) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static long getSegmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,904 @@
+package se325.flights.service;
+
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.ConstraintViolationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.flights.CabinClass;
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.domain.FlightBooking;
+import se325.flights.domain.IdempotencyRecord;
+import se325.flights.domain.IdempotencyRecord.Operation;
+import se325.flights.domain.Seat;
+import se325.flights.domain.SeatReservation;
+import se325.flights.domain.User;
+import se325.flights.util.ConfigUtils;
+
+import javax.persistence.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * A central place for making flight bookings, using the concurrency control strategy given by the booking.mode
+ * configuration value (see {@link BookingMode}). Singleton so that any resource instance can access the same booking
+ * service.
+ */
+public class BookingManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingManager.class);
+
+    private static BookingManager instance;
+
+    public static synchronized BookingManager instance() {
+        if (instance == null) {
+            instance = new BookingManager(ConfigUtils.getEnum("booking.mode", BookingMode.class,
+                    BookingMode.PESSIMISTIC));
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the singleton, so that integration tests can exercise every booking mode against the same running
+     * service (see {@link TestResource}). Bookings already in progress finish using the old instance.
+     *
+     * @param manager the BookingManager to use, or null to go back to one using the configured settings
+     */
+    public static synchronized void setInstance(BookingManager manager) {
+        if (instance != null && instance.queue != null) {
+            instance.queue.shutdown();
+        }
+        instance = manager;
+    }
+
+    /**
+     * A single booking within a batch passed to {@link #makeBookings(EntityManager, long, long, List)}.
+     */
+    public static class BatchItem {
+        private final List<String> seatCodes;
+        private final CabinClass cabinClass;
+        private final int numSeats;
+        private final boolean keepTogether;
+        private int[] claimed;
+        private FlightBooking booking;
+        private Exception failure;
+
+        /**
+         * Creates an item which books the given seats.
+         */
+        public BatchItem(List<String> seatCodes) {
+            this(seatCodes, null, 0, false);
+        }
+
+        /**
+         * Creates an item which books the given number of seats, picked by the server (see
+         * {@link #makeAssignedBooking}).
+         */
+        public BatchItem(CabinClass cabinClass, int numSeats, boolean keepTogether) {
+            this(null, cabinClass, numSeats, keepTogether);
+        }
+
+        private BatchItem(List<String> seatCodes, CabinClass cabinClass, int numSeats, boolean keepTogether) {
+            this.seatCodes = seatCodes;
+            this.cabinClass = cabinClass;
+            this.numSeats = numSeats;
+            this.keepTogether = keepTogether;
+        }
+
+        /**
+         * Gets the new (committed) booking, or null if the booking failed.
+         */
+        public FlightBooking getBooking() {
+            return booking;
+        }
+
+        /**
+         * Gets the reason the booking failed - a {@link NoResultException} if the flight doesn't exist, a
+         * {@link BookingException} if the seats couldn't be booked, or some other exception if the database couldn't
+         * complete the booking. Null if the booking succeeded.
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        private void failFrom(Exception e) {
+            if (failure == null) {
+                booking = null;
+                failure = e;
+            }
+        }
+    }
+
+    private final BookingMode mode;
+    private final int lockTimeoutMillis;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final boolean allocatorEnabled;
+    private final boolean journalEnabled;
+    private final BookingQueue queue;
+
+    /**
+     * Creates a BookingManager which uses the given booking mode, and the configured values of all other settings. The
+     * service itself uses the shared {@link #instance()}; this is for tests which compare booking modes directly.
+     */
+    public BookingManager(BookingMode mode) {
+        this(mode, ConfigUtils.getBoolean("booking.allocator.enabled", false));
+    }
+
+    /**
+     * Creates a BookingManager which uses the given booking mode, with or without the in-memory
+     * {@link SeatAllocator}, and the configured values of all other settings.
+     */
+    public BookingManager(BookingMode mode, boolean allocatorEnabled) {
+        this.mode = mode;
+        this.lockTimeoutMillis = ConfigUtils.getInt("booking.pessimistic.lockTimeoutMillis", 5000);
+        this.maxAttempts = Math.max(1, ConfigUtils.getInt("booking.optimistic.maxAttempts", 5));
+        this.backoffMillis = ConfigUtils.getLong("booking.optimistic.backoffMillis", 10);
+        this.allocatorEnabled = allocatorEnabled;
+        this.journalEnabled = BookingJournal.isEnabled();
+        this.queue = mode != BookingMode.QUEUED ? null : new BookingQueue(
+                ConfigUtils.getInt("booking.queue.threads", 4),
+                ConfigUtils.getInt("booking.queue.maxBatchSize", 32),
+                lockTimeoutMillis);
+
+        LOGGER.info("Using " + mode + " booking mode" + (allocatorEnabled ? " with the in-memory seat allocator" : ""));
+    }
+
+    public BookingMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Books the given seats on the given flight for the given user, in a new transaction.
+     * <p>
+     * If the in-memory {@link SeatAllocator} is enabled (booking.allocator.enabled), the seats are first claimed there,
+     * so that requests for seats which are already taken fail without touching the database. The claim is released
+     * again if the booking can't be committed.
+     *
+     * @param em        the {@link EntityManager} to use to access the database. Must not have an active transaction.
+     * @param userId    the id of the user making the booking
+     * @param flightId  the id of the flight to book
+     * @param seatCodes the seats to book
+     * @return the new (committed) booking
+     * @throws NoResultException if there's no flight with the given id
+     * @throws BookingException  if the booking is invalid, any of the seats are already booked, or (in optimistic mode)
+     *                           the booking couldn't be committed within the configured number of attempts
+     */
+    public FlightBooking makeBooking(EntityManager em, long userId, long flightId, List<String> seatCodes)
+            throws BookingException {
+        return makeBooking(em, userId, flightId, seatCodes, null);
+    }
+
+    /**
+     * Books the given seats on the given flight for the given user, in a new transaction, as for
+     * {@link #makeBooking(EntityManager, long, long, List)}. If an idempotency key is given, an
+     * {@link IdempotencyRecord} for it is saved in the same transaction.
+     *
+     * @param idempotencyKey the idempotency key sent with the request, or null if there wasn't one
+     * @throws PersistenceException if a booking has already been made with the given idempotency key
+     */
+    public FlightBooking makeBooking(EntityManager em, long userId, long flightId, List<String> seatCodes,
+                                     String idempotencyKey) throws BookingException {
+
+        int[] claimed = allocatorEnabled ? SeatAllocator.instance().claim(flightId, seatCodes) : null;
+        return makeClaimedBooking(em, userId, flightId, seatCodes, claimed, null, idempotencyKey);
+    }
+
+    /**
+     * Books the given number of seats of the given cabin class on the given flight for the given user, in a new
+     * transaction. The seats are picked by the server (see {@link Flight#assignSeats}) while the flight is locked, in
+     * every booking mode, so the picked seats can't be taken by another booking before they're booked.
+     * <p>
+     * If the in-memory {@link SeatAllocator} is enabled, seats claimed there by bookings which haven't yet committed
+     * aren't picked, and the picked seats are claimed there before they're booked.
+     *
+     * @param em             the {@link EntityManager} to use to access the database. Must not have an active
+     *                       transaction.
+     * @param userId         the id of the user making the booking
+     * @param flightId       the id of the flight to book
+     * @param cabinClass     the cabin class of the seats to book, or null for any cabin class
+     * @param numSeats       the number of seats to book
+     * @param keepTogether   whether the seats should be adjacent to each other
+     * @param idempotencyKey the idempotency key sent with the request, or null if there wasn't one
+     * @return the new (committed) booking
+     * @throws NoResultException if there's no flight with the given id
+     * @throws BookingException  if there aren't enough available seats (together, if required)
+     */
+    public FlightBooking makeAssignedBooking(EntityManager em, long userId, long flightId, CabinClass cabinClass,
+                                             int numSeats, boolean keepTogether, String idempotencyKey)
+            throws BookingException {
+
+        int[] claimed = null;
+        boolean committed = false;
+        try {
+            em.getTransaction().begin();
+
+            Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .setHint("javax.persistence.lock.timeout", lockTimeoutMillis)
+                    .setParameter("idLink", flightId)
+                    .getSingleResult();
+
+            BitSet heldSeats = SeatHoldManager.instance().getHeldSeats(flightId);
+            List<String> seatCodes = null;
+            for (int attempt = 1; seatCodes == null; attempt++) {
+                seatCodes = flight.assignSeats(cabinClass, numSeats, keepTogether, getUnavailableSeats(flightId));
+
+                if (allocatorEnabled) {
+                    // Unlocked bookings (in optimistic or seat mode) may have claimed some of the seats in the meantime
+                    try {
+                        claimed = SeatAllocator.instance().claim(flightId, seatCodes);
+                    } catch (BookingException e) {
+                        if (attempt >= maxAttempts) {
+                            throw e;
+                        }
+                        seatCodes = null;
+                    }
+                }
+            }
+
+            FlightBooking booking = flight.makeBooking(em.getReference(User.class, userId), seatCodes, heldSeats);
+            em.persist(booking);
+            saveIdempotencyRecord(em, userId, Operation.MAKE_BOOKING, idempotencyKey,
+                    IdempotencyManager.requestHash(flightId, cabinClass, numSeats, keepTogether), booking.getId());
+            em.getTransaction().commit();
+            committed = true;
+            bookingCommitted(booking);
+
+            return booking;
+
+        } finally {
+            rollbackIfActive(em);
+            if (claimed != null && !committed) {
+                SeatAllocator.instance().release(flightId, claimed);
+            }
+        }
+    }
+
+    /**
+     * Gets the seats on the given flight which can't be booked right now, even though they aren't marked as booked in
+     * the flight's seat occupancy bitmap - i.e. held seats, and (if the {@link SeatAllocator} is enabled) seats claimed
+     * by bookings which haven't yet committed.
+     *
+     * @param flightId the id of the flight
+     * @return a bitmap of unavailable seat ordinals
+     * @throws NoResultException if there's no flight with the given id
+     */
+    public BitSet getUnavailableSeats(long flightId) {
+        BitSet unavailable = SeatHoldManager.instance().getHeldSeats(flightId);
+        if (allocatorEnabled) {
+            unavailable.or(SeatAllocator.instance().getClaimedSeats(flightId));
+        }
+        return unavailable;
+    }
+
+    /**
+     * Places a hold on the given seats on the given flight for the given user (see {@link SeatHoldManager}). If the
+     * in-memory {@link SeatAllocator} is enabled, the seats are claimed there for as long as the hold lasts.
+     * <p>
+     * The hold is placed while holding a write lock on the flight's row, so it can't be placed on seats which a
+     * concurrent booking is about to book: pessimistic and queued bookings check the holds while holding the same lock,
+     * seat-level bookings re-check them once they've locked the flight, and the lock also increments the flight's
+     * version, so optimistic bookings which read the holds before this one was placed fail at commit and retry.
+     *
+     * @param em        the {@link EntityManager} to use to access the database. Must not have an active transaction.
+     * @param userId    the id of the user placing the hold
+     * @param flightId  the id of the flight
+     * @param seatCodes the seats to hold
+     * @return the new hold
+     * @throws NoResultException if there's no flight with the given id
+     * @throws BookingException  if the hold is invalid, or any of the seats are already booked or held
+     */
+    public SeatHold placeHold(EntityManager em, long userId, long flightId, List<String> seatCodes)
+            throws BookingException {
+
+        int[] claimed = allocatorEnabled ? SeatAllocator.instance().claim(flightId, seatCodes) : null;
+        SeatHold hold = null;
+        boolean held = false;
+        try {
+            em.getTransaction().begin();
+
+            Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                    .setLockMode(LockModeType.PESSIMISTIC_FORCE_INCREMENT)
+                    .setHint("javax.persistence.lock.timeout", lockTimeoutMillis)
+                    .setParameter("idLink", flightId)
+                    .getSingleResult();
+
+            hold = SeatHoldManager.instance().placeHold(flight, userId, seatCodes, claimed);
+            em.getTransaction().commit();
+            held = true;
+            return hold;
+
+        } finally {
+            rollbackIfActive(em);
+            if (!held) {
+                if (hold != null) {
+                    SeatHoldManager.instance().discardHold(hold);
+                }
+                if (claimed != null) {
+                    SeatAllocator.instance().release(flightId, claimed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the given user's hold with the given id into a booking, in a new transaction. The hold stays in place
+     * while the booking is made, so its seats can't be booked by anyone else in the meantime. It's removed once the
+     * booking has committed, and left in place (to be confirmed again, released, or left to expire) if it fails.
+     *
+     * @param em     the {@link EntityManager} to use to access the database. Must not have an active transaction.
+     * @param userId the id of the user who placed the hold
+     * @param holdId the id of the hold to confirm
+     * @return the new (committed) booking
+     * @throws NoResultException if there's no unexpired hold with the given id belonging to the given user
+     * @throws BookingException  if the booking couldn't be made (see
+     *                           {@link #makeBooking(EntityManager, long, long, List)})
+     */
+    public FlightBooking confirmHold(EntityManager em, long userId, String holdId) throws BookingException {
+        SeatHold hold = SeatHoldManager.instance().beginConfirm(holdId, userId);
+        boolean committed = false;
+        try {
+            // The hold keeps its claim if the booking fails, and the booking takes it over if it commits
+            FlightBooking booking = makeClaimedBooking(em, userId, hold.getFlightId(), hold.getSeatCodes(), null,
+                    hold, null);
+            committed = true;
+            SeatHoldManager.instance().discardHold(hold);
+            return booking;
+
+        } finally {
+            if (!committed) {
+                SeatHoldManager.instance().endConfirm(hold);
+            }
+        }
+    }
+
+    /**
+     * Makes a booking whose seats have already been claimed in the {@link SeatAllocator} (if it's enabled). The claim
+     * (if given) is released if the booking can't be committed. If the booking confirms a hold, that hold's seats
+     * aren't treated as held.
+     */
+    private FlightBooking makeClaimedBooking(EntityManager em, long userId, long flightId, List<String> seatCodes,
+                                             int[] claimed, SeatHold hold, String idempotencyKey)
+            throws BookingException {
+
+        boolean committed = false;
+        try {
+            FlightBooking booking;
+            switch (mode) {
+                case OPTIMISTIC:
+                    booking = makeOptimisticBooking(em, userId, flightId, seatCodes, hold, idempotencyKey);
+                    break;
+                case SEAT:
+                    booking = makeSeatLevelBooking(em, userId, flightId, seatCodes, hold, idempotencyKey);
+                    break;
+                case QUEUED:
+                    booking = BookingQueue.await(
+                            queue.submitBooking(userId, flightId, seatCodes, hold, idempotencyKey));
+                    break;
+                default:
+                    booking = makePessimisticBooking(em, userId, flightId, seatCodes, hold, idempotencyKey);
+            }
+            committed = true;
+            bookingCommitted(booking);
+            return booking;
+
+        } finally {
+            if (claimed != null && !committed) {
+                SeatAllocator.instance().release(flightId, claimed);
+            }
+        }
+    }
+
+    /**
+     * Makes several bookings on the same flight for the given user. Each item succeeds or fails independently: on
+     * return, every item has either a booking or a failure.
+     * <p>
+     * In pessimistic mode, items for requested seats are booked in a single transaction which locks the flight once.
+     * Seats are validated against the locked flight, so the only conflicts which can't be detected up front are seat
+     * reservations inserted by concurrent seat-level bookings which haven't yet been merged into the flight. If one of
+     * those causes the transaction to fail, the batch falls back to booking each item which hasn't already failed in
+     * its own transaction - including the items after the one whose insert failed.
+     * <p>
+     * In every other mode, and for server-assigned items, each item is booked in turn exactly as if it had been
+     * requested on its own (see {@link #makeBooking} and {@link #makeAssignedBooking}) - so a batch never bypasses the
+     * configured mode. Items for requested seats are booked before server-assigned items, so that the server doesn't
+     * pick seats which are requested later in the same batch.
+     *
+     * @param em       the {@link EntityManager} to use to access the database. Must not have an active transaction.
+     * @param userId   the id of the user making the bookings
+     * @param flightId the id of the flight to book
+     * @param items    the bookings to make
+     */
+    public void makeBookings(EntityManager em, long userId, long flightId, List<BatchItem> items) {
+        List<BatchItem> assigned = new ArrayList<>();
+        List<BatchItem> requested = new ArrayList<>();
+        for (BatchItem item : items) {
+            (item.seatCodes == null ? assigned : requested).add(item);
+        }
+
+        if (mode == BookingMode.PESSIMISTIC) {
+            makeLockedBookings(em, userId, flightId, requested);
+        } else {
+            requested.forEach(item -> makeItemBooking(em, userId, flightId, item));
+        }
+        assigned.forEach(item -> makeItemBooking(em, userId, flightId, item));
+    }
+
+    /**
+     * Books a single batch item in its own transaction, using the configured booking mode.
+     */
+    private void makeItemBooking(EntityManager em, long userId, long flightId, BatchItem item) {
+        try {
+            item.booking = item.seatCodes == null
+                    ? makeAssignedBooking(em, userId, flightId, item.cabinClass, item.numSeats, item.keepTogether, null)
+                    : makeBooking(em, userId, flightId, item.seatCodes);
+        } catch (BookingException | PersistenceException e) {
+            item.failure = e;
+        }
+    }
+
+    /**
+     * Books the given items in a single transaction which locks the flight once (see
+     * {@link #makeBookings(EntityManager, long, long, List)}).
+     */
+    private void makeLockedBookings(EntityManager em, long userId, long flightId, List<BatchItem> items) {
+        List<BatchItem> pending = new ArrayList<>();
+        for (BatchItem item : items) {
+            if (allocatorEnabled) {
+                try {
+                    item.claimed = SeatAllocator.instance().claim(flightId, item.seatCodes);
+                } catch (BookingException | NoResultException e) {
+                    item.failure = e;
+                    continue;
+                }
+            }
+            pending.add(item);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        boolean committed = false;
+        try {
+            em.getTransaction().begin();
+
+            Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .setHint("javax.persistence.lock.timeout", lockTimeoutMillis)
+                    .setParameter("idLink", flightId)
+                    .getSingleResult();
+
+            User user = em.getReference(User.class, userId);
+            BitSet heldSeats = SeatHoldManager.instance().getHeldSeats(flightId);
+            for (BatchItem item : pending) {
+                try {
+                    item.booking = flight.makeBooking(user, item.seatCodes, heldSeats);
+                    em.persist(item.booking);
+                } catch (BookingException e) {
+                    item.failure = e;
+                }
+            }
+            em.getTransaction().commit();
+            committed = true;
+            for (BatchItem item : pending) {
+                if (item.booking != null) {
+                    bookingCommitted(item.booking);
+                }
+            }
+
+        } catch (NoResultException e) {
+            pending.forEach(item -> item.failure = e);
+
+        } catch (PersistenceException e) {
+            if (!isConstraintViolation(e)) {
+                pending.forEach(item -> item.failFrom(e));
+                return;
+            }
+            rollbackIfActive(em);
+            em.clear();
+            LOGGER.debug("Seat conflict in batch booking flight " + flightId + ", booking items individually");
+
+            // Includes items which were never booked because an earlier item's insert failed, as well as those which
+            // were rolled back
+            for (BatchItem item : pending) {
+                if (item.failure != null) {
+                    continue;
+                }
+                releaseClaim(flightId, item);
+                item.booking = null;
+                try {
+                    item.booking = makeBooking(em, userId, flightId, item.seatCodes);
+                } catch (BookingException | PersistenceException ex) {
+                    item.failure = ex;
+                }
+            }
+
+        } finally {
+            rollbackIfActive(em);
+            for (BatchItem item : pending) {
+                if (!committed || item.booking == null) {
+                    releaseClaim(flightId, item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the given user's booking with the given id, in a new transaction. The booking's flight is locked while
+     * its seats are marked as unbooked, in every booking mode.
+     *
+     * @param em        the {@link EntityManager} to use to access the database. Must not have an active transaction.
+     * @param userId    the id of the user who made the booking
+     * @param bookingId the id of the booking to cancel
+     * @return the id of the cancelled booking's flight
+     * @throws NoResultException if there's no booking with the given id belonging to the given user
+     */
+    public long cancelBooking(EntityManager em, long userId, long bookingId) {
+        return cancelBooking(em, userId, bookingId, null);
+    }
+
+    /**
+     * Cancels the given user's booking with the given id, in a new transaction, as for
+     * {@link #cancelBooking(EntityManager, long, long)}. If an idempotency key is given, an {@link IdempotencyRecord}
+     * for it is saved in the same transaction.
+     *
+     * @param idempotencyKey the idempotency key sent with the request, or null if there wasn't one
+     * @throws PersistenceException if a booking has already been cancelled with the given idempotency key
+     */
+    public long cancelBooking(EntityManager em, long userId, long bookingId, String idempotencyKey) {
+        if (mode == BookingMode.QUEUED) {
+            return cancelQueuedBooking(em, userId, bookingId, idempotencyKey);
+        }
+        try {
+            em.getTransaction().begin();
+
+            FlightBooking booking = em.createQuery(
+                            "select b from FlightBooking b where (b.id = :idLink)"
+                            + "and (b.user.id = :userLink)"
+                            , FlightBooking.class)
+                    .setParameter("idLink", bookingId)
+                    .setParameter("userLink", userId)
+                    .getSingleResult();
+
+            Flight flight = booking.getFlight();
+            long flightId = flight.getId();
+            List<String> seatCodes = booking.getSeats().stream().map(Seat::getSeatCode).collect(Collectors.toList());
+            if (allocatorEnabled) {
+                SeatAllocator.instance().load(flightId);
+            }
+
+            em.refresh(flight, LockModeType.PESSIMISTIC_WRITE,
+                    Map.of("javax.persistence.lock.timeout", lockTimeoutMillis));
+            flight.removeBooking(booking);
+            em.remove(booking);
+            saveIdempotencyRecord(em, userId, Operation.CANCEL_BOOKING, idempotencyKey,
+                    IdempotencyManager.requestHash(bookingId), bookingId);
+            em.getTransaction().commit();
+
+            if (allocatorEnabled) {
+                SeatAllocator.instance().release(flightId, seatCodes);
+            }
+            cancellationCommitted(flight, seatCodes);
+            return flightId;
+
+        } finally {
+            rollbackIfActive(em);
+        }
+    }
+
+    /**
+     * Cancels a booking by queueing the cancellation on its flight's {@link BookingQueue}.
+     */
+    private long cancelQueuedBooking(EntityManager em, long userId, long bookingId, String idempotencyKey) {
+        FlightBooking booking = em.createQuery(
+                        "select b from FlightBooking b where (b.id = :idLink)"
+                        + "and (b.user.id = :userLink)"
+                        , FlightBooking.class)
+                .setParameter("idLink", bookingId)
+                .setParameter("userLink", userId)
+                .getSingleResult();
+
+        long flightId = booking.getFlight().getId();
+        List<String> seatCodes = booking.getSeats().stream().map(Seat::getSeatCode).collect(Collectors.toList());
+        if (allocatorEnabled) {
+            SeatAllocator.instance().load(flightId);
+        }
+
+        Flight flight;
+        try {
+            flight = BookingQueue.await(queue.submitCancellation(userId, flightId, bookingId, idempotencyKey));
+        } catch (BookingException e) {
+            // Only thrown if interrupted while waiting, in which case the cancellation may still go ahead
+            throw new PersistenceException(e.getMessage(), e);
+        }
+
+        if (allocatorEnabled) {
+            SeatAllocator.instance().release(flightId, seatCodes);
+        }
+        cancellationCommitted(flight, seatCodes);
+        return flightId;
+    }
+
+    /**
+     * Cancels several of the given user's bookings, possibly on different flights, in a single transaction. Either all
+     * of the bookings are cancelled, or none of them are. Each affected flight is locked once, in order of id (so that
+     * two bulk cancellations can't deadlock), while its seats are marked as unbooked - in every booking mode.
+     *
+     * @param em         the {@link EntityManager} to use to access the database. Must not have an active transaction.
+     * @param userId     the id of the user who made the bookings
+     * @param bookingIds the ids of the bookings to cancel. Duplicates are ignored.
+     * @return the ids of the cancelled bookings' flights, in ascending order
+     * @throws NoResultException if any of the bookings don't exist, or don't belong to the given user
+     */
+    public SortedSet<Long> cancelBookings(EntityManager em, long userId, Collection<Long> bookingIds) {
+        Set<Long> distinctIds = new HashSet<>(bookingIds);
+        try {
+            em.getTransaction().begin();
+
+            List<FlightBooking> bookings = em.createQuery(
+                            "select b from FlightBooking b where (b.id in :idsLink)"
+                            + "and (b.user.id = :userLink)"
+                            , FlightBooking.class)
+                    .setParameter("idsLink", distinctIds)
+                    .setParameter("userLink", userId)
+                    .getResultList();
+            if (bookings.size() != distinctIds.size()) {
+                throw new NoResultException("One or more bookings not found");
+            }
+
+            SortedMap<Long, List<FlightBooking>> bookingsByFlight = new TreeMap<>();
+            for (FlightBooking booking : bookings) {
+                bookingsByFlight.computeIfAbsent(booking.getFlight().getId(), id -> new ArrayList<>()).add(booking);
+            }
+
+            Map<Long, List<String>> seatCodesByFlight = new HashMap<>();
+            for (Map.Entry<Long, List<FlightBooking>> flightBookings : bookingsByFlight.entrySet()) {
+                long flightId = flightBookings.getKey();
+                Flight flight = flightBookings.getValue().get(0).getFlight();
+                if (allocatorEnabled) {
+                    SeatAllocator.instance().load(flightId);
+                }
+
+                em.refresh(flight, LockModeType.PESSIMISTIC_WRITE,
+                        Map.of("javax.persistence.lock.timeout", lockTimeoutMillis));
+                List<String> seatCodes = new ArrayList<>();
+                for (FlightBooking booking : flightBookings.getValue()) {
+                    booking.getSeats().forEach(seat -> seatCodes.add(seat.getSeatCode()));
+                    flight.removeBooking(booking);
+                    em.remove(booking);
+                }
+                seatCodesByFlight.put(flightId, seatCodes);
+            }
+            em.getTransaction().commit();
+
+            seatCodesByFlight.forEach((flightId, seatCodes) -> {
+                if (allocatorEnabled) {
+                    SeatAllocator.instance().release(flightId, seatCodes);
+                }
+                // Still managed, so this is the flight instance which was just updated
+                cancellationCommitted(em.find(Flight.class, flightId), seatCodes);
+            });
+            return new TreeSet<>(bookingsByFlight.keySet());
+
+        } finally {
+            rollbackIfActive(em);
+        }
+    }
+
+    /**
+     * Makes a booking while holding a write lock on the flight's row.
+     */
+    private FlightBooking makePessimisticBooking(EntityManager em, long userId, long flightId, List<String> seatCodes,
+                                                 SeatHold hold, String idempotencyKey) throws BookingException {
+
+        try {
+            em.getTransaction().begin();
+
+            Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .setHint("javax.persistence.lock.timeout", lockTimeoutMillis)
+                    .setParameter("idLink", flightId)
+                    .getSingleResult();
+
+            FlightBooking booking = flight.makeBooking(em.getReference(User.class, userId), seatCodes,
+                    SeatHoldManager.instance().getHeldSeats(flightId, hold));
+            em.persist(booking);
+            saveIdempotencyRecord(em, userId, Operation.MAKE_BOOKING, idempotencyKey,
+                    IdempotencyManager.requestHash(flightId, seatCodes), booking.getId());
+            em.getTransaction().commit();
+
+            return booking;
+
+        } finally {
+            rollbackIfActive(em);
+        }
+    }
+
+    /**
+     * Makes a booking without locking the flight's row. If another booking on the same flight commits first, the
+     * flight's version will have changed and this booking's commit will fail - in which case the booking is retried
+     * against fresh flight state, after a random delay which grows with each attempt.
+     */
+    private FlightBooking makeOptimisticBooking(EntityManager em, long userId, long flightId, List<String> seatCodes,
+                                                SeatHold hold, String idempotencyKey) throws BookingException {
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                em.getTransaction().begin();
+
+                Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                        .setParameter("idLink", flightId)
+                        .getSingleResult();
+
+                FlightBooking booking = flight.makeBooking(em.getReference(User.class, userId), seatCodes,
+                        SeatHoldManager.instance().getHeldSeats(flightId, hold));
+                try {
+                    // Inserts the booking's seat reservations straight away, so a concurrent booking which has already
+                    // claimed any of the seats is found here rather than by the version check at commit
+                    em.persist(booking);
+                } catch (PersistenceException e) {
+                    if (e.getCause() instanceof ConstraintViolationException) {
+                        throw new BookingException("One or more seats are already booked");
+                    }
+                    throw e;
+                }
+                saveIdempotencyRecord(em, userId, Operation.MAKE_BOOKING, idempotencyKey,
+                        IdempotencyManager.requestHash(flightId, seatCodes), booking.getId());
+                em.getTransaction().commit();
+
+                return booking;
+
+            } catch (OptimisticLockException | RollbackException e) {
+                if (!isVersionConflict(e)) {
+                    throw e;
+                }
+                rollbackIfActive(em);
+                em.clear();
+
+                if (attempt >= maxAttempts) {
+                    throw new BookingException("Booking could not be completed due to concurrent bookings");
+                }
+                LOGGER.debug("Version conflict booking flight " + flightId + " (attempt " + attempt + "), retrying");
+                backoff(attempt);
+
+            } finally {
+                rollbackIfActive(em);
+            }
+        }
+    }
+
+    /**
+     * Makes a booking by claiming each seat individually. The booking is validated against an unlocked read of the
+     * flight, and then inserted along with its {@link SeatReservation}s - at which point the database's unique
+     * constraint on (flight, seat) rejects it if any seat has been claimed by a concurrent booking. Only once the seats
+     * are safely claimed (and everything else has been written) is the flight row locked and re-read, so that the
+     * booked seats can be merged into its seat occupancy bitmap without losing concurrent updates.
+     * <p>
+     * That lock is still a point of serialization, but a short one: it's held only for a single-row update and the
+     * commit, and conflicting bookings have already failed without waiting for it. It's kept because the bitmap has to
+     * be current in the same transaction - server-assigned and batch bookings pick and validate seats against it, seat
+     * counts and fare calendars are read from it, and the new flight version orders this booking's event in the
+     * {@link BookingJournal}.
+     */
+    private FlightBooking makeSeatLevelBooking(EntityManager em, long userId, long flightId, List<String> seatCodes,
+                                               SeatHold hold, String idempotencyKey) throws BookingException {
+
+        try {
+            em.getTransaction().begin();
+
+            Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                    .setParameter("idLink", flightId)
+                    .getSingleResult();
+
+            FlightBooking booking = flight.makeBooking(em.getReference(User.class, userId), seatCodes,
+                    SeatHoldManager.instance().getHeldSeats(flightId, hold));
+            try {
+                // Identity ids mean this inserts the booking and its seat reservations straight away, without flushing
+                // the (unlocked, possibly stale) flight
+                em.persist(booking);
+            } catch (PersistenceException e) {
+                if (e.getCause() instanceof ConstraintViolationException) {
+                    throw new BookingException("One ore more seats are already booked");
+                }
+                throw e;
+            }
+
+            saveIdempotencyRecord(em, userId, Operation.MAKE_BOOKING, idempotencyKey,
+                    IdempotencyManager.requestHash(flightId, seatCodes), booking.getId());
+
+            em.refresh(flight, LockModeType.PESSIMISTIC_WRITE,
+                    Map.of("javax.persistence.lock.timeout", lockTimeoutMillis));
+            // A hold may have been placed on the seats since they were first checked, while the flight was unlocked
+            flight.ensureAvailable(seatCodes, SeatHoldManager.instance().getHeldSeats(flightId, hold));
+            flight.occupySeats(booking);
+            em.getTransaction().commit();
+
+            return booking;
+
+        } finally {
+            rollbackIfActive(em);
+        }
+    }
+
+    /**
+     * Records a committed booking in the {@link BookingJournal}, if it's enabled, and discards any cached search
+     * results and fare calendars showing the flight's old seat counts.
+     */
+    private void bookingCommitted(FlightBooking booking) {
+        if (journalEnabled) {
+            BookingJournal.instance().recordBooking(booking);
+        }
+        invalidateSeatsRemaining(booking.getFlight());
+    }
+
+    /**
+     * Records a committed cancellation in the {@link BookingJournal}, if it's enabled, and discards any cached search
+     * results and fare calendars showing the flight's old seat counts.
+     */
+    private void cancellationCommitted(Flight flight, List<String> seatCodes) {
+        if (journalEnabled) {
+            BookingJournal.instance().recordCancellation(flight, seatCodes);
+        }
+        invalidateSeatsRemaining(flight);
+    }
+
+    private static void invalidateSeatsRemaining(Flight flight) {
+        SearchCache.instance().invalidateSeatsRemaining(flight.getOrigin().getId(), flight.getDestination().getId());
+        FareCalendar.instance().invalidate(flight.getOrigin().getId(), flight.getDestination().getId(),
+                flight.getDepartureTime());
+    }
+
+    private static void saveIdempotencyRecord(EntityManager em, long userId, Operation operation,
+                                              String idempotencyKey, String requestHash, long bookingId) {
+        if (idempotencyKey != null) {
+            em.persist(new IdempotencyRecord(userId, operation, idempotencyKey, requestHash, bookingId));
+        }
+    }
+
+    private static void releaseClaim(long flightId, BatchItem item) {
+        if (item.claimed != null) {
+            SeatAllocator.instance().release(flightId, item.claimed);
+            item.claimed = null;
+        }
+    }
+
+    private static boolean isConstraintViolation(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ConstraintViolationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sleeps for a random amount of time between 0 and (backoffMillis * 2 ^ (attempt - 1)) ms. Randomizing the delay
+     * stops conflicting requests from retrying in lockstep and conflicting again.
+     */
+    private void backoff(int attempt) throws BookingException {
+        long maxDelay = backoffMillis << Math.min(attempt - 1, 16);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BookingException("Interrupted while retrying booking");
+        }
+    }
+
+    private static boolean isVersionConflict(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof OptimisticLockException || t instanceof StaleStateException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void rollbackIfActive(EntityManager em) {
+        if (em.getTransaction().isActive()) {
+            em.getTransaction().rollback();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package se325.flights.service;
+
+/**
+ * The available strategies for preventing double-bookings when several users book seats on the same flight at once.
+ * The strategy in use is chosen by the booking.mode configuration value (see flights.properties).
+ */
+public enum BookingMode {
+
+    /**
+     * Each booking locks its flight's row (SELECT ... FOR UPDATE) for the duration of its transaction, so bookings on
+     * the same flight are applied one at a time.
+     */
+    PESSIMISTIC,
+
+    /**
+     * Bookings don't lock anything. Instead, a booking which commits after another booking on the same flight has
+     * changed that flight's version is rolled back and retried, after a short random delay.
+     */
+    OPTIMISTIC,
+
+    /**
+     * Bookings claim their seats by inserting {@link se325.flights.domain.SeatReservation} rows, without locking the
+     * flight. The unique constraint on those rows makes the database reject double-bookings, so bookings for different
+     * seats on the same flight proceed in parallel. The flight's row is only locked at the very end of the transaction,
+     * to merge the booked seats into its seat occupancy bitmap.
+     */
+    SEAT,
+
+    /**
+     * Bookings and cancellations are queued per flight, and applied by a single writer thread per flight (see
+     * {@link BookingQueue}), which applies all the commands waiting for a flight in one transaction that locks the
+     * flight once. Request threads wait for their command's outcome.
+     */
+    QUEUED
+}
@@ -0,0 +1,313 @@
+package se325.flights.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.domain.FlightBooking;
+import se325.flights.domain.IdempotencyRecord;
+import se325.flights.domain.IdempotencyRecord.Operation;
+import se325.flights.domain.User;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Applies booking and cancellation commands one flight at a time, in the order they were submitted. Each flight has its
+ * own queue of commands, which is drained by at most one thread at a time - so commands for the same flight never
+ * compete with each other for the flight's row lock. Instead, the draining thread takes all commands waiting for the
+ * flight (up to a maximum batch size), and applies them in a single transaction which locks the flight once.
+ * <p>
+ * Each command succeeds or fails independently. A command which fails validation (e.g. because its seats are already
+ * booked) is simply left out of the transaction. If the transaction as a whole fails for any other reason (e.g. a
+ * constraint violation when it's flushed or committed), each of its remaining commands is re-applied in a transaction
+ * of its own, so that one bad command can't fail the others.
+ * <p>
+ * Callers wait for their command's outcome on the returned {@link CompletableFuture}.
+ */
+public class BookingQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookingQueue.class);
+
+    /**
+     * A command waiting to be applied to a flight
+     */
+    private abstract static class Command<T> {
+        final long userId;
+        final String idempotencyKey;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        T value;
+
+        Command(long userId, String idempotencyKey) {
+            this.userId = userId;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        /**
+         * Applies this command to the given (locked) flight, within the given EntityManager's transaction, and stores
+         * its result in {@link #value}.
+         */
+        abstract void apply(EntityManager em, Flight flight) throws BookingException;
+    }
+
+    private static class BookCommand extends Command<FlightBooking> {
+        final List<String> seatCodes;
+
+        /**
+         * The hold being confirmed by this booking, whose seats it may book, or null
+         */
+        final SeatHold hold;
+
+        BookCommand(long userId, List<String> seatCodes, SeatHold hold, String idempotencyKey) {
+            super(userId, idempotencyKey);
+            this.seatCodes = seatCodes;
+            this.hold = hold;
+        }
+
+        @Override
+        void apply(EntityManager em, Flight flight) throws BookingException {
+            FlightBooking booking = flight.makeBooking(em.getReference(User.class, userId), seatCodes,
+                    SeatHoldManager.instance().getHeldSeats(flight.getId(), hold));
+            em.persist(booking);
+            if (idempotencyKey != null) {
+                em.persist(new IdempotencyRecord(userId, Operation.MAKE_BOOKING, idempotencyKey,
+                        IdempotencyManager.requestHash(flight.getId(), seatCodes), booking.getId()));
+            }
+            value = booking;
+        }
+    }
+
+    private static class CancelCommand extends Command<Flight> {
+        final long bookingId;
+
+        CancelCommand(long userId, long bookingId, String idempotencyKey) {
+            super(userId, idempotencyKey);
+            this.bookingId = bookingId;
+        }
+
+        @Override
+        void apply(EntityManager em, Flight flight) {
+            FlightBooking booking = em.createQuery(
+                            "select b from FlightBooking b where (b.id = :idLink) and (b.user.id = :userLink) "
+                            + "and (b.flight = :flightLink)", FlightBooking.class)
+                    .setParameter("idLink", bookingId)
+                    .setParameter("userLink", userId)
+                    .setParameter("flightLink", flight)
+                    .getSingleResult();
+
+            flight.removeBooking(booking);
+            em.remove(booking);
+            if (idempotencyKey != null) {
+                em.persist(new IdempotencyRecord(userId, Operation.CANCEL_BOOKING, idempotencyKey,
+                        IdempotencyManager.requestHash(bookingId), bookingId));
+            }
+            value = flight;
+        }
+    }
+
+    /**
+     * The commands waiting for a single flight, and whether a thread has been scheduled to drain them
+     */
+    private static class FlightQueue {
+        final Queue<Command<?>> commands = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+    }
+
+    private final ConcurrentMap<Long, FlightQueue> flights = new ConcurrentHashMap<>();
+    private final ExecutorService threadPool;
+    private final int maxBatchSize;
+    private final int lockTimeoutMillis;
+
+    /**
+     * Creates a new BookingQueue
+     *
+     * @param numThreads        the number of threads draining flight queues. Each flight is drained by at most one
+     *                          thread at a time, so this is the maximum number of flights being written concurrently.
+     * @param maxBatchSize      the maximum number of commands to apply in a single transaction
+     * @param lockTimeoutMillis how long to wait for a flight's row lock, which may be held by bookings made outside
+     *                          this queue (e.g. by the batch booking endpoint)
+     */
+    public BookingQueue(int numThreads, int maxBatchSize, int lockTimeoutMillis) {
+        this.threadPool = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r, "booking-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lockTimeoutMillis = lockTimeoutMillis;
+    }
+
+    /**
+     * Queues a booking of the given seats on the given flight for the given user.
+     *
+     * @return a future which completes with the new (committed) booking, or exceptionally with a
+     * {@link NoResultException} if the flight doesn't exist, a {@link BookingException} if the seats can't be booked,
+     * or a {@link PersistenceException} if the booking couldn't be committed.
+     */
+    public CompletableFuture<FlightBooking> submitBooking(long userId, long flightId, List<String> seatCodes,
+                                                          String idempotencyKey) {
+        return submitBooking(userId, flightId, seatCodes, null, idempotencyKey);
+    }
+
+    /**
+     * Queues a booking of the given seats on the given flight for the given user, as for
+     * {@link #submitBooking(long, long, List, String)}, which confirms the given hold.
+     *
+     * @param hold the hold being confirmed, whose seats aren't treated as held for this booking, or null
+     */
+    public CompletableFuture<FlightBooking> submitBooking(long userId, long flightId, List<String> seatCodes,
+                                                          SeatHold hold, String idempotencyKey) {
+        return submit(flightId, new BookCommand(userId, seatCodes, hold, idempotencyKey));
+    }
+
+    /**
+     * Queues a cancellation of the given user's booking with the given id, which is on the given flight.
+     *
+     * @return a future which completes with the (committed) flight, or exceptionally with a
+     * {@link NoResultException} if there's no such booking on the flight belonging to the user, or a
+     * {@link PersistenceException} if the cancellation couldn't be committed.
+     */
+    public CompletableFuture<Flight> submitCancellation(long userId, long flightId, long bookingId,
+                                                        String idempotencyKey) {
+        return submit(flightId, new CancelCommand(userId, bookingId, idempotencyKey));
+    }
+
+    /**
+     * Stops the writer threads once the flights already scheduled to be drained have been. Commands submitted
+     * afterwards are rejected.
+     */
+    public void shutdown() {
+        threadPool.shutdown();
+    }
+
+    /**
+     * Waits for the given future, and returns its result. Unwraps any exception it completed with.
+     *
+     * @throws BookingException if the command failed with a {@link BookingException}, or the wait was interrupted
+     */
+    public static <T> T await(CompletableFuture<T> future) throws BookingException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BookingException("Interrupted while waiting for booking");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BookingException) {
+                throw (BookingException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(long flightId, Command<T> command) {
+        FlightQueue queue = flights.computeIfAbsent(flightId, id -> new FlightQueue());
+        queue.commands.add(command);
+        scheduleDrain(flightId, queue);
+        return command.result;
+    }
+
+    private void scheduleDrain(long flightId, FlightQueue queue) {
+        if (!queue.commands.isEmpty() && queue.draining.compareAndSet(false, true)) {
+            threadPool.submit(() -> drain(flightId, queue));
+        }
+    }
+
+    /**
+     * Applies batches of commands from the given flight's queue until it's empty. Only ever run by one thread at a time
+     * per flight.
+     */
+    private void drain(long flightId, FlightQueue queue) {
+        try {
+            List<Command<?>> batch = new ArrayList<>();
+            Command<?> command;
+            while ((command = queue.commands.poll()) != null) {
+                batch.add(command);
+                // Ending the transaction after each cancellation gives any later booking of the same seats a newer
+                // flight version, which the BookingJournal relies on to order events
+                if (batch.size() >= maxBatchSize || command instanceof CancelCommand) {
+                    applyBatch(flightId, batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                applyBatch(flightId, batch);
+            }
+        } finally {
+            queue.draining.set(false);
+            // A command may have been added after the queue was found empty, but before draining was cleared
+            scheduleDrain(flightId, queue);
+        }
+    }
+
+    private void applyBatch(long flightId, List<Command<?>> batch) {
+        List<Command<?>> applied = new ArrayList<>();
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            Flight flight = lockFlight(em, flightId);
+
+            for (Command<?> command : batch) {
+                try {
+                    command.apply(em, flight);
+                    applied.add(command);
+                } catch (BookingException | NoResultException e) {
+                    command.result.completeExceptionally(e);
+                }
+            }
+            em.getTransaction().commit();
+            applied.forEach(BookingQueue::complete);
+
+        } catch (NoResultException e) {
+            batch.forEach(command -> command.result.completeExceptionally(e));
+
+        } catch (RuntimeException e) {
+            rollbackIfActive(em);
+            if (batch.size() == 1) {
+                batch.get(0).result.completeExceptionally(e);
+                return;
+            }
+            // Nothing in the batch was committed, so re-apply every command which hasn't already failed validation -
+            // including any which weren't reached - in its own transaction. Only the command at fault then fails.
+            LOGGER.debug("Batch of " + batch.size() + " commands on flight " + flightId
+                    + " failed, applying individually", e);
+            for (Command<?> command : batch) {
+                if (!command.result.isDone()) {
+                    applyBatch(flightId, List.of(command));
+                }
+            }
+
+        } finally {
+            rollbackIfActive(em);
+            em.close();
+        }
+    }
+
+    private Flight lockFlight(EntityManager em, long flightId) {
+        return em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .setHint("javax.persistence.lock.timeout", lockTimeoutMillis)
+                .setParameter("idLink", flightId)
+                .getSingleResult();
+    }
+
+    private static <T> void complete(Command<T> command) {
+        command.result.complete(command.value);
+    }
+
+    private static void rollbackIfActive(EntityManager em) {
+        if (em.getTransaction().isActive()) {
+            em.getTransaction().rollback();
+        }
+    }
+}
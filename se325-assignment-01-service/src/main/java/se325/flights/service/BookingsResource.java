@@ -1,25 +1,32 @@
 package se325.flights.service;
 
 import se325.flights.domain.BookingException;
-import se325.flights.domain.Flight;
 import se325.flights.domain.FlightBooking;
+import se325.flights.domain.IdempotencyRecord.Operation;
 import se325.flights.domain.User;
 import se325.flights.domain.mappers.BookingMapper;
 import se325.flights.dto.BookingRequestDTO;
+import se325.flights.dto.BookingResultDTO;
 import se325.flights.dto.FlightBookingDTO;
+import se325.flights.dto.SeatHoldDTO;
 import se325.flights.util.SecurityUtils;
 
 import javax.persistence.EntityManager;
-import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.net.URI;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
 
 /**
  * A JAX-RS Resource class intended to contain methods with making and cancelling flight bookings, in
@@ -29,43 +36,187 @@ import java.util.List;
 @Path("/bookings")
 public class BookingsResource {
 
+    /**
+     * Makes a booking for the authenticated user, for either the requested seats, or the requested number of seats (in
+     * which case the server picks the seats). If an Idempotency-Key header is given, and a request with the same key
+     * has already been made by this user, the original outcome is returned instead.
+     */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response makeBooking(@CookieParam("authToken") Cookie auth, BookingRequestDTO bookRequest) {
+    public Response makeBooking(@CookieParam("authToken") Cookie auth,
+                                @HeaderParam("Idempotency-Key") String idempotencyKey,
+                                BookingRequestDTO bookRequest) {
         EntityManager em = PersistenceManager.instance().createEntityManager();
 
         User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
 
         try {
-            em.getTransaction().begin();
+            if (!IdempotencyManager.isValidKey(idempotencyKey)) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+            String requestHash = null;
+            if (idempotencyKey != null) {
+                requestHash = bookRequest.isSeatAssignmentRequested()
+                        ? IdempotencyManager.requestHash(bookRequest.getFlightId(), bookRequest.getCabinClass(),
+                                bookRequest.getNumSeats(), bookRequest.isKeepTogether())
+                        : IdempotencyManager.requestHash(bookRequest.getFlightId(), bookRequest.getRequestedSeats());
+                IdempotencyManager.Outcome outcome = IdempotencyManager.instance().getOutcome(
+                        em, bookingUser.getId(), Operation.MAKE_BOOKING, idempotencyKey, requestHash);
+                if (outcome != null) {
+                    return outcome.toResponse();
+                }
+            }
 
-            TypedQuery<Flight> flightsQuery = em.createQuery(
-                            "select f from Flight f where f.id = :idLink", Flight.class)
-                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
-                    .setHint("javax.persistence.lock.timeout", 5000)
-                    .setParameter("idLink", bookRequest.getFlightId());
+            Response response;
+            boolean transientFailure = false;
+            try {
+                FlightBooking bookingObj;
+                if (bookRequest.isSeatAssignmentRequested()) {
+                    bookingObj = BookingManager.instance().makeAssignedBooking(em, bookingUser.getId(),
+                            bookRequest.getFlightId(), bookRequest.getCabinClass(), bookRequest.getNumSeats(),
+                            bookRequest.isKeepTogether(), idempotencyKey);
+                } else {
+                    bookingObj = BookingManager.instance().makeBooking(em, bookingUser.getId(),
+                            bookRequest.getFlightId(), bookRequest.getRequestedSeats(), idempotencyKey);
+                }
+
+                response = Response.created(URI.create("/bookings/" + bookingObj.getId())).build();
+
+            } catch (NoResultException e) {
+                response = Response.status(Response.Status.NOT_FOUND).build();
+            } catch (BookingException e) {
+                response = Response.status(Response.Status.CONFLICT).build();
+            } catch (Exception e) {
+                response = Response.status(Response.Status.CONFLICT).build();
+                transientFailure = true;
+            }
+            return rememberOutcome(em, bookingUser.getId(), Operation.MAKE_BOOKING, idempotencyKey, requestHash,
+                    response, transientFailure);
 
+        } finally {
+            em.close();
+        }
+    }
 
-            Flight bookedFlight = flightsQuery.getSingleResult();
+    /**
+     * Makes several bookings for the authenticated user in one request. Each request is for either the requested seats,
+     * or the requested number of seats, as for {@link #makeBooking}. Requests for the same flight are made together,
+     * which in pessimistic mode locks that flight once (see {@link BookingManager#makeBookings}). Each request succeeds
+     * or fails independently, and its outcome is returned at the same position in the response list. A 400 Bad Request
+     * response is returned if any request has neither seats nor a number of seats.
+     */
+    @POST
+    @Path("batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response makeBookings(@CookieParam("authToken") Cookie auth, List<BookingRequestDTO> bookRequests) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
 
-            FlightBooking bookingObj = bookedFlight.makeBooking(bookingUser, bookRequest.getRequestedSeats());
+        try {
+            User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
 
-            em.persist(bookingObj);
-            em.getTransaction().commit();
+            if (bookRequests == null || bookRequests.isEmpty()
+                    || !bookRequests.stream().allMatch(BookingsResource::isValidRequest)) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
 
-            return Response.created(URI.create("/bookings/" + bookingObj.getId())).build();
+            List<BookingManager.BatchItem> items = new ArrayList<>();
+            Map<Long, List<BookingManager.BatchItem>> itemsByFlight = new LinkedHashMap<>();
+            for (BookingRequestDTO request : bookRequests) {
+                BookingManager.BatchItem item = request.isSeatAssignmentRequested()
+                        ? new BookingManager.BatchItem(request.getCabinClass(), request.getNumSeats(),
+                                request.isKeepTogether())
+                        : new BookingManager.BatchItem(request.getRequestedSeats());
+                items.add(item);
+                itemsByFlight.computeIfAbsent(request.getFlightId(), id -> new ArrayList<>()).add(item);
+            }
+
+            for (Map.Entry<Long, List<BookingManager.BatchItem>> flightItems : itemsByFlight.entrySet()) {
+                BookingManager.instance().makeBookings(
+                        em, bookingUser.getId(), flightItems.getKey(), flightItems.getValue());
+            }
+
+            List<BookingResultDTO> results = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                results.add(toResultDTO(bookRequests.get(i).getFlightId(), items.get(i)));
+            }
+            return Response.ok(results).build();
+
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Holds the requested seats for the authenticated user, for a limited time. Held seats can't be booked or held by
+     * anyone else until the hold is confirmed, released, or expires.
+     */
+    @POST
+    @Path("holds")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response placeHold(@CookieParam("authToken") Cookie auth, BookingRequestDTO holdRequest) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
+
+            SeatHold hold = BookingManager.instance().placeHold(
+                    em, bookingUser.getId(), holdRequest.getFlightId(), holdRequest.getRequestedSeats());
+
+            SeatHoldDTO holdDTO = new SeatHoldDTO(hold.getId(), hold.getFlightId(), hold.getSeatCodes(),
+                    hold.getExpiresAt().atZone(ZoneOffset.UTC));
+            return Response.created(URI.create("/bookings/holds/" + hold.getId())).entity(holdDTO).build();
 
         } catch (NoResultException e) {
-            em.getTransaction().rollback();
             return Response.status(Response.Status.NOT_FOUND).build();
         } catch (BookingException e) {
-            em.getTransaction().rollback();
             return Response.status(Response.Status.CONFLICT).build();
-        } catch (Exception e) {
-            em.getTransaction().rollback();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Converts one of the authenticated user's holds into a booking.
+     */
+    @POST
+    @Path("holds/{id}/confirm")
+    public Response confirmHold(@PathParam("id") String holdId, @CookieParam("authToken") Cookie auth) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
+
+            FlightBooking bookingObj = BookingManager.instance().confirmHold(em, bookingUser.getId(), holdId);
+            return Response.created(URI.create("/bookings/" + bookingObj.getId())).build();
+
+        } catch (NoResultException e) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        } catch (BookingException e) {
             return Response.status(Response.Status.CONFLICT).build();
+        } finally {
+            em.close();
         }
-        finally {
+    }
+
+    /**
+     * Releases one of the authenticated user's holds, without booking its seats.
+     */
+    @DELETE
+    @Path("holds/{id}")
+    public Response releaseHold(@PathParam("id") String holdId, @CookieParam("authToken") Cookie auth) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
+
+            SeatHoldManager.instance().releaseHold(holdId, bookingUser.getId());
+            return Response.status(Response.Status.NO_CONTENT).build();
+
+        } catch (NoResultException e) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        } finally {
             em.close();
         }
     }
@@ -74,23 +225,21 @@ public class BookingsResource {
     @Produces(MediaType.APPLICATION_JSON)
     public Response getBookings(@CookieParam("authToken") Cookie auth) {
         EntityManager em = PersistenceManager.instance().createEntityManager();
-        User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
 
         try {
-            TypedQuery<FlightBooking> flightsQuery = em.createQuery(
-                            "select b from FlightBooking b where b.user = :userLink", FlightBooking.class)
-                    .setParameter("userLink", bookingUser);
-
-            List<FlightBookingDTO> bookingList = new ArrayList<>();
-
-            for (FlightBooking i : flightsQuery.getResultList()) {
-                bookingList.add(BookingMapper.toDTO(i));
-            }
+            User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
 
-            return Response.ok(bookingList).build();
+            // Streamed to the response as they're read, rather than all loaded first. Closes the EntityManager.
+            Stream<FlightBooking> bookings = em.createQuery(
+                            "select b from FlightBooking b where b.user = :userLink", FlightBooking.class)
+                    .setParameter("userLink", bookingUser)
+                    .setHint("org.hibernate.fetchSize", JsonArrayOutput.FETCH_SIZE)
+                    .getResultStream();
+            return Response.ok(new JsonArrayOutput<>(em, bookings, BookingMapper::toDTO)).build();
 
-        } finally {
+        } catch (RuntimeException e) {
             em.close();
+            throw e;
         }
     }
 
@@ -122,37 +271,139 @@ public class BookingsResource {
         }
     }
 
+    /**
+     * Cancels one of the authenticated user's bookings. If an Idempotency-Key header is given, and a request with the
+     * same key has already been made by this user, the original outcome is returned instead.
+     */
     @DELETE
     @Path("{id}")
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response deleteBooking(@PathParam("id") long id, @CookieParam("authToken") Cookie auth) {
+    public Response deleteBooking(@PathParam("id") long id, @CookieParam("authToken") Cookie auth,
+                                  @HeaderParam("Idempotency-Key") String idempotencyKey) {
         EntityManager em = PersistenceManager.instance().createEntityManager();
         User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
 
         try {
-            em.getTransaction().begin();
+            if (!IdempotencyManager.isValidKey(idempotencyKey)) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+            String requestHash = null;
+            if (idempotencyKey != null) {
+                requestHash = IdempotencyManager.requestHash(id);
+                IdempotencyManager.Outcome outcome = IdempotencyManager.instance().getOutcome(
+                        em, bookingUser.getId(), Operation.CANCEL_BOOKING, idempotencyKey, requestHash);
+                if (outcome != null) {
+                    return outcome.toResponse();
+                }
+            }
 
-            TypedQuery<FlightBooking> flightsQuery = em.createQuery(
-                            "select b from FlightBooking b where (b.id = :idLink)"
-                            + "and (b.user = :userLink)"
-                            , FlightBooking.class)
-                    .setParameter("idLink", id)
-                    .setParameter("userLink", bookingUser);
+            Response response;
+            boolean transientFailure = false;
+            try {
+                long flightId = BookingManager.instance().cancelBooking(em, bookingUser.getId(), id, idempotencyKey);
 
-            FlightBooking flightBookingRes = flightsQuery.getSingleResult();
+                SubscriptionManager.instance().processSubscriptions(flightId);
+                response = Response.status(Response.Status.NO_CONTENT).build();
 
-            long flightId = flightBookingRes.getFlight().getId();
-            flightBookingRes.getFlight().removeBooking(flightBookingRes);
-            em.remove(flightBookingRes);
-            em.getTransaction().commit();
+            } catch (NoResultException e) {
+                response = Response.status(Response.Status.NOT_FOUND).build();
+            } catch (PersistenceException e) {
+                response = Response.status(Response.Status.CONFLICT).build();
+                transientFailure = true;
+            }
+            return rememberOutcome(em, bookingUser.getId(), Operation.CANCEL_BOOKING, idempotencyKey, requestHash,
+                    response, transientFailure);
 
-            SubscriptionManager.instance().processSubscriptions(flightId);
-            return Response.status(Response.Status.NO_CONTENT).build();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Cancels several of the authenticated user's bookings in one request, e.g. every leg of an itinerary. Either all
+     * of the bookings are cancelled, or (if any of them can't be found) none of them are. Subscriptions are processed
+     * once for each affected flight, after all the bookings have been cancelled.
+     */
+    @POST
+    @Path("cancellations")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response deleteBookings(@CookieParam("authToken") Cookie auth, List<Long> bookingIds) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+
+        try {
+            User bookingUser = SecurityUtils.getUserWithAuthToken(em, auth);
+
+            if (bookingIds == null || bookingIds.isEmpty() || bookingIds.contains(null)) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+
+            try {
+                for (long flightId : BookingManager.instance().cancelBookings(em, bookingUser.getId(), bookingIds)) {
+                    SubscriptionManager.instance().processSubscriptions(flightId);
+                }
+                return Response.status(Response.Status.NO_CONTENT).build();
+
+            } catch (NoResultException e) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            } catch (PersistenceException e) {
+                return Response.status(Response.Status.CONFLICT).build();
+            }
 
-        } catch (NoResultException e) {
-            return Response.status(Response.Status.NOT_FOUND).build();
         } finally {
             em.close();
         }
     }
+
+    /**
+     * Gets a value indicating whether the given batch booking request asks for either some seats, or a number of seats.
+     */
+    private static boolean isValidRequest(BookingRequestDTO request) {
+        if (request == null) {
+            return false;
+        }
+        if (request.isSeatAssignmentRequested()) {
+            return true;
+        }
+        return request.getRequestedSeats() != null && !request.getRequestedSeats().isEmpty()
+                && request.getRequestedSeats().stream().noneMatch(Objects::isNull);
+    }
+
+    private static BookingResultDTO toResultDTO(long flightId, BookingManager.BatchItem item) {
+        if (item.getBooking() != null) {
+            URI location = URI.create("/bookings/" + item.getBooking().getId());
+            return new BookingResultDTO(flightId, Response.Status.CREATED.getStatusCode(), location, null);
+        }
+
+        Response.Status status = item.getFailure() instanceof NoResultException
+                ? Response.Status.NOT_FOUND
+                : Response.Status.CONFLICT;
+        return new BookingResultDTO(flightId, status.getStatusCode(), null, item.getFailure().getMessage());
+    }
+
+    /**
+     * Remembers the outcome of a request made with the given idempotency key (if any), and returns it. If the request
+     * failed, a concurrent request with the same key may have succeeded (e.g. a client retrying while its first
+     * attempt was still waiting for a lock) - in which case that request's outcome is returned instead. Failures which
+     * may be transient (e.g. a lock timeout) aren't remembered, so that retrying the request tries it again.
+     */
+    private static Response rememberOutcome(EntityManager em, long userId, Operation operation, String idempotencyKey,
+                                            String requestHash, Response response, boolean transientFailure) {
+        if (idempotencyKey == null) {
+            return response;
+        }
+
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            IdempotencyManager.Outcome original = IdempotencyManager.instance().getOutcome(
+                    em, userId, operation, idempotencyKey, requestHash);
+            if (original != null) {
+                return original.toResponse();
+            }
+        }
+
+        if (!transientFailure) {
+            IdempotencyManager.instance().putOutcome(userId, operation, idempotencyKey,
+                    IdempotencyManager.Outcome.of(response, requestHash));
+        }
+        return response;
+    }
 }
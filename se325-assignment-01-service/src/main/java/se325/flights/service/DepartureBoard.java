@@ -0,0 +1,111 @@
+package se325.flights.service;
+
+import se325.flights.domain.Airport;
+import se325.flights.domain.Flight;
+import se325.flights.domain.mappers.FlightMapper;
+import se325.flights.dto.FlightDTO;
+import se325.flights.service.FlightCatalog.FlightEntry;
+
+import javax.persistence.EntityManager;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory departure board for every airport: each airport's departing flights, already mapped to DTOs, in a
+ * concurrent skip list ordered by departure time (then id). Finding the next departures from a given time is a single
+ * skip list search followed by reading the following entries, so the information screens which poll this every few
+ * seconds never touch the database, and reads are never blocked by one another.
+ * <p>
+ * The board is built from the database the first time it's needed. Like the {@link FlightCatalog}, flights are only
+ * ever added or changed by re-creating the database, at which point {@link #clear()} must be called so that the board
+ * is rebuilt. Singleton so that all resource instances share the same board.
+ */
+public class DepartureBoard {
+
+    private static DepartureBoard instance;
+
+    public static DepartureBoard instance() {
+        if (instance == null) {
+            instance = new DepartureBoard();
+        }
+        return instance;
+    }
+
+    /**
+     * The departures from each airport, by uppercase airport code
+     */
+    private volatile Map<String, ConcurrentNavigableMap<FlightEntry, FlightDTO>> departures;
+
+    private DepartureBoard() {
+    }
+
+    /**
+     * Gets the next flights departing from the given airport at or after the given time.
+     *
+     * @param airportCode the code of the airport, ignoring case
+     * @param from        the earliest departure time to include
+     * @param limit       the maximum number of flights to return
+     * @return the departing flights, in order of departure time, or null if there's no airport with the given code
+     */
+    public List<FlightDTO> getDepartures(String airportCode, Instant from, int limit) {
+        ConcurrentNavigableMap<FlightEntry, FlightDTO> airportDepartures =
+                getDepartures().get(airportCode.toUpperCase());
+        if (airportDepartures == null) {
+            return null;
+        }
+
+        // Ordered before every flight departing at that time, whatever its id
+        FlightEntry start = new FlightEntry(Long.MIN_VALUE, from);
+        List<FlightDTO> flights = new ArrayList<>();
+        Iterator<FlightDTO> iterator = airportDepartures.tailMap(start).values().iterator();
+        while (flights.size() < limit && iterator.hasNext()) {
+            flights.add(iterator.next());
+        }
+        return flights;
+    }
+
+    /**
+     * Discards the board, e.g. when the database has been reset. It will be rebuilt the next time it's needed.
+     */
+    public void clear() {
+        departures = null;
+    }
+
+    private Map<String, ConcurrentNavigableMap<FlightEntry, FlightDTO>> getDepartures() {
+        Map<String, ConcurrentNavigableMap<FlightEntry, FlightDTO>> current = departures;
+        if (current == null) {
+            synchronized (this) {
+                current = departures;
+                if (current == null) {
+                    current = buildDepartures();
+                    departures = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static Map<String, ConcurrentNavigableMap<FlightEntry, FlightDTO>> buildDepartures() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            Map<String, ConcurrentNavigableMap<FlightEntry, FlightDTO>> departures = new ConcurrentHashMap<>();
+            for (Airport airport : em.createQuery("select a from Airport a", Airport.class).getResultList()) {
+                departures.put(airport.getCode().toUpperCase(), new ConcurrentSkipListMap<>());
+            }
+
+            List<Flight> flights = em.createQuery("select f from Flight f join fetch f.origin join fetch f.destination "
+                    + "join fetch f.aircraftType", Flight.class).getResultList();
+            for (Flight flight : flights) {
+                departures.get(flight.getOrigin().getCode().toUpperCase()).put(
+                        new FlightEntry(flight.getId(), flight.getDepartureTime().toInstant()),
+                        FlightMapper.toDTO(flight));
+            }
+            return departures;
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package se325.flights.service;
+
+import se325.flights.CabinClass;
+import se325.flights.domain.AircraftType;
+import se325.flights.domain.Airport;
+import se325.flights.dto.FareCalendarDayDTO;
+import se325.flights.util.ConfigUtils;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Finds the lowest available fare on each day of a month, for "cheapest day to fly" searches.
+ * <p>
+ * Each route's month is computed by a single query over the flights' seat pricings and seat occupancy bitmaps, rather
+ * than by loading each flight and its pricings in turn. The result - the lowest price of each cabin class on each day,
+ * among flights with at least one unbooked seat of that class - is cached per route and month, so that later searches
+ * for the same month (with any cabin class) don't query the database at all. Bookings and cancellations invalidate only
+ * the month of the route they change (see {@link #invalidate(long, long, ZonedDateTime)}). The cache holds at most a
+ * configured number of months, evicting the least recently used, and each month expires a configured time after it was
+ * cached - so that flights added to the database directly are eventually seen.
+ * <p>
+ * Days are in the origin's timezone. Held seats aren't considered, as holds come and go too often to cache around.
+ * Singleton so that all resource instances share the same cache.
+ */
+public class FareCalendar {
+
+    private static FareCalendar instance;
+
+    public static FareCalendar instance() {
+        if (instance == null) {
+            instance = new FareCalendar(ConfigUtils.getInt("fare.calendar.maxEntries", 1000),
+                    Duration.ofSeconds(ConfigUtils.getLong("fare.calendar.ttlSeconds", 300)));
+        }
+        return instance;
+    }
+
+    /**
+     * The lowest fare of one cabin class on one day, and the flight it's on
+     */
+    private static class Fare {
+        private final int price;
+        private final long flightId;
+
+        private Fare(int price, long flightId) {
+            this.price = price;
+            this.flightId = flightId;
+        }
+
+        private boolean isLowerThan(Fare other) {
+            return other == null || price < other.price || (price == other.price && flightId < other.flightId);
+        }
+    }
+
+    /**
+     * One month of flights from one airport to another
+     */
+    private static class Key {
+        private final long originId;
+        private final long destinationId;
+        private final YearMonth month;
+
+        private Key(long originId, long destinationId, YearMonth month) {
+            this.originId = originId;
+            this.destinationId = destinationId;
+            this.month = month;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return originId == key.originId && destinationId == key.destinationId && month.equals(key.month);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(originId, destinationId, month);
+        }
+    }
+
+    /**
+     * The lowest fares on each day of a cached month, and when they expire
+     */
+    private static class Month {
+        private final Map<LocalDate, Map<CabinClass, Fare>> fares;
+        private final long expiresAt;
+
+        private Month(Map<LocalDate, Map<CabinClass, Fare>> fares, long expiresAt) {
+            this.fares = fares;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Access-ordered, so the least recently used month is evicted once the cache is full
+     */
+    private final Map<Key, Month> months;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private long evictions;
+
+    /**
+     * Incremented whenever anything is invalidated, so that months computed from data which changed while they were
+     * being computed aren't cached
+     */
+    private long generation;
+
+    /**
+     * Creates a new FareCalendar. Only {@link #instance()} should be used by the service; this is public for testing.
+     *
+     * @param maxEntries the maximum number of months to cache. If 0, nothing is cached.
+     * @param ttl        how long each month is cached for
+     */
+    public FareCalendar(int maxEntries, Duration ttl) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.months = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Month> eldest) {
+                if (size() > maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the lowest available fare on each day of the given month, on flights from any of the given origins to any of
+     * the given destinations.
+     *
+     * @param em           the {@link EntityManager} to use to read any months which aren't cached
+     * @param origins      the origin airports
+     * @param destinations the destination airports
+     * @param month        the month to search, in each origin's timezone
+     * @param cabinClass   the cabin class to price, or null for the lowest fare of any cabin class
+     * @return one entry for each day with an available fare, in date order
+     */
+    public List<FareCalendarDayDTO> getCalendar(EntityManager em, Collection<Airport> origins,
+                                                Collection<Airport> destinations, YearMonth month,
+                                                CabinClass cabinClass) {
+        Map<LocalDate, FareCalendarDayDTO> days = new TreeMap<>();
+        for (Airport origin : origins) {
+            for (Airport destination : destinations) {
+                if (origin.getId().equals(destination.getId())) {
+                    continue;
+                }
+                Map<LocalDate, Map<CabinClass, Fare>> fares = getMonth(em, origin, destination, month);
+                for (Map.Entry<LocalDate, Map<CabinClass, Fare>> day : fares.entrySet()) {
+                    for (Map.Entry<CabinClass, Fare> fare : day.getValue().entrySet()) {
+                        if (cabinClass != null && fare.getKey() != cabinClass) {
+                            continue;
+                        }
+                        FareCalendarDayDTO lowest = days.get(day.getKey());
+                        if (lowest == null || fare.getValue().isLowerThan(
+                                new Fare(lowest.getPrice(), lowest.getFlightId()))) {
+                            days.put(day.getKey(), new FareCalendarDayDTO(day.getKey(), fare.getValue().price,
+                                    fare.getKey(), fare.getValue().flightId));
+                        }
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(days.values());
+    }
+
+    /**
+     * Discards the cached month containing the given departure time (in the origin's timezone), on the given route.
+     * Other months and routes are unaffected.
+     */
+    public synchronized void invalidate(long originId, long destinationId, ZonedDateTime departureTime) {
+        generation++;
+        // The departure time's zone may not be the origin's, so the neighbouring months may also contain it
+        YearMonth month = YearMonth.from(departureTime);
+        months.remove(new Key(originId, destinationId, month.minusMonths(1)));
+        months.remove(new Key(originId, destinationId, month));
+        months.remove(new Key(originId, destinationId, month.plusMonths(1)));
+    }
+
+    /**
+     * Discards all cached months, e.g. when the database has been reset
+     */
+    public synchronized void clear() {
+        generation++;
+        months.clear();
+    }
+
+    /**
+     * Gets the number of months currently cached
+     */
+    public synchronized int size() {
+        return months.size();
+    }
+
+    /**
+     * Gets the number of months which were discarded because the cache was full, or they had expired
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private Map<LocalDate, Map<CabinClass, Fare>> getMonth(EntityManager em, Airport origin, Airport destination,
+                                                           YearMonth month) {
+        Key key = new Key(origin.getId(), destination.getId(), month);
+        long startGeneration;
+        synchronized (this) {
+            Month cached = months.get(key);
+            if (cached != null && cached.expiresAt - System.nanoTime() >= 0) {
+                return cached.fares;
+            }
+            if (cached != null) {
+                months.remove(key);
+                evictions++;
+            }
+            startGeneration = generation;
+        }
+
+        Map<LocalDate, Map<CabinClass, Fare>> fares = Collections.unmodifiableMap(
+                computeMonth(em, origin, destination, month));
+        synchronized (this) {
+            if (generation == startGeneration && maxEntries > 0) {
+                months.put(key, new Month(fares, System.nanoTime() + ttlNanos));
+            }
+        }
+        return fares;
+    }
+
+    /**
+     * Finds the lowest price of each cabin class on each day of the given month, among flights on the given route with
+     * at least one unbooked seat of that class. Reads one row per flight per priced cabin class, without loading the
+     * flights themselves.
+     */
+    private static Map<LocalDate, Map<CabinClass, Fare>> computeMonth(EntityManager em, Airport origin,
+                                                                      Airport destination, YearMonth month) {
+        ZoneId zone = ZoneId.of(origin.getTimeZone());
+        List<Object[]> rows = em.createQuery(
+                        "select f.id, f.departureTime, p.cabinClass, p.price, f.seatOccupancy, a "
+                        + "from Flight f join f.seatPricings p join f.aircraftType a "
+                        + "where f.origin.id = :origin and f.destination.id = :destination "
+                        + "and f.departureTime >= :earliest and f.departureTime < :latest", Object[].class)
+                .setParameter("origin", origin.getId())
+                .setParameter("destination", destination.getId())
+                .setParameter("earliest", month.atDay(1).atStartOfDay(zone))
+                .setParameter("latest", month.plusMonths(1).atDay(1).atStartOfDay(zone))
+                .getResultList();
+
+        Map<LocalDate, Map<CabinClass, Fare>> fares = new HashMap<>();
+        for (Object[] row : rows) {
+            CabinClass cabinClass = (CabinClass) row[2];
+            BitSet occupancy = row[4] == null ? new BitSet() : BitSet.valueOf((byte[]) row[4]);
+            if (((AircraftType) row[5]).getSeatLayout().getNumSeatsAvailable(cabinClass, occupancy) == 0) {
+                continue;
+            }
+            LocalDate date = ((ZonedDateTime) row[1]).withZoneSameInstant(zone).toLocalDate();
+            Fare fare = new Fare((Integer) row[3], (Long) row[0]);
+            Map<CabinClass, Fare> day = fares.computeIfAbsent(date, d -> new EnumMap<>(CabinClass.class));
+            if (fare.isLowerThan(day.get(cabinClass))) {
+                day.put(cabinClass, fare);
+            }
+        }
+        return fares;
+    }
+}
@@ -19,11 +19,17 @@ public class FlightBookingApplication extends Application {
 
         singletons.add(PersistenceManager.instance());
         singletons.add(SubscriptionManager.instance());
+        singletons.add(SeatHoldManager.instance());
+        if (BookingJournal.isEnabled()) {
+            // Recover the booked seats of every journalled flight now, rather than on the first booking
+            BookingJournal.instance();
+        }
 
         classes.add(TestResource.class);
         classes.add(UserResource.class);
         classes.add(FlightsResource.class);
         classes.add(BookingsResource.class);
+        classes.add(AirportsResource.class);
 
     }
 
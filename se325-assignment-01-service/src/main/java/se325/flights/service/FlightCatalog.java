@@ -0,0 +1,574 @@
+package se325.flights.service;
+
+import se325.flights.domain.Airport;
+import se325.flights.util.ConfigUtils;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory index of every airport, and of the flights on every route (origin / destination pair) ordered by
+ * departure time, used to search for flights without scanning the whole flight table. Also used to suggest airports
+ * matching partial names or codes, so that clients can resolve what a user has typed to an airport before searching.
+ * The origin and destination search strings are first resolved to matching airports (by scanning the - short - list of
+ * airports), then the flights on each matching route are read from that route's list. So the cost of a search depends
+ * on the number of airports and matching flights, but not on the total number of flights.
+ * <p>
+ * The index also holds every airport's departures ordered by departure time, which forms a time-expanded graph of the
+ * flight network: an arrival at an airport connects to exactly those departures from it within the connection window,
+ * found by binary search. This is used to find itineraries with stops (see {@link #findItineraries}).
+ * <p>
+ * Airport codes and names, and flight names, are also indexed by their trigrams (see {@link TrigramIndex}), so that
+ * misspelt queries can still be resolved.
+ * <p>
+ * The index is built from the database the first time it's needed. Flights are only ever added or changed by
+ * re-creating the database, at which point {@link #clear()} must be called so that the index is rebuilt. Singleton so
+ * that all resource instances share the same index.
+ */
+public class FlightCatalog {
+
+    private static FlightCatalog instance;
+
+    public static FlightCatalog instance() {
+        if (instance == null) {
+            instance = new FlightCatalog();
+        }
+        return instance;
+    }
+
+    private FlightCatalog() {
+    }
+
+    /**
+     * A flight's id and departure time, ordered by departure time, then id - the order in which flights are searched
+     */
+    public static class FlightEntry implements Comparable<FlightEntry> {
+        private final long id;
+        private final Instant departureTime;
+
+        public FlightEntry(long id, Instant departureTime) {
+            this.id = id;
+            this.departureTime = departureTime;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Instant getDepartureTime() {
+            return departureTime;
+        }
+
+        @Override
+        public int compareTo(FlightEntry other) {
+            int result = departureTime.compareTo(other.departureTime);
+            return result != 0 ? result : Long.compare(id, other.id);
+        }
+    }
+
+    /**
+     * A flight in the time-expanded graph: an edge from its origin at its departure time, to its destination at its
+     * arrival time
+     */
+    private static class Leg extends FlightEntry {
+        private final long originId;
+        private final long destinationId;
+        private final Instant arrivalTime;
+
+        private Leg(long id, long originId, long destinationId, Instant departureTime, Instant arrivalTime) {
+            super(id, departureTime);
+            this.originId = originId;
+            this.destinationId = destinationId;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+
+    /**
+     * A sequence of connecting flights, and the total time from the first departure to the last arrival. Ordered by
+     * total time, then departure time, then flight ids.
+     */
+    public static class Itinerary implements Comparable<Itinerary> {
+        private final List<Long> flightIds;
+        private final Instant departureTime;
+        private final Duration duration;
+
+        private Itinerary(List<Leg> legs) {
+            this.flightIds = legs.stream().map(FlightEntry::getId).collect(Collectors.toUnmodifiableList());
+            this.departureTime = legs.get(0).getDepartureTime();
+            this.duration = Duration.between(departureTime, legs.get(legs.size() - 1).arrivalTime);
+        }
+
+        public List<Long> getFlightIds() {
+            return flightIds;
+        }
+
+        public Duration getDuration() {
+            return duration;
+        }
+
+        @Override
+        public int compareTo(Itinerary other) {
+            int result = duration.compareTo(other.duration);
+            if (result == 0) {
+                result = departureTime.compareTo(other.departureTime);
+            }
+            for (int i = 0; result == 0 && i < Math.min(flightIds.size(), other.flightIds.size()); i++) {
+                result = Long.compare(flightIds.get(i), other.flightIds.get(i));
+            }
+            return result != 0 ? result : Integer.compare(flightIds.size(), other.flightIds.size());
+        }
+    }
+
+    /**
+     * A lowercase airport code, name, or word from a name, which suggestions can be matched against. Ordered by key.
+     */
+    private static class SuggestionKey implements Comparable<SuggestionKey> {
+        private static final int CODE = 0;
+        private static final int NAME = 1;
+        private static final int NAME_WORD = 2;
+
+        private final String key;
+        private final int kind;
+        private final Airport airport;
+
+        private SuggestionKey(String key, int kind, Airport airport) {
+            this.key = key;
+            this.kind = kind;
+            this.airport = airport;
+        }
+
+        @Override
+        public int compareTo(SuggestionKey other) {
+            return key.compareTo(other.key);
+        }
+    }
+
+    /**
+     * An immutable snapshot of the index
+     */
+    private static class Index {
+        private final List<Airport> airports;
+
+        /**
+         * The codes, names and name words of every airport, sorted so that all keys starting with a given prefix are
+         * adjacent
+         */
+        private final List<SuggestionKey> suggestionKeys;
+
+        /**
+         * The flights on each route, by origin id then destination id, ordered by departure time
+         */
+        private final Map<Long, Map<Long, List<FlightEntry>>> routes;
+
+        /**
+         * The flights departing each airport, by origin id, ordered by departure time
+         */
+        private final Map<Long, List<Leg>> departures;
+
+        /**
+         * Every airport, by location
+         */
+        private final AirportKdTree airportTree;
+
+        /**
+         * Every airport, by the trigrams of its code, name and name words
+         */
+        private final TrigramIndex<Airport> airportTrigrams;
+
+        /**
+         * The id of every flight, by the trigrams of its name
+         */
+        private final TrigramIndex<Long> flightTrigrams;
+
+        private Index(List<Airport> airports, List<SuggestionKey> suggestionKeys,
+                      Map<Long, Map<Long, List<FlightEntry>>> routes, Map<Long, List<Leg>> departures,
+                      TrigramIndex<Airport> airportTrigrams, TrigramIndex<Long> flightTrigrams) {
+            this.airports = airports;
+            this.airportTree = new AirportKdTree(airports);
+            this.suggestionKeys = suggestionKeys;
+            this.routes = routes;
+            this.departures = departures;
+            this.airportTrigrams = airportTrigrams;
+            this.flightTrigrams = flightTrigrams;
+        }
+    }
+
+    private volatile Index index;
+
+    /**
+     * Finds the airports whose name or code contains the given string, ignoring case.
+     *
+     * @param query the string to search for
+     * @return the matching airports, in no particular order
+     */
+    public List<Airport> findAirports(String query) {
+        return findAirports(getIndex(), query);
+    }
+
+    /**
+     * Finds the airports whose name or code contains the given string, ignoring case (see
+     * {@link #findAirports(String)}), along with every airport within the given great-circle distance of any of them.
+     * Nearby airports are found using a spatial index, so this doesn't compare every pair of airports.
+     * <p>
+     * If fuzzy is true and no airport contains the string (e.g. because it's misspelt), every airport similar enough to
+     * it is matched instead (see {@link #searchAirports(String, int)}).
+     *
+     * @param query    the string to search for
+     * @param withinKm the distance in kilometres within which to include other airports. If 0, only airports matching
+     *                 the query are returned.
+     * @param fuzzy    whether to fall back to airports similar to the query if none contain it
+     * @return the matching and nearby airports, each once, in no particular order
+     */
+    public List<Airport> findAirports(String query, double withinKm, boolean fuzzy) {
+        Index index = getIndex();
+        List<Airport> matches = findAirports(index, query);
+        if (matches.isEmpty() && fuzzy) {
+            matches = index.airportTrigrams.search(query, getMinSimilarity(), Integer.MAX_VALUE);
+        }
+        if (withinKm <= 0) {
+            return matches;
+        }
+        Set<Airport> airports = new LinkedHashSet<>(matches);
+        for (Airport airport : matches) {
+            airports.addAll(index.airportTree.findWithin(airport.getLatitude(), airport.getLongitude(), withinKm));
+        }
+        return new ArrayList<>(airports);
+    }
+
+    /**
+     * Finds the flights from any of the given origin airports to any of the given destination airports (e.g. those
+     * found by {@link #findAirports(String, double, boolean)}), one page at a time. Flights are ordered by departure
+     * time, then id, and each page starts straight after the given flight - so a page is read by binary searching each
+     * matching route for its first flight, then merging the routes until the page is full.
+     *
+     * @param origins      the origin airports
+     * @param destinations the destination airports
+     * @param after        the last flight on the previous page, or null for the first page
+     * @param limit       the maximum number of flights to return
+     * @return the matching flights on the page, in order
+     */
+    public List<FlightEntry> findFlights(Collection<Airport> origins, Collection<Airport> destinations,
+                                         FlightEntry after, int limit) {
+        Index index = getIndex();
+        List<List<FlightEntry>> routes = new ArrayList<>();
+        for (Airport originAirport : origins) {
+            Map<Long, List<FlightEntry>> routesFromOrigin = index.routes.getOrDefault(originAirport.getId(), Map.of());
+            for (Airport destinationAirport : destinations) {
+                List<FlightEntry> route = routesFromOrigin.get(destinationAirport.getId());
+                if (route != null) {
+                    routes.add(route);
+                }
+            }
+        }
+
+        // The next unread position in each route, ordered by the flight at that position
+        PriorityQueue<int[]> positions = new PriorityQueue<>(
+                Comparator.comparing((int[] position) -> routes.get(position[0]).get(position[1])));
+        for (int i = 0; i < routes.size(); i++) {
+            int start = 0;
+            if (after != null) {
+                int found = Collections.binarySearch(routes.get(i), after);
+                start = found >= 0 ? found + 1 : -found - 1;
+            }
+            if (start < routes.get(i).size()) {
+                positions.add(new int[]{i, start});
+            }
+        }
+
+        List<FlightEntry> flights = new ArrayList<>();
+        while (flights.size() < limit && !positions.isEmpty()) {
+            int[] position = positions.poll();
+            List<FlightEntry> route = routes.get(position[0]);
+            flights.add(route.get(position[1]));
+            if (++position[1] < route.size()) {
+                positions.add(position);
+            }
+        }
+        return flights;
+    }
+
+    /**
+     * Finds the quickest itineraries - direct flights, or flights connecting at up to maxStops other airports - from
+     * any airport matching the given origin string, to any airport matching the given destination string (see
+     * {@link #findAirports(String)}). Each connection must leave between minConnection and maxConnection after the
+     * previous flight arrives, and an itinerary never passes through the same airport twice.
+     * <p>
+     * If a departure date is given, the first flight must depart on that date (+/- dayRange days) in its origin's
+     * timezone. Connection windows and durations are measured between instants, so they're correct however many
+     * timezones an itinerary crosses.
+     * <p>
+     * Itineraries are found by a depth-first search of the time-expanded graph, keeping the best {@code limit} found so
+     * far. Any partial itinerary which already takes longer than the worst of those is abandoned.
+     *
+     * @param origin        the origin search string
+     * @param destination   the destination search string
+     * @param departureDate the date the first flight departs, or null for any date
+     * @param dayRange      the number of days either side of departureDate the first flight may depart
+     * @param maxStops      the maximum number of connections in each itinerary
+     * @param minConnection the minimum time between arriving at an airport and departing from it
+     * @param maxConnection the maximum time between arriving at an airport and departing from it
+     * @param limit         the maximum number of itineraries to return
+     * @return the quickest itineraries, quickest first
+     */
+    public List<Itinerary> findItineraries(String origin, String destination, LocalDate departureDate, int dayRange,
+                                           int maxStops, Duration minConnection, Duration maxConnection, int limit) {
+        Index index = getIndex();
+        Set<Long> destinationIds = findAirports(index, destination).stream()
+                .map(Airport::getId).collect(Collectors.toSet());
+        if (destinationIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // The best itineraries found so far, worst first
+        PriorityQueue<Itinerary> best = new PriorityQueue<>(Comparator.reverseOrder());
+
+        for (Airport originAirport : findAirports(index, origin)) {
+            List<Leg> departures = index.departures.getOrDefault(originAirport.getId(), List.of());
+            Instant earliest = Instant.MIN;
+            Instant latest = Instant.MAX;
+            if (departureDate != null) {
+                ZoneId zone = ZoneId.of(originAirport.getTimeZone());
+                earliest = departureDate.minusDays(dayRange).atStartOfDay(zone).toInstant();
+                latest = departureDate.plusDays(dayRange + 1).atStartOfDay(zone).toInstant();
+            }
+
+            List<Leg> legs = new ArrayList<>();
+            Set<Long> visited = new HashSet<>();
+            visited.add(originAirport.getId());
+            for (int i = firstDeparture(departures, earliest);
+                 i < departures.size() && departures.get(i).getDepartureTime().isBefore(latest); i++) {
+                searchItineraries(index, departures.get(i), legs, visited, destinationIds, maxStops,
+                        minConnection, maxConnection, limit, best);
+            }
+        }
+
+        List<Itinerary> itineraries = new ArrayList<>(best);
+        Collections.sort(itineraries);
+        return itineraries;
+    }
+
+    /**
+     * Adds the given leg to the given partial itinerary, and continues the search from its destination
+     */
+    private static void searchItineraries(Index index, Leg leg, List<Leg> legs, Set<Long> visited,
+                                          Set<Long> destinationIds, int maxStops, Duration minConnection,
+                                          Duration maxConnection, int limit, PriorityQueue<Itinerary> best) {
+        if (!visited.add(leg.destinationId)) {
+            return;
+        }
+        legs.add(leg);
+        try {
+            Instant firstDeparture = legs.get(0).getDepartureTime();
+            if (best.size() >= limit
+                    && Duration.between(firstDeparture, leg.arrivalTime).compareTo(best.peek().duration) > 0) {
+                return;
+            }
+
+            if (destinationIds.contains(leg.destinationId)) {
+                best.add(new Itinerary(legs));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+                return;
+            }
+
+            if (legs.size() <= maxStops) {
+                List<Leg> departures = index.departures.getOrDefault(leg.destinationId, List.of());
+                Instant latest = leg.arrivalTime.plus(maxConnection);
+                for (int i = firstDeparture(departures, leg.arrivalTime.plus(minConnection));
+                     i < departures.size() && !departures.get(i).getDepartureTime().isAfter(latest); i++) {
+                    searchItineraries(index, departures.get(i), legs, visited, destinationIds, maxStops,
+                            minConnection, maxConnection, limit, best);
+                }
+            }
+        } finally {
+            legs.remove(legs.size() - 1);
+            visited.remove(leg.destinationId);
+        }
+    }
+
+    /**
+     * Returns the index of the first of the given departures (ordered by departure time) which departs at or after the
+     * given time
+     */
+    private static int firstDeparture(List<Leg> departures, Instant time) {
+        int low = 0;
+        int high = departures.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (departures.get(mid).getDepartureTime().isBefore(time)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Suggests airports whose code, name, or any word of whose name starts with the given string, ignoring case. An
+     * exact code match comes first, followed by airports whose code starts with the string, then those whose name does,
+     * then those with any matching word. Ties are broken by name.
+     *
+     * @param query the string to search for
+     * @param limit the maximum number of airports to return
+     * @return the matching airports, best first
+     */
+    public List<Airport> suggestAirports(String query, int limit) {
+        String prefix = query.trim().toLowerCase();
+        List<SuggestionKey> keys = getIndex().suggestionKeys;
+
+        // Binary search for the first key >= the prefix. All keys starting with the prefix follow it.
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys.get(mid).key.compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        Map<Airport, Integer> ranks = new HashMap<>();
+        for (int i = low; i < keys.size() && keys.get(i).key.startsWith(prefix); i++) {
+            SuggestionKey key = keys.get(i);
+            int rank = key.kind == SuggestionKey.CODE && key.key.equals(prefix) ? 0 : key.kind + 1;
+            ranks.merge(key.airport, rank, Math::min);
+        }
+
+        return ranks.entrySet().stream()
+                .sorted(Map.Entry.<Airport, Integer>comparingByValue()
+                        .thenComparing(entry -> entry.getKey().getName()))
+                .limit(limit)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the airports whose code, name or any word of whose name is most similar to the given string, tolerating
+     * typos (see {@link TrigramIndex}). Only airports whose similarity is at least the configured
+     * search.fuzzy.minSimilarity are returned.
+     *
+     * @param query the string to search for
+     * @param limit the maximum number of airports to return
+     * @return the matching airports, most similar first
+     */
+    public List<Airport> searchAirports(String query, int limit) {
+        return getIndex().airportTrigrams.search(query, getMinSimilarity(), limit);
+    }
+
+    /**
+     * Finds the flights whose names are most similar to the given string, tolerating typos (see {@link TrigramIndex}).
+     * Only flights whose similarity is at least the configured search.fuzzy.minSimilarity are returned.
+     *
+     * @param query the string to search for
+     * @param limit the maximum number of flights to return
+     * @return the ids of the matching flights, most similar first
+     */
+    public List<Long> searchFlightNames(String query, int limit) {
+        return getIndex().flightTrigrams.search(query, getMinSimilarity(), limit);
+    }
+
+    private static double getMinSimilarity() {
+        return ConfigUtils.getDouble("search.fuzzy.minSimilarity", 0.4);
+    }
+
+    private static List<Airport> findAirports(Index index, String query) {
+        String lowerQuery = query.toLowerCase();
+        List<Airport> matches = new ArrayList<>();
+        for (Airport airport : index.airports) {
+            if (airport.getName().toLowerCase().contains(lowerQuery)
+                    || airport.getCode().toLowerCase().contains(lowerQuery)) {
+                matches.add(airport);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Discards the index, e.g. when the database has been reset. It will be rebuilt the next time it's needed.
+     */
+    public void clear() {
+        index = null;
+    }
+
+    private Index getIndex() {
+        Index current = index;
+        if (current == null) {
+            synchronized (this) {
+                current = index;
+                if (current == null) {
+                    current = buildIndex();
+                    index = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static Index buildIndex() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            List<Airport> airports = em.createQuery("select a from Airport a", Airport.class).getResultList();
+
+            // Only the columns needed for the index, rather than every flight with its aircraft, pricings etc.
+            List<Object[]> flights = em.createQuery(
+                            "select f.id, f.origin.id, f.destination.id, f.departureTime, f.arrivalTime, f.name "
+                            + "from Flight f order by f.id",
+                            Object[].class)
+                    .getResultList();
+
+            Map<Long, Map<Long, List<FlightEntry>>> routes = new HashMap<>();
+            Map<Long, List<Leg>> departures = new HashMap<>();
+            TrigramIndex<Long> flightTrigrams = new TrigramIndex<>();
+            for (Object[] flight : flights) {
+                flightTrigrams.add((Long) flight[0], (String) flight[5]);
+                Leg leg = new Leg((Long) flight[0], (Long) flight[1], (Long) flight[2],
+                        ((ZonedDateTime) flight[3]).toInstant(), ((ZonedDateTime) flight[4]).toInstant());
+                routes.computeIfAbsent(leg.originId, id -> new HashMap<>())
+                        .computeIfAbsent(leg.destinationId, id -> new ArrayList<>())
+                        .add(leg);
+                departures.computeIfAbsent(leg.originId, id -> new ArrayList<>()).add(leg);
+            }
+            for (Map<Long, List<FlightEntry>> destinations : routes.values()) {
+                destinations.replaceAll((id, route) -> {
+                    Collections.sort(route);
+                    return Collections.unmodifiableList(route);
+                });
+            }
+            departures.replaceAll((id, legs) -> {
+                Collections.sort(legs);
+                return Collections.unmodifiableList(legs);
+            });
+
+            List<SuggestionKey> suggestionKeys = new ArrayList<>();
+            TrigramIndex<Airport> airportTrigrams = new TrigramIndex<>();
+            for (Airport airport : airports) {
+                airportTrigrams.add(airport, airport.getCode());
+                airportTrigrams.add(airport, airport.getName());
+                String name = airport.getName().toLowerCase();
+                suggestionKeys.add(new SuggestionKey(airport.getCode().toLowerCase(), SuggestionKey.CODE, airport));
+                suggestionKeys.add(new SuggestionKey(name, SuggestionKey.NAME, airport));
+                for (String word : name.split("[^\\p{L}\\p{N}]+")) {
+                    if (!word.isEmpty()) {
+                        suggestionKeys.add(new SuggestionKey(word, SuggestionKey.NAME_WORD, airport));
+                        airportTrigrams.add(airport, word);
+                    }
+                }
+            }
+            Collections.sort(suggestionKeys);
+
+            return new Index(Collections.unmodifiableList(airports), Collections.unmodifiableList(suggestionKeys),
+                    routes, departures, airportTrigrams, flightTrigrams);
+        } finally {
+            em.close();
+        }
+    }
+}
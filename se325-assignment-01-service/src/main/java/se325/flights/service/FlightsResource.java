@@ -1,30 +1,51 @@
 package se325.flights.service;
 
 import org.hibernate.type.ZonedDateTimeType;
+import se325.flights.CabinClass;
 import se325.flights.domain.Airport;
 import se325.flights.domain.Flight;
 import se325.flights.domain.User;
 import se325.flights.domain.mappers.FlightMapper;
 import se325.flights.dto.AvailableSeatsSubscriptionDTO;
 import se325.flights.dto.BookingInfoDTO;
+import se325.flights.dto.CacheStatsDTO;
+import se325.flights.dto.FareCalendarDayDTO;
 import se325.flights.dto.FlightDTO;
+import se325.flights.dto.ItineraryDTO;
+import se325.flights.dto.SeatSuggestionDTO;
+import se325.flights.service.FlightCatalog.FlightEntry;
+import se325.flights.util.ConfigUtils;
 import se325.flights.util.SecurityUtils;
 
 import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
 import javax.persistence.TypedQuery;
 import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import java.nio.charset.StandardCharsets;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * A JAX-RS Resource class for retrieving information about particular flights.
@@ -33,6 +54,12 @@ import java.util.Locale;
 @Path("/flights")
 public class FlightsResource {
 
+    /**
+     * The maximum number of connections in an itinerary which can be searched for. Each extra stop multiplies the
+     * number of partial itineraries to search by the number of flights departing in each connection window.
+     */
+    private static final int MAX_STOPS = 2;
+
     /**
      * Parses the given departure date query. If the query matches the format "YYYY-MM-DD" (e.g. "2021-08-16"), an array
      * of two {@link ZonedDateTime} instances corresponding to 00:00:00 and 23:59:59 on the given date in the given
@@ -58,63 +85,357 @@ public class FlightsResource {
 
     }
 
+    /**
+     * Searches for flights, one page at a time. Flights are ordered by departure time, then id. If there are more
+     * flights after the page, the response has a "next" {@link Link} to the following page, whose "after" cursor
+     * identifies the last flight on this page. Each page is read starting straight after that flight, so no flights
+     * before the page are read, however far into the results it is.
+     * <p>
+     * If seatsRemaining is true, each flight includes the number of unbooked seats of each cabin class. These are read
+     * from the flights' own rows, so they don't add any queries.
+     * <p>
+     * If withinKm is greater than 0, the origin and destination also include every airport within that many kilometres
+     * of an airport matching them (see {@link FlightCatalog#findAirports(String, double, boolean)}), and flights
+     * between any pair of the resulting airports are found. If fuzzy is true, an origin or destination which no airport
+     * contains (e.g. a misspelt name) matches the airports most similar to it instead, so clients don't need to retry
+     * with variations.
+     * <p>
+     * The page's flight ids and departure times are found first, which determines the "next" link. Pages of up to
+     * search.cache.maxPageSize flights are then read in full and cached (see {@link SearchCache}). Larger pages are
+     * read by id, and streamed to the response as they're read (see {@link JsonArrayOutput}). Only the full flights
+     * are streamed: the ids and departure times are always held in memory, and queried with an "in" list, as the "next"
+     * link has to be known before any of the response is written. They're small, and search.maxLimit bounds how many
+     * there can be.
+     */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response flightLookupResponse(@QueryParam("origin") String origin,
                                          @QueryParam("destination") String destination,
                                          @QueryParam("departureDate") String departureDate,
-                                         @QueryParam("dayRange") @DefaultValue("0") Integer dayRange) {
-        if (origin == null || destination == null || dayRange < 0) {
+                                         @QueryParam("dayRange") @DefaultValue("0") Integer dayRange,
+                                         @QueryParam("limit") @DefaultValue("100") int limit,
+                                         @QueryParam("after") String after,
+                                         @QueryParam("seatsRemaining") @DefaultValue("false") boolean seatsRemaining,
+                                         @QueryParam("withinKm") @DefaultValue("0") double withinKm,
+                                         @QueryParam("fuzzy") @DefaultValue("false") boolean fuzzy,
+                                         @Context UriInfo uriInfo) {
+        if (origin == null || destination == null || dayRange < 0 || !isValidLimit(limit) || !(withinKm >= 0)) {
             return Response.status(Response.Status.BAD_REQUEST).build();
         }
+        LocalDate date = null;
         if (departureDate != null) {
             try {
-                LocalDate departDateParsed = LocalDate.parse(departureDate, DateTimeFormatter.ISO_DATE);
+                date = LocalDate.parse(departureDate, DateTimeFormatter.ISO_DATE);
             } catch (DateTimeParseException e) {
                 return Response.status(Response.Status.BAD_REQUEST).build();
             }
         }
+        FlightEntry cursor = null;
+        if (after != null) {
+            try {
+                cursor = decodeCursor(after);
+            } catch (IllegalArgumentException | DateTimeException e) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+        }
+
+        List<Airport> originAirports = FlightCatalog.instance().findAirports(origin, withinKm, fuzzy);
+        List<Airport> destinationAirports = FlightCatalog.instance().findAirports(destination, withinKm, fuzzy);
+
+        // Larger pages aren't cached, so that they can be streamed rather than held in memory
+        SearchCache.Key cacheKey = null;
+        if (limit <= ConfigUtils.getInt("search.cache.maxPageSize", 100)) {
+            cacheKey = new SearchCache.Key(getIds(originAirports), getIds(destinationAirports), date, dayRange, limit,
+                    after, seatsRemaining);
+            SearchCache.Page cached = SearchCache.instance().get(cacheKey);
+            if (cached != null) {
+                return pageResponse(uriInfo, cached.getNext()).entity(cached.getFlights()).build();
+            }
+        }
 
         EntityManager em = PersistenceManager.instance().createEntityManager();
-        origin = origin.toLowerCase();
-        destination = destination.toLowerCase();
         try {
-            // search for just origin and dest
+            // One more than the page size, to find out whether there's a next page
+            List<FlightEntry> page = departureDate == null
+                    ? FlightCatalog.instance().findFlights(originAirports, destinationAirports, cursor, limit + 1)
+                    : findFlights(em, originAirports, destinationAirports, departureDate, dayRange, cursor, limit + 1);
+
+            String next = null;
+            if (page.size() > limit) {
+                page = page.subList(0, limit);
+                next = encodeCursor(page.get(limit - 1));
+            }
+            Response.ResponseBuilder response = pageResponse(uriInfo, next);
+
             TypedQuery<Flight> flightsQuery = em.createQuery(
-                            "select f from Flight f " +
-                            "where (lower(f.origin.name) like concat('%', :origin, '%') or " +
-                            "lower(f.origin.code) like concat('%', :origin, '%')) and " +
-                            "(lower(f.destination.name) like concat('%', :destination, '%') or " +
-                            "lower(f.destination.code) like concat('%', :destination, '%'))" +
-                            "order by f.departureTime"
-                            , Flight.class)
-                    .setParameter("origin", origin)
-                    .setParameter("destination", destination);
-
-            //ArrayList<Flight> flightsList = new ArrayList<>(flightsQuery.getResultList());
-            List<Flight> flightList = flightsQuery.getResultList();
-            List<FlightDTO> flightDTOList = new ArrayList<>();
-
-            if (departureDate == null) {
-                for (Flight i : flightList){
-                    flightDTOList.add(FlightMapper.toDTO(i));
-                }
+                            "select f from Flight f where f.id in :ids order by f.departureTime, f.id", Flight.class)
+                    .setParameter("ids", page.stream().map(FlightEntry::getId).collect(Collectors.toList()));
 
-            } else {
-                String timeZone = flightList.get(0).getOrigin().getTimeZone();
-                ZonedDateTime[] dateRange = parseDepartureDateQuery(departureDate, dayRange, timeZone);
-                for (Flight i : flightList){
-                    if (i.getDepartureTime().isAfter(dateRange[0]) && i.getDepartureTime().isBefore(dateRange[1])){
-                        flightDTOList.add(FlightMapper.toDTO(i));
+            if (cacheKey != null || page.isEmpty()) {
+                List<FlightDTO> flightDTOList = new ArrayList<>();
+                if (!page.isEmpty()) {
+                    for (Flight i : flightsQuery.getResultList()) {
+                        flightDTOList.add(FlightMapper.toDTO(i, seatsRemaining));
                     }
                 }
+                if (cacheKey != null) {
+                    SearchCache.instance().put(cacheKey, flightDTOList, next);
+                }
+                em.close();
+                return response.entity(flightDTOList).build();
+            }
+
+            Stream<Flight> flights = flightsQuery.setHint("org.hibernate.fetchSize", JsonArrayOutput.FETCH_SIZE)
+                    .getResultStream();
+            return response.entity(new JsonArrayOutput<>(em, flights,
+                    flight -> FlightMapper.toDTO(flight, seatsRemaining))).build();
+
+        } catch (RuntimeException e) {
+            em.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the flights whose names are most similar to the given query, tolerating typos, most similar first. See
+     * {@link FlightCatalog#searchFlightNames(String, int)}.
+     */
+    @GET
+    @Path("by-name")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response flightNameSearch(@QueryParam("q") String query,
+                                     @QueryParam("limit") @DefaultValue("10") int limit) {
+        if (query == null || query.isBlank() || limit <= 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        List<Long> flightIds = FlightCatalog.instance().searchFlightNames(query, limit);
+        if (flightIds.isEmpty()) {
+            return Response.ok(new ArrayList<FlightDTO>()).build();
+        }
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            Map<Long, FlightDTO> flights = new HashMap<>();
+            for (Flight flight : em.createQuery("select f from Flight f where f.id in :ids", Flight.class)
+                    .setParameter("ids", flightIds)
+                    .getResultList()) {
+                flights.put(flight.getId(), FlightMapper.toDTO(flight));
             }
-            return Response.ok(flightDTOList).build();
+            return Response.ok(flightIds.stream().map(flights::get).collect(Collectors.toList())).build();
         } finally {
             em.close();
         }
     }
 
+    /**
+     * Gets statistics about the flight search cache, so that its size and expiry time can be tuned
+     */
+    @GET
+    @Path("search-cache")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response searchCacheStats() {
+        SearchCache cache = SearchCache.instance();
+        return Response.ok(new CacheStatsDTO(cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.size()))
+                .build();
+    }
+
+    /**
+     * Starts a response containing a page of search results, with a "next" link if there's a next page
+     */
+    private static Response.ResponseBuilder pageResponse(UriInfo uriInfo, String next) {
+        Response.ResponseBuilder response = Response.ok();
+        if (next != null) {
+            response.links(Link.fromUriBuilder(uriInfo.getRequestUriBuilder().replaceQueryParam("after", next))
+                    .rel("next").build());
+        }
+        return response;
+    }
+
+    /**
+     * Gets a value indicating whether the given page size is positive, and no more than the configured
+     * search.maxLimit - so that a client can't make the service read (or hold) an unbounded number of results at once.
+     */
+    private static boolean isValidLimit(int limit) {
+        return limit > 0 && limit <= ConfigUtils.getInt("search.maxLimit", 1000);
+    }
+
+    private static List<Long> getIds(List<Airport> airports) {
+        return airports.stream().map(Airport::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * Finds a page of flights from any of the given origin airports to any of the given destination airports, which
+     * depart on the given date (+/- dayRange days) in their origin's timezone. The date range and cursor are part of
+     * the query, so only flights on the page are read, using the flight route / departure time index. Only the flights'
+     * ids and departure times are read.
+     */
+    private List<FlightEntry> findFlights(EntityManager em, List<Airport> origins, List<Airport> destinations,
+                                          String departureDate, int dayRange, FlightEntry after, int limit) {
+        List<Long> destinationIds = getIds(destinations);
+        if (destinationIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // The date range depends on the origin's timezone, so origins in different timezones are queried separately
+        Map<String, List<Long>> originIdsByTimeZone = origins.stream()
+                .collect(Collectors.groupingBy(Airport::getTimeZone,
+                        Collectors.mapping(Airport::getId, Collectors.toList())));
+
+        List<FlightEntry> page = new ArrayList<>();
+        for (Map.Entry<String, List<Long>> originIds : originIdsByTimeZone.entrySet()) {
+            ZonedDateTime[] dateRange = parseDepartureDateQuery(departureDate, dayRange, originIds.getKey());
+            TypedQuery<Object[]> query = em.createQuery(
+                            "select f.id, f.departureTime from Flight f "
+                            + "where f.origin.id in :origins and f.destination.id in :destinations "
+                            + "and f.departureTime > :earliest and f.departureTime < :latest "
+                            + (after == null ? "" : "and (f.departureTime > :afterTime "
+                            + "or (f.departureTime = :afterTime and f.id > :afterId)) ")
+                            + "order by f.departureTime, f.id", Object[].class)
+                    .setParameter("origins", originIds.getValue())
+                    .setParameter("destinations", destinationIds)
+                    .setParameter("earliest", dateRange[0])
+                    .setParameter("latest", dateRange[1])
+                    .setMaxResults(limit);
+            if (after != null) {
+                query.setParameter("afterTime", after.getDepartureTime().atZone(ZoneOffset.UTC))
+                        .setParameter("afterId", after.getId());
+            }
+            for (Object[] flight : query.getResultList()) {
+                page.add(new FlightEntry((Long) flight[0], ((ZonedDateTime) flight[1]).toInstant()));
+            }
+        }
+        if (originIdsByTimeZone.size() > 1) {
+            Collections.sort(page);
+            if (page.size() > limit) {
+                page = page.subList(0, limit);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Finds the quickest itineraries from airports matching the given origin to airports matching the given
+     * destination, including those which connect through other airports. See {@link FlightCatalog#findItineraries}. The
+     * connection window defaults to the configured itinerary.minConnectionMinutes and itinerary.maxConnectionMinutes.
+     */
+    @GET
+    @Path("itineraries")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response itinerarySearch(@QueryParam("origin") String origin,
+                                    @QueryParam("destination") String destination,
+                                    @QueryParam("departureDate") String departureDate,
+                                    @QueryParam("dayRange") @DefaultValue("0") int dayRange,
+                                    @QueryParam("maxStops") @DefaultValue("2") int maxStops,
+                                    @QueryParam("minConnection") Integer minConnection,
+                                    @QueryParam("maxConnection") Integer maxConnection,
+                                    @QueryParam("limit") @DefaultValue("10") int limit) {
+        if (minConnection == null) {
+            minConnection = ConfigUtils.getInt("itinerary.minConnectionMinutes", 60);
+        }
+        if (maxConnection == null) {
+            maxConnection = ConfigUtils.getInt("itinerary.maxConnectionMinutes", 24 * 60);
+        }
+        if (origin == null || destination == null || dayRange < 0 || maxStops < 0 || maxStops > MAX_STOPS
+                || minConnection < 0 || maxConnection < minConnection || !isValidLimit(limit)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        LocalDate date = null;
+        if (departureDate != null) {
+            try {
+                date = LocalDate.parse(departureDate, DateTimeFormatter.ISO_DATE);
+            } catch (DateTimeParseException e) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+        }
+
+        List<FlightCatalog.Itinerary> itineraries = FlightCatalog.instance().findItineraries(origin, destination,
+                date, dayRange, maxStops, Duration.ofMinutes(minConnection), Duration.ofMinutes(maxConnection), limit);
+        if (itineraries.isEmpty()) {
+            return Response.ok(new ArrayList<ItineraryDTO>()).build();
+        }
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            Set<Long> flightIds = new HashSet<>();
+            itineraries.forEach(itinerary -> flightIds.addAll(itinerary.getFlightIds()));
+            Map<Long, FlightDTO> flights = new HashMap<>();
+            for (Flight flight : em.createQuery("select f from Flight f where f.id in :ids", Flight.class)
+                    .setParameter("ids", flightIds)
+                    .getResultList()) {
+                flights.put(flight.getId(), FlightMapper.toDTO(flight));
+            }
+
+            List<ItineraryDTO> itineraryDTOList = new ArrayList<>();
+            for (FlightCatalog.Itinerary itinerary : itineraries) {
+                itineraryDTOList.add(new ItineraryDTO(
+                        itinerary.getFlightIds().stream().map(flights::get).collect(Collectors.toList()),
+                        itinerary.getDuration().toMinutes()));
+            }
+            return Response.ok(itineraryDTOList).build();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Gets the lowest available fare on each day of the given month ("YYYY-MM"), on flights from airports matching the
+     * given origin to airports matching the given destination. Days are in the origin's timezone, and only flights with
+     * unbooked seats of the given cabin class (or of any class, if none is given) are considered. Days with no such
+     * flights are omitted. See {@link FareCalendar}.
+     */
+    @GET
+    @Path("calendar")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response fareCalendar(@QueryParam("origin") String origin,
+                                 @QueryParam("destination") String destination,
+                                 @QueryParam("month") String monthQuery,
+                                 @QueryParam("cabinClass") String cabinClassName) {
+        if (origin == null || destination == null || monthQuery == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        YearMonth month;
+        CabinClass cabinClass = null;
+        try {
+            month = YearMonth.parse(monthQuery);
+            if (cabinClassName != null) {
+                cabinClass = CabinClass.valueOf(cabinClassName);
+            }
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            List<FareCalendarDayDTO> days = FareCalendar.instance().getCalendar(em,
+                    FlightCatalog.instance().findAirports(origin), FlightCatalog.instance().findAirports(destination),
+                    month, cabinClass);
+            return Response.ok(days).build();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Encodes the position of the last flight on a page of search results - its departure time and id - as an opaque
+     * URL-safe cursor, so that clients don't come to depend on its format.
+     */
+    private static String encodeCursor(FlightEntry flight) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                (flight.getDepartureTime() + "," + flight.getId()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the cursor isn't valid Base64, or isn't a departure time and id
+     * @throws DateTimeException        if the departure time is invalid
+     */
+    private static FlightEntry decodeCursor(String cursor) {
+        String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return new FlightEntry(Long.parseLong(parts[1]), Instant.parse(parts[0]));
+    }
+
     @GET
     @Path("{id}/booking-info")
     @Produces(MediaType.APPLICATION_JSON)
@@ -138,6 +459,49 @@ public class FlightsResource {
         }
     }
 
+    /**
+     * Suggests groups of adjacent seats on the given flight which are currently available, best first. See
+     * {@link se325.flights.domain.SeatLayout#findSeatGroups}.
+     */
+    @GET
+    @Path("{id}/seat-suggestions")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response seatSuggestions(@PathParam("id") long id,
+                                    @QueryParam("count") @DefaultValue("1") int count,
+                                    @QueryParam("cabinClass") String cabinClassName,
+                                    @QueryParam("limit") @DefaultValue("5") int limit) {
+        CabinClass cabinClass = null;
+        if (cabinClassName != null) {
+            try {
+                cabinClass = CabinClass.valueOf(cabinClassName);
+            } catch (IllegalArgumentException e) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+        }
+        if (count <= 0 || limit <= 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                    .setParameter("idLink", id)
+                    .getSingleResult();
+
+            BitSet unavailable = BookingManager.instance().getUnavailableSeats(id);
+            List<SeatSuggestionDTO> suggestions = new ArrayList<>();
+            for (List<String> seats : flight.suggestSeats(cabinClass, count, unavailable, limit)) {
+                suggestions.add(new SeatSuggestionDTO(seats, flight.getPriceFor(seats)));
+            }
+            return Response.ok(suggestions).build();
+
+        } catch (NoResultException e) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        } finally {
+            em.close();
+        }
+    }
+
     @POST
     @Path("subscribe")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -0,0 +1,216 @@
+package se325.flights.service;
+
+import se325.flights.CabinClass;
+import se325.flights.domain.IdempotencyRecord;
+import se325.flights.domain.IdempotencyRecord.Operation;
+import se325.flights.util.ConfigUtils;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.core.Response;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Remembers the outcomes of booking requests made with an Idempotency-Key header, so that a client which retries a
+ * request (e.g. after timing out) gets the original outcome back, rather than a duplicate booking or a confusing 409.
+ * <p>
+ * Recent outcomes - successful or not - are kept in a bounded, least-recently-used in-memory cache. Successful outcomes
+ * are also saved as {@link IdempotencyRecord}s in the same transaction as the booking or cancellation itself (see
+ * {@link BookingManager}), which are looked up if the cache doesn't have a successful outcome. Failed outcomes aren't
+ * saved, so once they've been evicted from the cache, a retried request is simply made again. Either way, a repeated
+ * request never needs to lock its flight. Failures which may be transient (e.g. a lock timeout) aren't remembered at
+ * all, so that a retry is actually retried.
+ * <p>
+ * Each outcome is stored with a hash of the request it's for (see the requestHash methods). A request which re-uses a
+ * key with a different target or body gets a 422 Unprocessable Entity outcome, rather than another request's outcome.
+ * Singleton so that any resource instance can access the same cache.
+ */
+public class IdempotencyManager {
+
+    private static IdempotencyManager instance;
+
+    public static IdempotencyManager instance() {
+        if (instance == null) {
+            instance = new IdempotencyManager();
+        }
+        return instance;
+    }
+
+    /**
+     * The status returned for a request which re-uses an idempotency key with a different request
+     */
+    public static final int KEY_REUSED_STATUS = 422;
+
+    private static final Outcome KEY_REUSED = new Outcome(KEY_REUSED_STATUS, null, null);
+
+    /**
+     * The outcome of a request, i.e. its response status and location (if any), and the hash of the request
+     */
+    public static class Outcome {
+        private final int status;
+        private final URI location;
+        private final String requestHash;
+
+        private Outcome(int status, URI location, String requestHash) {
+            this.status = status;
+            this.location = location;
+            this.requestHash = requestHash;
+        }
+
+        public static Outcome of(Response response, String requestHash) {
+            return new Outcome(response.getStatus(), response.getLocation(), requestHash);
+        }
+
+        private static Outcome of(IdempotencyRecord record) {
+            if (record.getOperation() == Operation.MAKE_BOOKING) {
+                return new Outcome(Response.Status.CREATED.getStatusCode(),
+                        URI.create("/bookings/" + record.getBookingId()), record.getRequestHash());
+            }
+            return new Outcome(Response.Status.NO_CONTENT.getStatusCode(), null, record.getRequestHash());
+        }
+
+        public boolean isSuccessful() {
+            return Response.Status.Family.familyOf(status) == Response.Status.Family.SUCCESSFUL;
+        }
+
+        public Response toResponse() {
+            return Response.status(status).location(location).build();
+        }
+    }
+
+    /**
+     * Recent outcomes, keyed by user id, operation and idempotency key. Access-ordered, so the least recently used
+     * outcome is evicted once the cache is full.
+     */
+    private final Map<String, Outcome> cache;
+
+    private IdempotencyManager() {
+        int maxEntries = ConfigUtils.getInt("idempotency.cache.maxEntries", 10000);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets a value indicating whether the given idempotency key is acceptable. Null means no key was given, which is
+     * acceptable.
+     */
+    public static boolean isValidKey(String idempotencyKey) {
+        return idempotencyKey == null
+                || (!idempotencyKey.isBlank() && idempotencyKey.length() <= IdempotencyRecord.MAX_KEY_LENGTH);
+    }
+
+    /**
+     * Gets the hash identifying a request to book the given seats on the given flight. The order of the seats doesn't
+     * matter.
+     */
+    public static String requestHash(long flightId, List<String> seatCodes) {
+        return hash("book:" + flightId + ":" + (seatCodes == null ? null : new TreeSet<>(seatCodes)));
+    }
+
+    /**
+     * Gets the hash identifying a request to book the given number of server-assigned seats on the given flight.
+     */
+    public static String requestHash(long flightId, CabinClass cabinClass, int numSeats, boolean keepTogether) {
+        return hash("assign:" + flightId + ":" + cabinClass + ":" + numSeats + ":" + keepTogether);
+    }
+
+    /**
+     * Gets the hash identifying a request to cancel the booking with the given id.
+     */
+    public static String requestHash(long bookingId) {
+        return hash("cancel:" + bookingId);
+    }
+
+    /**
+     * Gets the outcome of an earlier request with the given idempotency key. Successful outcomes are returned straight
+     * from the cache if possible, otherwise the database is checked for one.
+     *
+     * @param em             the {@link EntityManager} to use to access the database
+     * @param userId         the id of the user making the request
+     * @param operation      the operation being requested
+     * @param idempotencyKey the key sent with the request
+     * @param requestHash    the hash of the request (see the requestHash methods)
+     * @return the earlier outcome, a {@link #KEY_REUSED_STATUS} outcome if the key was used for a different request, or
+     * null if there isn't one
+     */
+    public Outcome getOutcome(EntityManager em, long userId, Operation operation, String idempotencyKey,
+                              String requestHash) {
+        String cacheKey = cacheKey(userId, operation, idempotencyKey);
+        Outcome cached;
+        synchronized (cache) {
+            cached = cache.get(cacheKey);
+        }
+        // A cached failure may have been caused by a concurrent request with the same key, which has since succeeded
+        if (cached != null && cached.isSuccessful()) {
+            return checkRequest(cached, requestHash);
+        }
+
+        List<IdempotencyRecord> records = em.createQuery(
+                        "select r from IdempotencyRecord r where r.userId = :userLink and r.operation = :operationLink "
+                        + "and r.idempotencyKey = :keyLink", IdempotencyRecord.class)
+                .setParameter("userLink", userId)
+                .setParameter("operationLink", operation)
+                .setParameter("keyLink", idempotencyKey)
+                .getResultList();
+        if (records.isEmpty()) {
+            return cached == null ? null : checkRequest(cached, requestHash);
+        }
+
+        Outcome outcome = Outcome.of(records.get(0));
+        putOutcome(cacheKey, outcome);
+        return checkRequest(outcome, requestHash);
+    }
+
+    /**
+     * Remembers the outcome of a request with the given idempotency key.
+     *
+     * @param userId         the id of the user who made the request
+     * @param operation      the operation which was requested
+     * @param idempotencyKey the key sent with the request
+     * @param outcome        the outcome of the request. Shouldn't be a failure which may be transient.
+     */
+    public void putOutcome(long userId, Operation operation, String idempotencyKey, Outcome outcome) {
+        putOutcome(cacheKey(userId, operation, idempotencyKey), outcome);
+    }
+
+    /**
+     * Forgets all cached outcomes, e.g. when the database has been reset.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private void putOutcome(String cacheKey, Outcome outcome) {
+        synchronized (cache) {
+            cache.put(cacheKey, outcome);
+        }
+    }
+
+    private static Outcome checkRequest(Outcome outcome, String requestHash) {
+        return Objects.equals(outcome.requestHash, requestHash) ? outcome : KEY_REUSED;
+    }
+
+    private static String hash(String request) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(request.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String cacheKey(long userId, Operation operation, String idempotencyKey) {
+        return userId + ":" + operation + ":" + idempotencyKey;
+    }
+}
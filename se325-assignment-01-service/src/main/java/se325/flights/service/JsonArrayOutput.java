@@ -0,0 +1,76 @@
+package se325.flights.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Writes the results of a query as a JSON array, mapping each entity to a DTO and writing it as soon as it's read. The
+ * query's results are read incrementally (see {@link javax.persistence.TypedQuery#getResultStream()}), and the
+ * EntityManager is cleared periodically so that entities which have already been written can be garbage collected. So
+ * the memory used per request doesn't depend on the number of results.
+ * <p>
+ * The response is written after the resource method returns, so this takes ownership of the given EntityManager, and
+ * closes it once the response has been written.
+ *
+ * @param <E> the type of entity read by the query
+ */
+public class JsonArrayOutput<E> implements StreamingOutput {
+
+    /**
+     * The number of entities to write between clearing the EntityManager
+     */
+    private static final int CLEAR_INTERVAL = 50;
+
+    /**
+     * The number of rows to read from the database at a time
+     */
+    public static final int FETCH_SIZE = 50;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+    private final EntityManager em;
+    private final Stream<E> results;
+    private final Function<E, ?> mapper;
+
+    /**
+     * Creates a new JsonArrayOutput
+     *
+     * @param em      the EntityManager the results are read with. Closed once the response has been written.
+     * @param results the query results, which should be read using a fetch size of {@link #FETCH_SIZE}
+     * @param mapper  maps each entity to the DTO to write
+     */
+    public JsonArrayOutput(EntityManager em, Stream<E> results, Function<E, ?> mapper) {
+        this.em = em;
+        this.results = results;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (Stream<E> results = this.results;
+             JsonGenerator generator = MAPPER.getFactory().createGenerator(output)) {
+            generator.writeStartArray();
+            int count = 0;
+            Iterator<E> iterator = results.iterator();
+            while (iterator.hasNext()) {
+                generator.writeObject(mapper.apply(iterator.next()));
+                if (++count % CLEAR_INTERVAL == 0) {
+                    generator.flush();
+                    em.clear();
+                }
+            }
+            generator.writeEndArray();
+        } finally {
+            em.close();
+        }
+    }
+}
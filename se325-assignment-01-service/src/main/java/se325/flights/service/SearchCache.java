@@ -0,0 +1,281 @@
+package se325.flights.service;
+
+import se325.flights.dto.FlightDTO;
+import se325.flights.util.ConfigUtils;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Caches pages of flight search results, so that identical searches (e.g. the same route and date, searched for by
+ * many users at once) don't each repeat the same queries and mapping.
+ * <p>
+ * Searches are keyed by the airports their origin and destination strings resolve to, rather than the strings
+ * themselves - so searches for "AKL" and "auckland" share an entry. The cache holds at most a configured number of
+ * entries, evicting the least recently used, and each entry expires a configured time after it was cached. Entries
+ * are also indexed by the routes (origin / destination pairs) they cover, so that when the flights on a route change,
+ * only the searches covering that route are invalidated (see {@link #invalidateRoute(long, long)}). Searches which
+ * include the number of seats remaining on each flight are also invalidated whenever a flight on their route is booked
+ * or a booking is cancelled (see {@link #invalidateSeatsRemaining(long, long)}).
+ * <p>
+ * Hit, miss and eviction counts are kept so that the cache can be tuned. Singleton so that all resource instances share
+ * the same cache.
+ */
+public class SearchCache {
+
+    private static SearchCache instance;
+
+    public static SearchCache instance() {
+        if (instance == null) {
+            instance = new SearchCache(ConfigUtils.getInt("search.cache.maxEntries", 1000),
+                    Duration.ofSeconds(ConfigUtils.getLong("search.cache.ttlSeconds", 60)));
+        }
+        return instance;
+    }
+
+    /**
+     * A normalized search: the ids of the airports matching the origin and destination, the date range (if any), the
+     * page requested, and whether the results include the number of seats remaining on each flight
+     */
+    public static class Key {
+        private final List<Long> originIds;
+        private final List<Long> destinationIds;
+        private final LocalDate departureDate;
+        private final int dayRange;
+        private final int limit;
+        private final String after;
+        private final boolean seatsRemaining;
+
+        public Key(Collection<Long> originIds, Collection<Long> destinationIds, LocalDate departureDate, int dayRange,
+                   int limit, String after, boolean seatsRemaining) {
+            this.originIds = sorted(originIds);
+            this.destinationIds = sorted(destinationIds);
+            this.departureDate = departureDate;
+            this.dayRange = departureDate == null ? 0 : dayRange;
+            this.limit = limit;
+            this.after = after;
+            this.seatsRemaining = seatsRemaining;
+        }
+
+        private static List<Long> sorted(Collection<Long> ids) {
+            List<Long> list = new ArrayList<>(new TreeSet<>(ids));
+            return Collections.unmodifiableList(list);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return dayRange == key.dayRange && limit == key.limit && seatsRemaining == key.seatsRemaining
+                    && originIds.equals(key.originIds)
+                    && destinationIds.equals(key.destinationIds) && Objects.equals(departureDate, key.departureDate)
+                    && Objects.equals(after, key.after);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(originIds, destinationIds, departureDate, dayRange, limit, after, seatsRemaining);
+        }
+    }
+
+    /**
+     * A cached page of search results, and the cursor for the next page (null if it's the last page)
+     */
+    public static class Page {
+        private final List<FlightDTO> flights;
+        private final String next;
+        private final long expiresAt;
+
+        private Page(List<FlightDTO> flights, String next, long expiresAt) {
+            this.flights = Collections.unmodifiableList(new ArrayList<>(flights));
+            this.next = next;
+            this.expiresAt = expiresAt;
+        }
+
+        public List<FlightDTO> getFlights() {
+            return flights;
+        }
+
+        public String getNext() {
+            return next;
+        }
+    }
+
+    /**
+     * Access-ordered, so the least recently used entry is evicted once the cache is full
+     */
+    private final Map<Key, Page> pages;
+
+    /**
+     * The keys of the cached pages covering each route, by origin id then destination id
+     */
+    private final Map<Long, Map<Long, Set<Key>>> keysByRoute = new HashMap<>();
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a new SearchCache. Only {@link #instance()} should be used by the service; this is public for testing.
+     *
+     * @param maxEntries the maximum number of entries to cache. If 0, nothing is cached.
+     * @param ttl        how long each entry is cached for
+     */
+    public SearchCache(int maxEntries, Duration ttl) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Page> eldest) {
+                if (size() > maxEntries) {
+                    unindex(eldest.getKey());
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached results of the given search, and counts a hit or a miss.
+     *
+     * @return the cached page, or null if the search isn't cached, or its entry has expired
+     */
+    public synchronized Page get(Key key) {
+        Page page = pages.get(key);
+        if (page != null && page.expiresAt - System.nanoTime() < 0) {
+            remove(key);
+            evictions++;
+            page = null;
+        }
+        if (page == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return page;
+    }
+
+    /**
+     * Caches the results of the given search.
+     *
+     * @param key     the search
+     * @param flights the flights on the requested page
+     * @param next    the cursor for the next page, or null if there isn't one
+     */
+    public synchronized void put(Key key, List<FlightDTO> flights, String next) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        pages.put(key, new Page(flights, next, System.nanoTime() + ttlNanos));
+        for (long originId : key.destinationIds.isEmpty() ? List.<Long>of() : key.originIds) {
+            Map<Long, Set<Key>> destinations = keysByRoute.computeIfAbsent(originId, id -> new HashMap<>());
+            for (long destinationId : key.destinationIds) {
+                destinations.computeIfAbsent(destinationId, id -> new HashSet<>()).add(key);
+            }
+        }
+    }
+
+    /**
+     * Discards every cached search which covers the given route, e.g. because a flight on the route has changed.
+     * Searches on other routes are unaffected.
+     */
+    public synchronized void invalidateRoute(long originId, long destinationId) {
+        Set<Key> keys = keysByRoute.getOrDefault(originId, Map.of()).get(destinationId);
+        if (keys != null) {
+            for (Key key : new ArrayList<>(keys)) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Discards every cached search which covers the given route and includes the number of seats remaining on each
+     * flight, e.g. because a flight on the route has been booked. Searches without seat counts aren't affected by
+     * bookings, so are kept.
+     */
+    public synchronized void invalidateSeatsRemaining(long originId, long destinationId) {
+        Set<Key> keys = keysByRoute.getOrDefault(originId, Map.of()).get(destinationId);
+        if (keys != null) {
+            for (Key key : new ArrayList<>(keys)) {
+                if (key.seatsRemaining) {
+                    remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of searches which were found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of searches which weren't found in the cache (including those whose entries had expired)
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of entries which were discarded because the cache was full, or they had expired
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the number of entries currently cached
+     */
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    /**
+     * Discards all cached searches and resets the counts, e.g. when the database has been reset
+     */
+    public synchronized void clear() {
+        pages.clear();
+        keysByRoute.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    private void remove(Key key) {
+        pages.remove(key);
+        unindex(key);
+    }
+
+    private void unindex(Key key) {
+        for (long originId : key.originIds) {
+            Map<Long, Set<Key>> destinations = keysByRoute.get(originId);
+            if (destinations == null) {
+                continue;
+            }
+            for (long destinationId : key.destinationIds) {
+                Set<Key> keys = destinations.get(destinationId);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        destinations.remove(destinationId);
+                    }
+                }
+            }
+            if (destinations.isEmpty()) {
+                keysByRoute.remove(originId);
+            }
+        }
+    }
+}
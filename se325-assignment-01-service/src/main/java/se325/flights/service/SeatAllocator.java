@@ -0,0 +1,178 @@
+package se325.flights.service;
+
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.domain.SeatLayout;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps an in-memory {@link AtomicSeatMap} for every flight which has been booked since startup, so that requests for
+ * seats which are already taken (or don't exist) can be turned down without a database round trip or any locking.
+ * <p>
+ * Bookings claim their seats here before writing to the database, and release them again if the database write fails.
+ * Cancellations release their seats once committed. The database remains the source of truth - a flight's seat map is
+ * loaded from its seat occupancy bitmap the first time it's needed (or from the {@link BookingJournal}, if it's enabled
+ * and has recorded the flight), and all maps are discarded by {@link #clear()}.
+ * <p>
+ * Each flight's map is only loaded once, so bookings and cancellations made by any other JVM are never seen. That's why
+ * the allocator is disabled by default (booking.allocator.enabled). Singleton so that all bookings in this JVM share
+ * the same seat maps.
+ */
+public class SeatAllocator {
+
+    /**
+     * Initialized when first used, by the JVM's class initialization, which is thread-safe
+     */
+    private static class Holder {
+        private static final SeatAllocator INSTANCE = new SeatAllocator();
+    }
+
+    public static SeatAllocator instance() {
+        return Holder.INSTANCE;
+    }
+
+    private SeatAllocator() {
+    }
+
+    /**
+     * A flight's seat layout, along with its seat map
+     */
+    private static class FlightSeats {
+        private final SeatLayout layout;
+        private final AtomicSeatMap seats;
+
+        private FlightSeats(SeatLayout layout, AtomicSeatMap seats) {
+            this.layout = layout;
+            this.seats = seats;
+        }
+    }
+
+    private final ConcurrentMap<Long, FlightSeats> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Claims the given seats on the given flight.
+     *
+     * @param flightId  the id of the flight
+     * @param seatCodes the seats to claim
+     * @return the ordinals of the claimed seats, to be passed to {@link #release(long, int...)} if the booking fails
+     * @throws NoResultException if there's no flight with the given id
+     * @throws BookingException  if there are no seats, any seat code is invalid, or any seat is already claimed
+     */
+    public int[] claim(long flightId, Collection<String> seatCodes) throws BookingException {
+        if (seatCodes == null || seatCodes.isEmpty()) {
+            throw new BookingException("Cannot make a booking for 0 seats");
+        }
+
+        FlightSeats flight = getFlightSeats(flightId);
+        int[] ordinals = toOrdinals(flight.layout, seatCodes);
+
+        if (!flight.seats.tryClaim(ordinals)) {
+            throw new BookingException("One ore more seats are already booked");
+        }
+        return ordinals;
+    }
+
+    /**
+     * Releases the given seats on the given flight.
+     *
+     * @param flightId the id of the flight
+     * @param ordinals the ordinals of the seats to release
+     */
+    public void release(long flightId, int... ordinals) {
+        FlightSeats flight = flights.get(flightId);
+        if (flight != null) {
+            flight.seats.release(ordinals);
+        }
+    }
+
+    /**
+     * Releases the given seats on the given flight.
+     *
+     * @param flightId  the id of the flight
+     * @param seatCodes the codes of the seats to release. Invalid codes are ignored.
+     */
+    public void release(long flightId, Collection<String> seatCodes) {
+        FlightSeats flight = flights.get(flightId);
+        if (flight != null) {
+            for (String seatCode : seatCodes) {
+                int ordinal = flight.layout.getOrdinal(seatCode);
+                if (ordinal >= 0) {
+                    flight.seats.release(ordinal);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a snapshot of the currently claimed seats on the given flight.
+     *
+     * @param flightId the id of the flight
+     * @return a bitmap of claimed seat ordinals
+     * @throws NoResultException if there's no flight with the given id
+     */
+    public BitSet getClaimedSeats(long flightId) {
+        return getFlightSeats(flightId).seats.snapshot();
+    }
+
+    /**
+     * Ensures the seat map for the given flight has been loaded. Cancellations must call this before committing, so
+     * that a seat map loaded concurrently can't miss the cancellation.
+     *
+     * @param flightId the id of the flight
+     * @throws NoResultException if there's no flight with the given id
+     */
+    public void load(long flightId) {
+        getFlightSeats(flightId);
+    }
+
+    /**
+     * Discards all seat maps, e.g. when the database has been reset.
+     */
+    public void clear() {
+        flights.clear();
+    }
+
+    private FlightSeats getFlightSeats(long flightId) {
+        FlightSeats flight = flights.get(flightId);
+        if (flight == null) {
+            flight = flights.computeIfAbsent(flightId, this::loadFlightSeats);
+        }
+        return flight;
+    }
+
+    private FlightSeats loadFlightSeats(long flightId) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            Flight flight = em.createQuery("select f from Flight f where f.id = :idLink", Flight.class)
+                    .setParameter("idLink", flightId)
+                    .getSingleResult();
+
+            SeatLayout layout = flight.getAircraftType().getSeatLayout();
+            BitSet booked = BookingJournal.isEnabled() ? BookingJournal.instance().getBookedSeats(flightId) : null;
+            if (booked == null) {
+                booked = flight.getSeatOccupancy();
+            }
+            return new FlightSeats(layout, new AtomicSeatMap(layout.getNumSeats(), booked));
+        } finally {
+            em.close();
+        }
+    }
+
+    private static int[] toOrdinals(SeatLayout layout, Collection<String> seatCodes) throws BookingException {
+        BitSet requested = new BitSet(layout.getNumSeats());
+        for (String seatCode : seatCodes) {
+            int ordinal = layout.getOrdinal(seatCode);
+            if (ordinal < 0) {
+                throw new BookingException("Seat with the given code not found on this aircraft");
+            }
+            requested.set(ordinal);
+        }
+        return requested.stream().toArray();
+    }
+}
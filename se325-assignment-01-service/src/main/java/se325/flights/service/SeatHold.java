@@ -0,0 +1,85 @@
+package se325.flights.service;
+
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A temporary, in-memory hold on some seats of a flight, placed by a user who intends to book them. Held seats can't be
+ * booked or held by anyone else until the hold is confirmed, released, or expires. See {@link SeatHoldManager}.
+ */
+public class SeatHold {
+
+    private final String id;
+    private final long userId;
+    private final long flightId;
+    private final List<String> seatCodes;
+    private final BitSet seats;
+    private final Instant expiresAt;
+
+    /**
+     * The ordinals of the seats claimed by this hold in the {@link SeatAllocator}, or null if the allocator is disabled
+     */
+    private final int[] claimed;
+
+    /**
+     * Whether this hold is currently being converted into a booking. Guarded by the {@link SeatHoldManager}'s lock for
+     * this hold's flight.
+     */
+    private boolean confirming;
+
+    SeatHold(String id, long userId, long flightId, List<String> seatCodes, BitSet seats, Instant expiresAt,
+             int[] claimed) {
+        this.id = id;
+        this.userId = userId;
+        this.flightId = flightId;
+        this.seatCodes = Collections.unmodifiableList(seatCodes);
+        this.seats = seats;
+        this.expiresAt = expiresAt;
+        this.claimed = claimed;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public long getFlightId() {
+        return flightId;
+    }
+
+    public List<String> getSeatCodes() {
+        return seatCodes;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(Instant now) {
+        return !now.isBefore(expiresAt);
+    }
+
+    /**
+     * Gets the ordinals of the held seats. Must not be modified.
+     */
+    BitSet getSeats() {
+        return seats;
+    }
+
+    int[] getClaimed() {
+        return claimed;
+    }
+
+    boolean isConfirming() {
+        return confirming;
+    }
+
+    void setConfirming(boolean confirming) {
+        this.confirming = confirming;
+    }
+}
@@ -0,0 +1,282 @@
+package se325.flights.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.util.ConfigUtils;
+
+import javax.persistence.NoResultException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A central place to hold all {@link SeatHold}s. Holds are kept in memory only, and last for the configured
+ * booking.hold.ttlSeconds. A background sweeper periodically discards expired holds, and processes the subscriptions
+ * for their flights since their seats have become available again. Singleton so that any resource instance can access
+ * the same holds.
+ * <p>
+ * A hold which is being confirmed stays in place - and keeps its seats held against everyone else, even if it expires
+ * in the meantime - until its booking has either committed or failed. See {@link #beginConfirm(String, long)}.
+ */
+public class SeatHoldManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeatHoldManager.class);
+
+    /**
+     * Initialized when first used, by the JVM's class initialization, which is thread-safe
+     */
+    private static class Holder {
+        private static final SeatHoldManager INSTANCE = new SeatHoldManager();
+    }
+
+    public static SeatHoldManager instance() {
+        return Holder.INSTANCE;
+    }
+
+    private final Duration ttl;
+
+    /**
+     * All current holds, by id
+     */
+    private final ConcurrentMap<String, SeatHold> holds = new ConcurrentHashMap<>();
+
+    /**
+     * All current holds, by flight id then hold id. Each flight's map is also used as the lock which makes checking
+     * for conflicting holds and placing a new hold atomic.
+     */
+    private final ConcurrentMap<Long, Map<String, SeatHold>> flightHolds = new ConcurrentHashMap<>();
+
+    /**
+     * In charge of periodically discarding expired holds
+     */
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seat-hold-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SeatHoldManager() {
+        this.ttl = Duration.ofSeconds(ConfigUtils.getLong("booking.hold.ttlSeconds", 300));
+        long sweepIntervalMillis = ConfigUtils.getLong("booking.hold.sweepIntervalMillis", 1000);
+
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Places a hold on the given seats of the given flight, for the given user. The seats must be valid, and neither
+     * booked nor held by anyone (including the same user). The flight's seat occupancy is only checked as it is in the
+     * given instance, so the caller should have the flight locked (see
+     * {@link BookingManager#placeHold(javax.persistence.EntityManager, long, long, List)}).
+     *
+     * @param flight    the flight to hold seats on
+     * @param userId    the id of the user placing the hold
+     * @param seatCodes the seats to hold
+     * @param claimed   the ordinals of the seats which have already been claimed in the {@link SeatAllocator} for
+     *                  this hold, or null if the allocator is disabled. These will be released when the hold expires.
+     * @return the new hold
+     * @throws BookingException if the seats can't be held
+     */
+    public SeatHold placeHold(Flight flight, long userId, List<String> seatCodes, int[] claimed)
+            throws BookingException {
+
+        Map<String, SeatHold> holdsForFlight = flightHolds.computeIfAbsent(flight.getId(), id -> new HashMap<>());
+        synchronized (holdsForFlight) {
+            BitSet requested = flight.ensureAvailable(seatCodes, getHeldSeats(holdsForFlight, null));
+
+            SeatHold hold = new SeatHold(UUID.randomUUID().toString(), userId, flight.getId(),
+                    new ArrayList<>(seatCodes), requested, Instant.now().plus(ttl), claimed);
+            holdsForFlight.put(hold.getId(), hold);
+            holds.put(hold.getId(), hold);
+            return hold;
+        }
+    }
+
+    /**
+     * Gets the ordinals of all seats on the given flight which are currently held.
+     *
+     * @param flightId the id of the flight to check
+     * @return a bitmap of held seat ordinals
+     */
+    public BitSet getHeldSeats(long flightId) {
+        return getHeldSeats(flightId, null);
+    }
+
+    /**
+     * Gets the ordinals of all seats on the given flight which are currently held, other than by the given hold.
+     *
+     * @param flightId the id of the flight to check
+     * @param excluded the hold whose seats should be left out (i.e. the one being confirmed), or null
+     * @return a bitmap of held seat ordinals
+     */
+    public BitSet getHeldSeats(long flightId, SeatHold excluded) {
+        Map<String, SeatHold> holdsForFlight = flightHolds.get(flightId);
+        if (holdsForFlight == null) {
+            return new BitSet();
+        }
+        synchronized (holdsForFlight) {
+            return getHeldSeats(holdsForFlight, excluded);
+        }
+    }
+
+    /**
+     * Marks the given user's hold with the given id as being confirmed, so that it can be converted into a booking. The
+     * hold stays in place while the booking is made, so its seats can't be taken by anyone else, and it can't be
+     * released, expire, or be confirmed again in the meantime. The caller must finish with either
+     * {@link #discardHold(SeatHold)} once the booking has committed, or {@link #endConfirm(SeatHold)} if it fails.
+     *
+     * @param holdId the id of the hold
+     * @param userId the id of the user who placed the hold
+     * @return the hold
+     * @throws NoResultException if there's no unexpired hold with the given id belonging to the given user, which isn't
+     *                           already being confirmed
+     */
+    public SeatHold beginConfirm(String holdId, long userId) {
+        SeatHold hold = getHold(holdId, userId);
+        Map<String, SeatHold> holdsForFlight = getHoldsForFlight(hold);
+        synchronized (holdsForFlight) {
+            if (holdsForFlight.get(holdId) != hold || hold.isConfirming() || hold.isExpired(Instant.now())) {
+                throw new NoResultException("No such hold: " + holdId);
+            }
+            hold.setConfirming(true);
+        }
+        return hold;
+    }
+
+    /**
+     * Puts back a hold whose booking failed, so that it can be confirmed again or released - or, if it's expired in
+     * the meantime, swept.
+     *
+     * @param hold a hold returned by {@link #beginConfirm(String, long)}
+     */
+    public void endConfirm(SeatHold hold) {
+        synchronized (getHoldsForFlight(hold)) {
+            hold.setConfirming(false);
+        }
+    }
+
+    /**
+     * Removes the given hold without releasing its {@link SeatAllocator} claim (if any), which the caller takes over -
+     * e.g. because the hold's seats have now been booked.
+     *
+     * @param hold the hold to remove
+     */
+    public void discardHold(SeatHold hold) {
+        Map<String, SeatHold> holdsForFlight = getHoldsForFlight(hold);
+        synchronized (holdsForFlight) {
+            remove(holdsForFlight, hold);
+        }
+    }
+
+    /**
+     * Releases the given user's hold with the given id, making its seats available again.
+     *
+     * @param holdId the id of the hold
+     * @param userId the id of the user who placed the hold
+     * @throws NoResultException if there's no unexpired hold with the given id belonging to the given user, or it's
+     *                           being confirmed
+     */
+    public void releaseHold(String holdId, long userId) {
+        SeatHold hold = getHold(holdId, userId);
+        Map<String, SeatHold> holdsForFlight = getHoldsForFlight(hold);
+        synchronized (holdsForFlight) {
+            if (hold.isConfirming() || hold.isExpired(Instant.now()) || !remove(holdsForFlight, hold)) {
+                throw new NoResultException("No such hold: " + holdId);
+            }
+        }
+        releaseClaim(hold);
+        SubscriptionManager.instance().processSubscriptions(hold.getFlightId());
+    }
+
+    /**
+     * Discards all holds, e.g. when the database has been reset.
+     */
+    public void clear() {
+        holds.clear();
+        flightHolds.clear();
+    }
+
+    /**
+     * Discards all expired holds, and processes subscriptions for their flights.
+     */
+    private void sweep() {
+        try {
+            Instant now = Instant.now();
+            Set<Long> flightIds = new HashSet<>();
+            for (SeatHold hold : holds.values()) {
+                if (hold.isExpired(now) && removeIfExpired(hold, now)) {
+                    releaseClaim(hold);
+                    flightIds.add(hold.getFlightId());
+                }
+            }
+
+            for (long flightId : flightIds) {
+                LOGGER.debug("Seat holds expired on flight " + flightId);
+                SubscriptionManager.instance().processSubscriptions(flightId);
+            }
+        } catch (RuntimeException e) {
+            // Don't let one failure stop all future sweeps
+            LOGGER.warn("Failed to sweep expired seat holds", e);
+        }
+    }
+
+    /**
+     * Gets the given user's hold with the given id, which might have expired or be being confirmed.
+     *
+     * @throws NoResultException if there's no such hold
+     */
+    private SeatHold getHold(String holdId, long userId) {
+        SeatHold hold = holds.get(holdId);
+        if (hold == null || hold.getUserId() != userId) {
+            throw new NoResultException("No such hold: " + holdId);
+        }
+        return hold;
+    }
+
+    /**
+     * Gets the map of holds (and lock) for the given hold's flight, or an empty map if the holds have been cleared
+     */
+    private Map<String, SeatHold> getHoldsForFlight(SeatHold hold) {
+        return flightHolds.getOrDefault(hold.getFlightId(), new HashMap<>());
+    }
+
+    private boolean removeIfExpired(SeatHold hold, Instant now) {
+        Map<String, SeatHold> holdsForFlight = getHoldsForFlight(hold);
+        synchronized (holdsForFlight) {
+            return !hold.isConfirming() && hold.isExpired(now) && remove(holdsForFlight, hold);
+        }
+    }
+
+    /**
+     * Removes the given hold from both maps. Must be called while holding the lock for its flight.
+     *
+     * @return whether the hold was still in place
+     */
+    private boolean remove(Map<String, SeatHold> holdsForFlight, SeatHold hold) {
+        holds.remove(hold.getId(), hold);
+        return holdsForFlight.remove(hold.getId(), hold);
+    }
+
+    private static void releaseClaim(SeatHold hold) {
+        if (hold.getClaimed() != null) {
+            SeatAllocator.instance().release(hold.getFlightId(), hold.getClaimed());
+        }
+    }
+
+    private static BitSet getHeldSeats(Map<String, SeatHold> holdsForFlight, SeatHold excluded) {
+        Instant now = Instant.now();
+        BitSet held = new BitSet();
+        for (SeatHold hold : holdsForFlight.values()) {
+            if (hold != excluded && (hold.isConfirming() || !hold.isExpired(now))) {
+                held.or(hold.getSeats());
+            }
+        }
+        return held;
+    }
+}
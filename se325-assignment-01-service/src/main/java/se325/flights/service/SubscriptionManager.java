@@ -1,27 +1,33 @@
 package se325.flights.service;
 
 import se325.flights.CabinClass;
-import se325.flights.domain.AircraftType;
-import se325.flights.domain.BookingException;
 import se325.flights.domain.Flight;
-import se325.flights.domain.Seat;
 import se325.flights.dto.AvailableSeatsSubscriptionDTO;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.TypedQuery;
 import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
 import javax.ws.rs.core.Response;
-import java.util.HashMap;
-import java.util.List;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
 
 /**
  * A central place to hold all the subscriptions and subscription management / processing methods. Singleton so that
  * any resource instance can access the same subscription service.
+ * <p>
+ * Subscriptions are held in a concurrent set per flight, in a concurrent map keyed by flight id, so they can be added
+ * from request threads while being processed on the thread pool, and removed in constant time once their responses
+ * have been sent. Processing a flight's subscriptions only touches that flight's set, and reads the flight once however
+ * many subscriptions are waiting for it - so the cost of a cancellation doesn't depend on the number of subscriptions
+ * waiting for other flights.
  */
 public class SubscriptionManager {
 
@@ -43,9 +49,23 @@ public class SubscriptionManager {
     private final ExecutorService threadPool = Executors.newFixedThreadPool(5);
 
     /**
-     * Holds all subscriptions
+     * A waiting subscription, and the response to resume once it's satisfied
      */
-    private final Map<AvailableSeatsSubscriptionDTO, AsyncResponse> subs = new HashMap<>();
+    private static class Subscription {
+        private final AvailableSeatsSubscriptionDTO info;
+        private final AsyncResponse response;
+
+        private Subscription(AvailableSeatsSubscriptionDTO info, AsyncResponse response) {
+            this.info = info;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Holds all waiting subscriptions, by flight id. A flight's set is removed once it's empty, so flights nobody is
+     * waiting for take no space.
+     */
+    private final Map<Long, Set<Subscription>> subs = new ConcurrentHashMap<>();
 
     /**
      * Adds the given subscription to the collection of ongoing subs.
@@ -56,34 +76,93 @@ public class SubscriptionManager {
      *                client
      */
     public void addSubscription(AvailableSeatsSubscriptionDTO subInfo, AsyncResponse sub) {
-        this.subs.put(subInfo, sub);
+        Subscription subscription = new Subscription(subInfo, sub);
+        // Added while the flight's entry is locked, so the set can't be removed for being empty in the meantime
+        subs.compute(subInfo.getFlightId(), (id, flightSubs) -> {
+            if (flightSubs == null) {
+                flightSubs = ConcurrentHashMap.newKeySet();
+            }
+            flightSubs.add(subscription);
+            return flightSubs;
+        });
+
+        // Once a response has been sent - by processing, or by the check made straight after subscribing - its
+        // subscription no longer needs to wait
+        sub.register((CompletionCallback) throwable -> removeSubscription(subscription));
+    }
+
+    private void removeSubscription(Subscription subscription) {
+        long flightId = subscription.info.getFlightId();
+        Set<Subscription> flightSubs = subs.get(flightId);
+        if (flightSubs != null && flightSubs.remove(subscription)) {
+            removeIfEmpty(flightId);
+        }
     }
 
     /**
-     * Runs through all subscriptions pertaining to the flight with the given id, and processes them. This is done on a
-     * different Thread.
+     * Removes the given flight's set of subscriptions if it's empty. Checked while the flight's entry is locked, so a
+     * subscription can't be added to the set in the meantime.
+     */
+    private void removeIfEmpty(long flightId) {
+        subs.computeIfPresent(flightId, (id, remaining) -> remaining.isEmpty() ? null : remaining);
+    }
+
+    /**
+     * Runs through all subscriptions pertaining to the flight with the given id, and processes them (see
+     * {@link #processSingleSubscription}). This is done on a different Thread. Subscriptions which are satisfied, or
+     * whose responses have already been sent (e.g. because the client disconnected), are removed.
      *
      * @param flightId the id of the flight whose subs should be processed
      */
     public void processSubscriptions(final long flightId) {
+        if (!subs.containsKey(flightId)) {
+            return;
+        }
         threadPool.submit(() -> {
+            Set<Subscription> flightSubs = subs.get(flightId);
+            if (flightSubs == null) {
+                return;
+            }
             final EntityManager em = PersistenceManager.instance().createEntityManager();
             try {
+                Flight flight = em.find(Flight.class, flightId);
+                BitSet heldSeats = SeatHoldManager.instance().getHeldSeats(flightId);
+
+                // The number of available seats of each cabin class (null for any class), counted once per class
+                Map<CabinClass, Integer> availableByClass = new EnumMap<>(CabinClass.class);
+                Integer availableAnyClass = null;
+
+                for (Iterator<Subscription> iterator = flightSubs.iterator(); iterator.hasNext(); ) {
+                    Subscription sub = iterator.next();
+                    if (sub.response.isDone()) {
+                        iterator.remove();
+                        continue;
+                    }
+                    if (flight == null) {
+                        sub.response.resume(Response.status(Response.Status.NOT_FOUND).build());
+                        iterator.remove();
+                        continue;
+                    }
 
-                // Find all subscriptions for the given flight
-                List<Map.Entry<AvailableSeatsSubscriptionDTO, AsyncResponse>> subsToProcess = subs.entrySet().stream()
-                        .filter(entry -> flightId == entry.getKey().getFlightId())
-                        .collect(Collectors.toList());
-
-                // For each of those subscriptions, process them. If they were successfully processed, remove them
-                // from the collection, so they won't be processed again.
-                subsToProcess.forEach(entry -> {
-                    if (processSingleSubscription(entry.getKey(), entry.getValue(), em)) {
-                        subs.remove(entry.getKey());
+                    CabinClass cabinClass = sub.info.getCabinClass();
+                    int available;
+                    if (cabinClass == null) {
+                        if (availableAnyClass == null) {
+                            availableAnyClass = flight.getNumSeatsAvailable(null, heldSeats);
+                        }
+                        available = availableAnyClass;
+                    } else {
+                        available = availableByClass.computeIfAbsent(cabinClass,
+                                c -> flight.getNumSeatsAvailable(c, heldSeats));
                     }
-                });
+                    if (available >= sub.info.getNumSeats()) {
+                        sub.response.resume(Response.noContent().build());
+                        iterator.remove();
+                    }
+                }
             } finally {
                 em.close();
+                removeIfEmpty(flightId);
             }
         });
     }
@@ -94,8 +173,9 @@ public class SubscriptionManager {
      * <p>
      * If the flight doesn't exist, resumes the AsyncResponse with a 404 response, and returns true
      * <p>
-     * If the flight contains at least the required number of unbooked seats of the required cabin class (or any cabin
-     * class if the provided class is null), resumes the AsyncResponse with a 204 No Content response, and returns true
+     * If the flight contains at least the required number of unbooked, unheld seats of the required cabin class (or any
+     * cabin class if the provided class is null), resumes the AsyncResponse with a 204 No Content response, and returns
+     * true
      * <p>
      * Otherwise, returns false.
      *
@@ -116,18 +196,8 @@ public class SubscriptionManager {
                     .setParameter("idLink", flightId);
             Flight reqFlight = flightsQuery.getSingleResult();
 
-            int totalSeats = reqFlight.getAircraftType().getTotalNumSeats(flightCabin);
-
-            if (flightCabin == null) {
-                totalSeats = reqFlight.getNumSeatsRemaining();
-            } else {
-                List<Seat> flightSeats = reqFlight.getBookedSeats();
-                for (Seat i : flightSeats) {
-                    if (reqFlight.getAircraftType().getCabinClass(i.getSeatCode()) == flightCabin){
-                        totalSeats--;
-                    }
-                }
-            }
+            int totalSeats = reqFlight.getNumSeatsAvailable(
+                    flightCabin, SeatHoldManager.instance().getHeldSeats(flightId));
 
             if (totalSeats >= count) {
                 sub.resume(Response.noContent().build());
@@ -137,9 +207,6 @@ public class SubscriptionManager {
         } catch (NoResultException e) {
             sub.resume(Response.status(Response.Status.NOT_FOUND).build());
             return true;
-        } catch (BookingException e) {
-            //sub.resume(Response.status(Response.Status.BAD_REQUEST).build());
-            return false;
         }
         return false;
     }
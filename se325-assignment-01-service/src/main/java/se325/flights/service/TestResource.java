@@ -1,12 +1,28 @@
 package se325.flights.service;
 
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.domain.User;
+
+import javax.persistence.EntityManager;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import java.util.List;
 
 /**
- * A Jax-RS resource only for testing purposes. When this resource's single method is called, it will reset the
+ * A Jax-RS resource only for testing purposes. When {@link #resetDatabase()} is called, it will reset the
  * persistence context which, according to the config in persistence.xml, will cause the database to be deleted and
- * re-created. This allows us to start each unit / integration test with the same data.
+ * re-created. This allows us to start each unit / integration test with the same data. Any in-memory state derived
+ * from the database is discarded at the same time.
+ * <p>
+ * The booking mode can also be switched, with or without the {@link SeatAllocator}, so that the same integration tests
+ * can be run against every {@link BookingMode}, and seat reservations which haven't been merged into their flight can be
+ * inserted, to test how bookings handle concurrent seat-level bookings.
  */
 @Path("/test")
 public class TestResource {
@@ -15,5 +31,63 @@ public class TestResource {
     @DELETE
     public void resetDatabase() {
         PersistenceManager.instance().reset();
+        SeatAllocator.instance().clear();
+        SeatHoldManager.instance().clear();
+        IdempotencyManager.instance().clear();
+        FlightCatalog.instance().clear();
+        DepartureBoard.instance().clear();
+        SearchCache.instance().clear();
+        FareCalendar.instance().clear();
+        if (BookingJournal.isEnabled()) {
+            BookingJournal.instance().clear();
+        }
+    }
+
+    @Path("/booking-mode/{mode}")
+    @PUT
+    public Response switchBookingMode(@PathParam("mode") String mode, @QueryParam("allocator") Boolean allocator) {
+        try {
+            BookingMode bookingMode = BookingMode.valueOf(mode.toUpperCase());
+            BookingManager.setInstance(allocator == null
+                    ? new BookingManager(bookingMode)
+                    : new BookingManager(bookingMode, allocator));
+            return Response.noContent().build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+    }
+
+    @Path("/booking-mode")
+    @DELETE
+    public void resetBookingMode() {
+        BookingManager.setInstance(null);
+    }
+
+    /**
+     * Books the given seats for the given user without marking them as booked in the flight's seat occupancy bitmap -
+     * as if a concurrent seat-level booking had inserted its seat reservations, but not yet merged them into the
+     * flight. Bookings of those seats then only fail when their own reservations are inserted.
+     */
+    @Path("/flights/{id}/reservations")
+    @POST
+    public Response reserveSeats(@PathParam("id") long flightId, @QueryParam("userId") long userId,
+                                 @QueryParam("seat") List<String> seatCodes) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            Flight flight = em.find(Flight.class, flightId);
+            em.persist(flight.makeBooking(em.getReference(User.class, userId), seatCodes));
+            // Discards the change to the bitmap, but not the inserted booking and reservations
+            em.refresh(flight);
+            em.getTransaction().commit();
+            return Response.noContent().build();
+        } catch (BookingException e) {
+            return Response.status(Response.Status.CONFLICT).build();
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
     }
 }
@@ -0,0 +1,109 @@
+package se325.flights.service;
+
+import java.util.*;
+
+/**
+ * An index of strings by their trigrams (three-character substrings), for finding the strings most similar to a query
+ * even when it's misspelt - e.g. "Aukland" for "Auckland", or "Sydeny" for "Sydney".
+ * <p>
+ * Strings are compared ignoring case and punctuation. Each word is padded with two spaces at the start and one at the
+ * end, so that short words and the starts of words carry extra weight. The similarity of two strings is the Dice
+ * coefficient of their trigram sets: twice the number of trigrams they share, divided by the total number of trigrams
+ * in both. Identical strings score 1, and strings with no trigrams in common score 0.
+ * <p>
+ * Each trigram maps to a posting list of the strings containing it, so a search only looks at strings sharing at least
+ * one trigram with the query, rather than comparing the query to every string. Several strings may be added for the
+ * same item (e.g. an airport's code, name and the words of its name), in which case the item's similarity is that of
+ * its most similar string.
+ * <p>
+ * Not thread-safe while it's being built, so it should be fully built before being shared.
+ *
+ * @param <T> the type of item found by searching
+ */
+public class TrigramIndex<T> {
+
+    /**
+     * The item each added string belongs to, by the string's position
+     */
+    private final List<T> items = new ArrayList<>();
+
+    /**
+     * The number of distinct trigrams in each added string, by the string's position
+     */
+    private final List<Integer> sizes = new ArrayList<>();
+
+    /**
+     * The positions of the strings containing each trigram, in ascending order
+     */
+    private final Map<String, List<Integer>> postings = new HashMap<>();
+
+    /**
+     * Adds a string which should find the given item. Strings without any letters or digits are ignored.
+     */
+    public void add(T item, String text) {
+        Set<String> trigrams = trigrams(text);
+        if (trigrams.isEmpty()) {
+            return;
+        }
+        int position = items.size();
+        items.add(item);
+        sizes.add(trigrams.size());
+        for (String trigram : trigrams) {
+            postings.computeIfAbsent(trigram, t -> new ArrayList<>()).add(position);
+        }
+    }
+
+    /**
+     * Finds the items most similar to the given query.
+     *
+     * @param query         the string to search for
+     * @param minSimilarity the minimum similarity, between 0 and 1, of items to return
+     * @param limit         the maximum number of items to return
+     * @return the matching items, most similar first. Ties are broken by the order the items were first added in.
+     */
+    public List<T> search(String query, double minSimilarity, int limit) {
+        Set<String> trigrams = trigrams(query);
+
+        // The number of trigrams each string shares with the query, by position
+        Map<Integer, Integer> shared = new TreeMap<>();
+        for (String trigram : trigrams) {
+            for (int position : postings.getOrDefault(trigram, List.of())) {
+                shared.merge(position, 1, Integer::sum);
+            }
+        }
+
+        Map<T, Double> similarities = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Integer> entry : shared.entrySet()) {
+            int position = entry.getKey();
+            double similarity = 2.0 * entry.getValue() / (trigrams.size() + sizes.get(position));
+            if (similarity >= minSimilarity) {
+                similarities.merge(items.get(position), similarity, Math::max);
+            }
+        }
+
+        List<Map.Entry<T, Double>> ranked = new ArrayList<>(similarities.entrySet());
+        ranked.sort(Map.Entry.<T, Double>comparingByValue().reversed());
+        List<T> results = new ArrayList<>();
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            results.add(ranked.get(i).getKey());
+        }
+        return results;
+    }
+
+    /**
+     * Gets the distinct trigrams of the given string, ignoring case and punctuation
+     */
+    private static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+}
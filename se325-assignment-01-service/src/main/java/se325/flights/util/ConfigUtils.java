@@ -0,0 +1,131 @@
+package se325.flights.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Contains methods for reading service configuration. Values are read from the flights.properties file on the
+ * classpath, and any of them can be overridden by a Java system property with the same name (for example,
+ * -Dbooking.mode=optimistic).
+ */
+public class ConfigUtils {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigUtils.class);
+
+    private static final String CONFIG_FILE = "/flights.properties";
+
+    private static final Properties PROPERTIES = loadProperties();
+
+    private static Properties loadProperties() {
+        Properties properties = new Properties();
+        try (InputStream in = ConfigUtils.class.getResourceAsStream(CONFIG_FILE)) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read " + CONFIG_FILE + ", using default configuration", e);
+        }
+        return properties;
+    }
+
+    /**
+     * Gets the configured value with the given name.
+     *
+     * @param name         the name of the value to get
+     * @param defaultValue the value to return if there's no such value configured
+     * @return the configured value, or the default value
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name, PROPERTIES.getProperty(name));
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Gets the configured integer value with the given name.
+     *
+     * @param name         the name of the value to get
+     * @param defaultValue the value to return if there's no such value configured, or it isn't a valid integer
+     * @return the configured value, or the default value
+     */
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     * Gets the configured long value with the given name.
+     *
+     * @param name         the name of the value to get
+     * @param defaultValue the value to return if there's no such value configured, or it isn't a valid long
+     * @return the configured value, or the default value
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value '" + value + "' for " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets the configured double value with the given name.
+     *
+     * @param name         the name of the value to get
+     * @param defaultValue the value to return if there's no such value configured, or it isn't a valid number
+     * @return the configured value, or the default value
+     */
+    public static double getDouble(String name, double defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value '" + value + "' for " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets the configured boolean value with the given name.
+     *
+     * @param name         the name of the value to get
+     * @param defaultValue the value to return if there's no such value configured
+     * @return the configured value, or the default value
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Gets the configured enum value with the given name. Matching against the enum constants is case-insensitive.
+     *
+     * @param name         the name of the value to get
+     * @param type         the enum type
+     * @param defaultValue the value to return if there's no such value configured, or it doesn't match a constant
+     * @return the configured value, or the default value
+     */
+    public static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+        LOGGER.warn("Invalid value '" + value + "' for " + name + ", using " + defaultValue);
+        return defaultValue;
+    }
+}
@@ -1,12 +1,16 @@
 package se325.flights.domain.test;
 
 import org.junit.jupiter.api.*;
+import se325.flights.CabinClass;
 import se325.flights.domain.*;
 import se325.flights.service.PersistenceManager;
 import se325.flights.util.SecurityUtils;
 
 import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -447,5 +451,152 @@ public class TestDomainModel {
                 em.getTransaction().commit();
             }
         }
+
+        /**
+         * Tests that the booked seats of a flight are reported in seat order, and per cabin class
+         */
+        @Test
+        public void testBookedSeatCodes() {
+            em.getTransaction().begin();
+
+            Flight flight = em.find(Flight.class, 13L);
+            assertEquals(List.of("23J", "36E", "48J", "58C", "60C"), flight.getBookedSeatCodes());
+            assertTrue(flight.isSeatBooked("48J"));
+            assertFalse(flight.isSeatBooked("48K"));
+            assertFalse(flight.isSeatBooked("FooBar"));
+            assertEquals(18, flight.getNumSeatsRemaining(CabinClass.Business));
+            assertEquals(20, flight.getNumSeatsRemaining(CabinClass.Premium));
+            assertEquals(259, flight.getNumSeatsRemaining(CabinClass.Economy));
+            assertEquals(Map.of(CabinClass.Business, 18, CabinClass.Premium, 20, CabinClass.Economy, 259),
+                    flight.getNumSeatsRemainingByCabinClass());
+
+            em.getTransaction().commit();
+        }
+
+        /**
+         * Tests that removing a booking from a flight makes its seats available to be booked again
+         */
+        @Test
+        public void testRemoveBookingFreesSeats() throws BookingException {
+            em.getTransaction().begin();
+            Flight flight = em.find(Flight.class, 13L);
+            FlightBooking booking = flight.getBookings().stream().findFirst().get();
+            flight.removeBooking(booking);
+            em.remove(booking);
+            em.getTransaction().commit();
+
+            em.clear();
+
+            em.getTransaction().begin();
+            User user = em.find(User.class, 2L);
+            flight = em.find(Flight.class, 13L);
+            assertEquals(0, flight.getBookings().size());
+            assertEquals(302, flight.getNumSeatsRemaining());
+
+            flight.makeBooking(user, "36E", "58C");
+            assertEquals(300, flight.getNumSeatsRemaining());
+            em.getTransaction().commit();
+        }
+
+        /**
+         * Tests that the database itself rejects a booking for a seat which has already been booked, even when the
+         * booking was made against out-of-date flight state (e.g. without locking the flight).
+         */
+        @Test
+        public void testSeatReservationPreventsDoubleBooking() throws BookingException {
+            EntityManager staleEm = PM.createEntityManager();
+            try {
+                staleEm.getTransaction().begin();
+                Flight staleFlight = staleEm.find(Flight.class, 13L);
+                User staleUser = staleEm.find(User.class, 2L);
+
+                em.getTransaction().begin();
+                em.find(Flight.class, 13L).makeBooking(em.find(User.class, 1L), "1A");
+                em.getTransaction().commit();
+
+                staleFlight.makeBooking(staleUser, "1A");
+                assertThrows(PersistenceException.class, () -> staleEm.getTransaction().commit());
+            } finally {
+                if (staleEm.getTransaction().isActive()) {
+                    staleEm.getTransaction().rollback();
+                }
+                staleEm.close();
+            }
+
+            long reservations = em.createQuery(
+                            "select count(r) from SeatReservation r where r.flight.id = 13 and r.seatCode = '1A'",
+                            Long.class)
+                    .getSingleResult();
+            assertEquals(1L, reservations);
+        }
+
+        /**
+         * Tests that the server picks the first available seats of the requested cabin class when they needn't be kept
+         * together, skipping seats which are booked or otherwise unavailable
+         */
+        @Test
+        public void testAssignSeats() throws BookingException {
+            em.getTransaction().begin();
+            Flight flight = em.find(Flight.class, 13L);
+            BitSet none = new BitSet();
+            flight.makeBooking(em.find(User.class, 2L), "1J");
+
+            assertEquals(List.of("1A", "1K"), flight.assignSeats(CabinClass.Business, 2, false, none));
+            assertEquals(List.of("23A", "23B", "23D"), flight.assignSeats(CabinClass.Premium, 3, false, none));
+            assertEquals(List.of("1A"), flight.assignSeats(null, 1, false, none));
+
+            BitSet unavailable = new BitSet();
+            unavailable.set(0);
+            assertEquals(List.of("1K"), flight.assignSeats(CabinClass.Business, 1, false, unavailable));
+
+            assertThrows(BookingException.class, () -> flight.assignSeats(CabinClass.Business, 18, false, none));
+            assertThrows(BookingException.class, () -> flight.assignSeats(CabinClass.Business, 0, false, none));
+            em.getTransaction().commit();
+        }
+
+        /**
+         * Tests that seats which should be kept together are picked from the shortest run of adjacent seats in a single
+         * row which is long enough, or failing that, from as few consecutive rows as possible
+         */
+        @Test
+        public void testAssignSeatsTogether() throws BookingException {
+            em.getTransaction().begin();
+            Flight flight = em.find(Flight.class, 13L);
+            BitSet none = new BitSet();
+            User user = em.find(User.class, 2L);
+            flight.makeBooking(user, "1J", "2K");
+
+            // Row 2 has a run of 2 (2A, 2J), which is a better fit than row 3's run of 3
+            assertEquals(List.of("2A", "2J"), flight.assignSeats(CabinClass.Business, 2, true, none));
+            assertEquals(List.of("3A", "3J", "3K"), flight.assignSeats(CabinClass.Business, 3, true, none));
+
+            // No row has 4 business seats, so the first two consecutive rows with 4 available seats are used
+            assertEquals(List.of("1A", "1K", "2A", "2J"), flight.assignSeats(CabinClass.Business, 4, true, none));
+
+            // Once no row has 3 adjacent seats, the fewest consecutive rows are used
+            flight.makeBooking(user, "2A", "3J", "4J", "5J", "6J");
+            assertEquals(List.of("1A", "1K", "2J"), flight.assignSeats(CabinClass.Business, 3, true, none));
+            assertThrows(BookingException.class, () -> flight.assignSeats(CabinClass.Business, 12, true, none));
+            em.getTransaction().commit();
+        }
+        /**
+         * Tests that seat suggestions are runs of adjacent available seats in a single row, shortest runs first
+         */
+        @Test
+        public void testSuggestSeats() throws BookingException {
+            em.getTransaction().begin();
+            Flight flight = em.find(Flight.class, 13L);
+            BitSet none = new BitSet();
+            flight.makeBooking(em.find(User.class, 2L), "1J", "2K");
+
+            assertEquals(List.of(List.of("2A", "2J"), List.of("3A", "3J"), List.of("4A", "4J")),
+                    flight.suggestSeats(CabinClass.Business, 2, none, 3));
+            assertEquals(List.of(List.of("3A", "3J", "3K")), flight.suggestSeats(CabinClass.Business, 3, none, 1));
+            assertEquals(List.of(List.of("1A", "1K", "2A", "2J")),
+                    flight.suggestSeats(CabinClass.Business, 4, none, 5));
+            assertEquals(List.of(), flight.suggestSeats(CabinClass.Business, 17, none, 5));
+            assertEquals(8100, flight.getPriceFor(List.of("3A", "3J")));
+            em.getTransaction().commit();
+        }
     }
 }
@@ -0,0 +1,141 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.Test;
+import se325.flights.dto.AirportDTO;
+import se325.flights.dto.FlightDTO;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import java.time.ZonedDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests functionality related to retrieving airport information.
+ */
+public class AirportIT extends BaseIntegrationTests {
+
+    /**
+     * Tests that airports whose codes start with the query are suggested before those whose names only contain a
+     * matching word, and that ties are broken by name.
+     */
+    @Test
+    public void testSuggestAirports() {
+        assertEquals(List.of(AIRPORTS.get("SIN"), AIRPORTS.get("SYD")), suggest("s"));
+        assertEquals(List.of(AIRPORTS.get("LAX")), suggest("lax"));
+        assertEquals(List.of(AIRPORTS.get("NRT")), suggest("Narita"));
+        assertEquals(List.of(AIRPORTS.get("LAX")), suggest("los ang"));
+    }
+
+    /**
+     * Tests that the number of suggestions can be limited, and that a query matching nothing returns an empty list.
+     */
+    @Test
+    public void testSuggestAirports_Limit() {
+        assertEquals(List.of(AIRPORTS.get("AKL"), AIRPORTS.get("LAX")), suggest("international&limit=2"));
+        assertEquals(List.of(), suggest("foobar"));
+    }
+
+    /**
+     * Tests that a 400 Bad Request response is returned when there's no query, or the limit isn't positive.
+     */
+    @Test
+    public void testSuggestAirportsFail_BadRequest() {
+        for (String query : List.of("", "?q=", "?q=AKL&limit=0")) {
+            try (Response response = clientRequest("/airports/suggest" + query).get()) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Tests that misspelt airport names and codes find the intended airports, most similar first.
+     */
+    @Test
+    public void testSearchAirports() {
+        assertEquals(List.of(AIRPORTS.get("AKL")), search("Aukland"));
+        assertEquals(List.of(AIRPORTS.get("SYD")), search("Sydeny"));
+        assertEquals(List.of(AIRPORTS.get("NRT")), search("Naritta"));
+        assertEquals(AIRPORTS.get("LAX"), search("Los Angelas").get(0));
+        assertEquals(List.of(), search("foobar"));
+    }
+
+    /**
+     * Tests that a 400 Bad Request response is returned when there's no search query, or the limit isn't positive.
+     */
+    @Test
+    public void testSearchAirportsFail_BadRequest() {
+        for (String query : List.of("", "?q=", "?q=AKL&limit=0")) {
+            try (Response response = clientRequest("/airports/search" + query).get()) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
+    private List<AirportDTO> search(String query) {
+        try (Response response = clientRequest("/airports/search?q=" + query.replace(" ", "%20")).get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            return response.readEntity(new GenericType<>() {
+            });
+        }
+    }
+
+    /**
+     * Tests that an airport's departures are returned in order of departure time, starting at the given time
+     * (inclusive), and that the airport code is case-insensitive.
+     */
+    @Test
+    public void testDepartures() {
+        ZonedDateTime from = ZonedDateTime.parse("2022-08-10T15:00:00Z");
+        List<FlightDTO> expected = FLIGHTS.values().stream()
+                .filter(flight -> flight.getOrigin().equals(AIRPORTS.get("AKL")))
+                .filter(flight -> !flight.getDepartureTime().isBefore(from))
+                .sorted(Comparator.comparing((FlightDTO flight) -> flight.getDepartureTime().toInstant())
+                        .thenComparing(FlightDTO::getId))
+                .collect(Collectors.toList());
+        assertTrue(expected.size() > 3);
+        assertEquals(FLIGHTS.get("EVR-976"), expected.get(0));
+
+        assertEquals(expected.subList(0, 3), departures("AKL", "from=2022-08-10T15:00:00Z&limit=3"));
+        assertEquals(expected, departures("akl", "from=2022-08-10T15:00:00Z&limit=1000"));
+
+        // No flights depart after the current date
+        assertEquals(List.of(), departures("AKL", ""));
+    }
+
+    /**
+     * Tests that a 404 Not Found response is returned for an unknown airport code, and a 400 Bad Request response for
+     * an invalid start time or a limit which isn't positive.
+     */
+    @Test
+    public void testDeparturesFail() {
+        try (Response response = clientRequest("/airports/XXX/departures").get()) {
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        }
+        for (String query : List.of("from=2022-08-10", "from=tomorrow", "limit=0")) {
+            try (Response response = clientRequest("/airports/AKL/departures?" + query).get()) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
+    private List<FlightDTO> departures(String code, String query) {
+        try (Response response = clientRequest("/airports/" + code + "/departures?" + query).get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            return response.readEntity(new GenericType<>() {
+            });
+        }
+    }
+
+    private List<AirportDTO> suggest(String query) {
+        try (Response response = clientRequest("/airports/suggest?q=" + query.replace(" ", "%20")).get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            return response.readEntity(new GenericType<>() {
+            });
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+
+/**
+ * Runs all of the {@link BookingIT} tests with the in-memory {@link se325.flights.service.SeatAllocator} enabled, so
+ * that bookings claim their seats there before writing to the database.
+ */
+public class AllocatorBookingIT extends BookingIT {
+
+    @BeforeAll
+    public static void enableAllocator() {
+        switchBookingMode("pessimistic", true);
+    }
+
+    @AfterAll
+    public static void switchToConfiguredMode() {
+        switchBookingMode(null);
+    }
+}
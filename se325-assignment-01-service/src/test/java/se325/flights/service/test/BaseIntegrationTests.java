@@ -132,6 +132,45 @@ public abstract class BaseIntegrationTests {
         assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
     }
 
+    /**
+     * Switches the service to the given booking mode, for every test until it's switched back.
+     *
+     * @param mode the booking mode to use (see flights.properties), or null for the service's configured mode
+     */
+    protected static void switchBookingMode(String mode) {
+        setBookingMode(mode == null ? "" : "/" + mode);
+    }
+
+    /**
+     * Switches the service to the given booking mode, with or without the in-memory seat allocator, for every test
+     * until it's switched back.
+     *
+     * @param mode             the booking mode to use (see flights.properties)
+     * @param allocatorEnabled whether bookings should claim their seats in the in-memory seat allocator
+     */
+    protected static void switchBookingMode(String mode, boolean allocatorEnabled) {
+        setBookingMode("/" + mode + "?allocator=" + allocatorEnabled);
+    }
+
+    /**
+     * Sends a request to switch the service's booking mode.
+     *
+     * @param path the booking mode and options to switch to, appended to /test/booking-mode. Empty to switch back to
+     *             the configured booking mode.
+     */
+    private static void setBookingMode(String path) {
+        Client client = ClientBuilder.newClient();
+        try {
+            Invocation.Builder request = client.target(WEB_SERVICE_URI + "/test/booking-mode" + path).request();
+            try (Response response = path.isEmpty() ? request.delete() : request.put(Entity.text(""))) {
+
+                assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+            }
+        } finally {
+            client.close();
+        }
+    }
+
     /**
      * After each test, close the client to clear any leftover auth cookie data
      */
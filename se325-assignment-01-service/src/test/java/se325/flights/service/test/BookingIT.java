@@ -2,16 +2,26 @@ package se325.flights.service.test;
 
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import se325.flights.CabinClass;
 import se325.flights.dto.BookingInfoDTO;
 import se325.flights.dto.BookingRequestDTO;
+import se325.flights.dto.BookingResultDTO;
 import se325.flights.dto.FlightBookingDTO;
+import se325.flights.dto.SeatHoldDTO;
+import se325.flights.dto.UserDTO;
 
+import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -299,4 +309,553 @@ public class BookingIT extends BaseIntegrationTests {
             assertTrue(info.getBookedSeats().contains("58C"));
         }
     }
+
+    /**
+     * Tests that when many requests try to book the same seats at the same time, exactly one of them succeeds, and the
+     * rest get a 409 Conflict response.
+     */
+    @Test
+    public void testConcurrentBookings_SameSeats() throws Exception {
+        int numClients = 10;
+        List<Client> clients = new ArrayList<>();
+        List<Future<Response>> responses = new ArrayList<>();
+        try {
+            // Logging in again would invalidate the previous auth token, so all clients share the same one
+            Cookie authToken;
+            UserDTO alice = new UserDTO("Alice", "pa55word");
+            try (Response response = clientRequest("/users/login").post(Entity.json(alice))) {
+                authToken = response.getCookies().get("authToken");
+            }
+            for (int i = 0; i < numClients; i++) {
+                clients.add(ClientBuilder.newClient());
+            }
+
+            BookingRequestDTO request = new BookingRequestDTO(13, "36E", "36F", "37A");
+            for (Client c : clients) {
+                responses.add(clientRequest(c, "/bookings").cookie(authToken).async().post(Entity.json(request)));
+            }
+
+            int created = 0;
+            for (Future<Response> future : responses) {
+                try (Response response = future.get(30, TimeUnit.SECONDS)) {
+                    if (response.getStatus() == Response.Status.CREATED.getStatusCode()) {
+                        created++;
+                    } else {
+                        assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+                    }
+                }
+            }
+            assertEquals(1, created);
+        } finally {
+            clients.forEach(Client::close);
+        }
+
+        try (Response response = clientRequest("/flights/13/booking-info").get()) {
+            BookingInfoDTO info = response.readEntity(BookingInfoDTO.class);
+            assertEquals(List.of("36E", "36F", "37A"), info.getBookedSeats());
+        }
+    }
+
+    /**
+     * Tests that the seats of a cancelled booking can be booked again.
+     */
+    @Test
+    public void testCancelBooking_SeatsCanBeRebooked() {
+        logInAsAlice();
+        URI bookingLink = makeBooking(13, "23J", "36E", "58C");
+
+        try (Response response = client.target(bookingLink).request().delete()) {
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        }
+
+        logInAsBob();
+        makeBooking(13, "36E", "58C");
+    }
+
+    /**
+     * Tests that several bookings, on different flights, can be cancelled in one request. A 204 response should be
+     * returned, and all the bookings should be deleted.
+     */
+    @Test
+    public void testCancelBookings() {
+        logInAsAlice();
+        List<URI> bookingLinks = List.of(
+                makeBooking(13, "23J", "36E"), makeBooking(13, "58C"), makeBooking(14, "36E"));
+
+        List<Long> bookingIds = bookingLinks.stream().map(BookingIT::getBookingId).collect(Collectors.toList());
+        try (Response response = clientRequest("/bookings/cancellations").post(Entity.json(bookingIds))) {
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        }
+
+        for (URI bookingLink : bookingLinks) {
+            try (Response response = client.target(bookingLink).request().get()) {
+                assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Tests that if any of the bookings in a bulk cancellation don't belong to the user, a 404 response is returned,
+     * and none of the bookings are cancelled.
+     */
+    @Test
+    public void testCancelBookingsFail_NotFound() {
+        logInAsBob();
+        long bobsBookingId = getBookingId(makeBooking(13, "58C"));
+
+        logInAsAlice();
+        URI bookingLink = makeBooking(13, "23J", "36E");
+
+        List<Long> bookingIds = List.of(getBookingId(bookingLink), bobsBookingId);
+        try (Response response = clientRequest("/bookings/cancellations").post(Entity.json(bookingIds))) {
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        }
+
+        try (Response response = client.target(bookingLink).request().get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        }
+    }
+
+    /**
+     * Tests that a batch of booking requests is processed in one call, with each request succeeding or failing on its
+     * own, and the results returned in request order.
+     */
+    @Test
+    public void testMakeBatchBooking() {
+        logInAsAlice();
+        List<BookingRequestDTO> requests = List.of(
+                new BookingRequestDTO(13, "23J", "36E"),
+                new BookingRequestDTO(14, "36E"),
+                new BookingRequestDTO(13, "36E", "58C"),
+                new BookingRequestDTO(9999, "10A"),
+                new BookingRequestDTO(13, "58C"));
+
+        List<BookingResultDTO> results;
+        try (Response response = clientRequest("/bookings/batch").post(Entity.json(requests))) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            results = response.readEntity(new GenericType<>() {
+            });
+        }
+
+        assertEquals(5, results.size());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(0).getStatus());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(1).getStatus());
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), results.get(2).getStatus());
+        assertNotNull(results.get(2).getReason());
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), results.get(3).getStatus());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(4).getStatus());
+
+        try (Response response = clientRequest(results.get(0).getLocation().toString()).get()) {
+            FlightBookingDTO booking = response.readEntity(FlightBookingDTO.class);
+            assertEquals(List.of("23J", "36E"), booking.getBookedSeats());
+        }
+
+        try (Response response = clientRequest("/bookings").get()) {
+            List<FlightBookingDTO> bookings = response.readEntity(new GenericType<>() {
+            });
+            assertEquals(3, bookings.size());
+        }
+    }
+
+    /**
+     * Tests that a batch can mix requests for seats with requests for the server to pick seats, and that requested
+     * seats are booked before any are picked.
+     */
+    @Test
+    public void testMakeBatchBooking_AssignedSeats() {
+        logInAsAlice();
+        List<BookingRequestDTO> requests = List.of(
+                new BookingRequestDTO(13, CabinClass.Business, 2, true),
+                new BookingRequestDTO(13, "2A"),
+                new BookingRequestDTO(13, CabinClass.Business, 100, false));
+
+        List<BookingResultDTO> results;
+        try (Response response = clientRequest("/bookings/batch").post(Entity.json(requests))) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            results = response.readEntity(new GenericType<>() {
+            });
+        }
+
+        assertEquals(3, results.size());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(0).getStatus());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(1).getStatus());
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), results.get(2).getStatus());
+
+        try (Response response = clientRequest(results.get(0).getLocation().toString()).get()) {
+            FlightBookingDTO booking = response.readEntity(FlightBookingDTO.class);
+            assertEquals(2, booking.getBookedSeats().size());
+            assertFalse(booking.getBookedSeats().contains("2A"));
+        }
+    }
+
+    /**
+     * Tests that when a batch request's seat has been reserved by a concurrent seat-level booking which hasn't yet been
+     * merged into the flight - so the conflict is only found when the request's own reservations are inserted - that
+     * request fails with a 409 Conflict, and the requests before and after it are still made.
+     */
+    @Test
+    public void testMakeBatchBooking_ConcurrentReservation() {
+        try (Response response = clientRequest("/test/flights/13/reservations?userId=2&seat=36E")
+                .post(Entity.text(""))) {
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        }
+
+        logInAsAlice();
+        List<BookingRequestDTO> requests = List.of(
+                new BookingRequestDTO(13, "36F"),
+                new BookingRequestDTO(13, "36E", "36D"),
+                new BookingRequestDTO(13, "37A"),
+                new BookingRequestDTO(13, "37B"));
+
+        List<BookingResultDTO> results;
+        try (Response response = clientRequest("/bookings/batch").post(Entity.json(requests))) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            results = response.readEntity(new GenericType<>() {
+            });
+        }
+
+        assertEquals(4, results.size());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(0).getStatus());
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), results.get(1).getStatus());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(2).getStatus());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(3).getStatus());
+
+        try (Response response = clientRequest("/bookings").get()) {
+            List<FlightBookingDTO> bookings = response.readEntity(new GenericType<>() {
+            });
+            assertEquals(3, bookings.size());
+        }
+    }
+
+    /**
+     * Tests that a batch booking containing a missing request, or a request with no seats, is rejected. A 400 Bad
+     * Request response should be returned, and nothing should be booked.
+     */
+    @Test
+    public void testMakeBatchBookingFail_InvalidRequest() {
+        logInAsAlice();
+        String[] bodies = {
+                "[{\"flightId\": 13, \"requestedSeats\": [\"23J\"]}, null]",
+                "[{\"flightId\": 13, \"requestedSeats\": [\"23J\"]}, {\"flightId\": 13, \"requestedSeats\": null}]",
+                "[{\"flightId\": 13, \"requestedSeats\": [\"23J\", null]}]",
+                "[{\"flightId\": 13}]"};
+        for (String body : bodies) {
+            try (Response response = clientRequest("/bookings/batch").post(Entity.json(body))) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), body);
+            }
+        }
+
+        try (Response response = clientRequest("/bookings").get()) {
+            List<FlightBookingDTO> bookings = response.readEntity(new GenericType<>() {
+            });
+            assertTrue(bookings.isEmpty());
+        }
+    }
+
+    /**
+     * Tests that an unauthenticated user can't make a batch booking. A 401 Unauthorized response should be returned.
+     */
+    @Test
+    public void testMakeBatchBookingFail_NotAuthenticated() {
+        List<BookingRequestDTO> requests = List.of(new BookingRequestDTO(13, "23J"));
+        try (Response response = clientRequest("/bookings/batch").post(Entity.json(requests))) {
+            assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), response.getStatus());
+        }
+    }
+
+    /**
+     * Tests that seats held by one user can't be booked or held by another, and that the hold can be confirmed as a
+     * booking by the user who placed it.
+     */
+    @Test
+    public void testHoldSeats_ThenConfirm() {
+        logInAsAlice();
+        URI holdLink = placeHold(13, "23J", "36E");
+
+        logInAsBob();
+        BookingRequestDTO request = new BookingRequestDTO(13, "36E", "58C");
+        try (Response response = clientRequest("/bookings").post(Entity.json(request))) {
+            assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        }
+        try (Response response = clientRequest("/bookings/holds").post(Entity.json(request))) {
+            assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        }
+        try (Response response = client.target(holdLink + "/confirm").request().post(null)) {
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        }
+
+        logInAsAlice();
+        URI bookingLink;
+        try (Response response = client.target(holdLink + "/confirm").request().post(null)) {
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            bookingLink = response.getLocation();
+        }
+        try (Response response = client.target(bookingLink).request().get()) {
+            FlightBookingDTO booking = response.readEntity(FlightBookingDTO.class);
+            assertEquals(List.of("23J", "36E"), booking.getBookedSeats());
+        }
+
+        // A hold can only be confirmed once
+        try (Response response = client.target(holdLink + "/confirm").request().post(null)) {
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        }
+    }
+
+    /**
+     * Tests that once a hold is released, its seats can be booked by another user.
+     */
+    @Test
+    public void testHoldSeats_ThenRelease() {
+        logInAsAlice();
+        URI holdLink = placeHold(13, "23J", "36E");
+
+        try (Response response = client.target(holdLink).request().delete()) {
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        }
+
+        logInAsBob();
+        makeBooking(13, "36E", "58C");
+    }
+
+    /**
+     * Tests that when a hold can't be confirmed - here because one of its seats has been reserved by a concurrent
+     * seat-level booking which hasn't yet been merged into the flight - the hold stays in place, so its other seats
+     * still can't be booked by anyone else, and it can still be released.
+     */
+    @Test
+    public void testHoldSeats_FailedConfirmKeepsHold() {
+        logInAsAlice();
+        URI holdLink = placeHold(13, "23J", "36E");
+
+        try (Response response = clientRequest("/test/flights/13/reservations?userId=2&seat=36E")
+                .post(Entity.text(""))) {
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        }
+        // How the conflict is reported depends on the booking mode, but the booking mustn't be made
+        try (Response response = client.target(holdLink + "/confirm").request().post(null)) {
+            assertNotEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        }
+
+        logInAsBob();
+        try (Response response = clientRequest("/bookings").post(Entity.json(new BookingRequestDTO(13, "23J")))) {
+            assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        }
+
+        logInAsAlice();
+        try (Response response = client.target(holdLink).request().delete()) {
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        }
+    }
+
+    /**
+     * Tests that repeating a booking request with the same Idempotency-Key returns the original outcome, rather than
+     * making a second booking or failing with a conflict.
+     */
+    @Test
+    public void testMakeBooking_IdempotencyKey() {
+        logInAsAlice();
+        BookingRequestDTO request = new BookingRequestDTO(13, "23J", "36E");
+
+        URI bookingLink;
+        try (Response response = clientRequest("/bookings").header("Idempotency-Key", "abc123")
+                .post(Entity.json(request))) {
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            bookingLink = response.getLocation();
+        }
+        try (Response response = clientRequest("/bookings").header("Idempotency-Key", "abc123")
+                .post(Entity.json(request))) {
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            assertEquals(bookingLink, response.getLocation());
+        }
+
+        // Without the key, the same request is a new (conflicting) booking
+        try (Response response = clientRequest("/bookings").post(Entity.json(request))) {
+            assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        }
+
+        try (Response response = clientRequest("/bookings").get()) {
+            List<FlightBookingDTO> bookings = response.readEntity(new GenericType<>() {
+            });
+            assertEquals(1, bookings.size());
+        }
+    }
+
+    /**
+     * Tests that concurrent booking requests with the same Idempotency-Key all receive the outcome of the one booking
+     * which is made.
+     */
+    @Test
+    public void testMakeBooking_IdempotencyKey_Concurrent() throws Exception {
+        int numClients = 5;
+        List<Client> clients = new ArrayList<>();
+        List<Future<Response>> responses = new ArrayList<>();
+        try {
+            // Logging in again would invalidate the previous auth token, so all clients share the same one
+            Cookie authToken;
+            UserDTO alice = new UserDTO("Alice", "pa55word");
+            try (Response response = clientRequest("/users/login").post(Entity.json(alice))) {
+                authToken = response.getCookies().get("authToken");
+            }
+            for (int i = 0; i < numClients; i++) {
+                clients.add(ClientBuilder.newClient());
+            }
+
+            BookingRequestDTO request = new BookingRequestDTO(13, "36E", "36F");
+            for (Client c : clients) {
+                responses.add(clientRequest(c, "/bookings").cookie(authToken).header("Idempotency-Key", "retry-1")
+                        .async().post(Entity.json(request)));
+            }
+
+            // Requests which lose the race for the seats may see a conflict, but a later retry must not
+            for (Future<Response> future : responses) {
+                future.get(30, TimeUnit.SECONDS).close();
+            }
+            URI bookingLink;
+            try (Response response = clientRequest(clients.get(0), "/bookings").cookie(authToken)
+                    .header("Idempotency-Key", "retry-1").post(Entity.json(request))) {
+                assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+                bookingLink = response.getLocation();
+            }
+
+            try (Response response = clientRequest(clients.get(0), "/bookings").cookie(authToken).get()) {
+                List<FlightBookingDTO> bookings = response.readEntity(new GenericType<>() {
+                });
+                assertEquals(1, bookings.size());
+                assertTrue(bookingLink.toString().endsWith("/bookings/" + bookings.get(0).getId()));
+            }
+        } finally {
+            clients.forEach(Client::close);
+        }
+    }
+
+    /**
+     * Tests that repeating a cancellation with the same Idempotency-Key returns the original outcome, rather than a
+     * 404.
+     */
+    @Test
+    public void testCancelBooking_IdempotencyKey() {
+        logInAsAlice();
+        URI bookingLink = makeBooking(13, "23J", "36E", "58C");
+
+        for (int i = 0; i < 2; i++) {
+            try (Response response = client.target(bookingLink).request().header("Idempotency-Key", "cancel-1")
+                    .delete()) {
+                assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+            }
+        }
+
+        try (Response response = client.target(bookingLink).request().delete()) {
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        }
+    }
+
+    /**
+     * Tests that re-using an Idempotency-Key for a different booking request is rejected with a 422, rather than
+     * returning the outcome of the original request - and that neither the original outcome nor the booking changes.
+     */
+    @Test
+    public void testMakeBookingFail_IdempotencyKeyReused() {
+        logInAsAlice();
+        URI bookingLink;
+        try (Response response = clientRequest("/bookings").header("Idempotency-Key", "key-1")
+                .post(Entity.json(new BookingRequestDTO(13, "23J", "36E")))) {
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            bookingLink = response.getLocation();
+        }
+
+        // Different seats, and a different flight
+        List<BookingRequestDTO> otherRequests = List.of(
+                new BookingRequestDTO(13, "58C"), new BookingRequestDTO(14, "23J", "36E"));
+        for (BookingRequestDTO request : otherRequests) {
+            try (Response response = clientRequest("/bookings").header("Idempotency-Key", "key-1")
+                    .post(Entity.json(request))) {
+                assertEquals(422, response.getStatus());
+            }
+        }
+
+        // The same seats in a different order are the same request
+        try (Response response = clientRequest("/bookings").header("Idempotency-Key", "key-1")
+                .post(Entity.json(new BookingRequestDTO(13, "36E", "23J")))) {
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            assertEquals(bookingLink, response.getLocation());
+        }
+
+        try (Response response = clientRequest("/bookings").get()) {
+            List<FlightBookingDTO> bookings = response.readEntity(new GenericType<>() {
+            });
+            assertEquals(1, bookings.size());
+        }
+    }
+
+    /**
+     * Tests that re-using a cancellation's Idempotency-Key to cancel a different booking is rejected with a 422, and
+     * doesn't cancel that booking.
+     */
+    @Test
+    public void testCancelBookingFail_IdempotencyKeyReused() {
+        logInAsAlice();
+        URI firstLink = makeBooking(13, "23J");
+        URI secondLink = makeBooking(13, "36E");
+
+        try (Response response = client.target(firstLink).request().header("Idempotency-Key", "cancel-1").delete()) {
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        }
+        try (Response response = client.target(secondLink).request().header("Idempotency-Key", "cancel-1").delete()) {
+            assertEquals(422, response.getStatus());
+        }
+
+        try (Response response = client.target(secondLink).request().get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        }
+    }
+
+    /**
+     * Tests that the server can pick seats for a booking request which gives only a number of seats and a cabin class.
+     */
+    @Test
+    public void testMakeBooking_AssignedSeats() {
+        logInAsAlice();
+        makeBooking(13, "1J");
+
+        BookingRequestDTO request = new BookingRequestDTO(13, CabinClass.Business, 2, true);
+        URI bookingLink;
+        try (Response response = clientRequest("/bookings").post(Entity.json(request))) {
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            bookingLink = response.getLocation();
+        }
+        try (Response response = client.target(bookingLink).request().get()) {
+            FlightBookingDTO booking = response.readEntity(FlightBookingDTO.class);
+            assertEquals(List.of("2A", "2J"), booking.getBookedSeats());
+        }
+
+        request = new BookingRequestDTO(13, CabinClass.Business, 16, false);
+        try (Response response = clientRequest("/bookings").post(Entity.json(request))) {
+            assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        }
+
+        request = new BookingRequestDTO(9999, CabinClass.Business, 2, false);
+        try (Response response = clientRequest("/bookings").post(Entity.json(request))) {
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        }
+    }
+
+    private static long getBookingId(URI bookingLink) {
+        String path = bookingLink.getPath();
+        return Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * Sends a request to the server to hold the given seats on the given flight, and returns the URI of the hold.
+     */
+    private URI placeHold(long flightId, String... seats) {
+        BookingRequestDTO request = new BookingRequestDTO(flightId, seats);
+        try (Response response = clientRequest("/bookings/holds").post(Entity.json(request))) {
+
+            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+            SeatHoldDTO hold = response.readEntity(SeatHoldDTO.class);
+            assertEquals(List.of(seats), hold.getSeats());
+            assertNotNull(hold.getExpiresAt());
+            return response.getLocation();
+        }
+    }
 }
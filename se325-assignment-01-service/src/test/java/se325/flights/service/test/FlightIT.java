@@ -2,14 +2,23 @@ package se325.flights.service.test;
 
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import se325.flights.CabinClass;
 import se325.flights.dto.BookingInfoDTO;
+import se325.flights.dto.CacheStatsDTO;
+import se325.flights.dto.FareCalendarDayDTO;
 import se325.flights.dto.FlightDTO;
+import se325.flights.dto.ItineraryDTO;
+import se325.flights.dto.SeatSuggestionDTO;
 
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.Response;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * Tests functionality related to retrieving flight information.
@@ -188,6 +197,23 @@ public class FlightIT extends BaseIntegrationTests {
         }
     }
 
+    /**
+     * Tests that a flight search with a departure time query, for which there are no flights, still returns a 200 OK
+     * response with an empty list - both when there are no flights on the route, and none on the given dates.
+     */
+    @Test
+    public void testFlightSearchWithDepartureTime_NoResults() {
+        for (String query : List.of("origin=foobar&destination=AKL&departureDate=2022-08-21",
+                "origin=AKL&destination=SYD&departureDate=2030-01-01&dayRange=10")) {
+            try (Response response = clientRequest("/flights?" + query).get()) {
+                assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+                List<FlightDTO> flights = response.readEntity(new GenericType<>() {
+                });
+                assertEquals(0, flights.size());
+            }
+        }
+    }
+
     /**
      * Tests that a flight search with an invalid departure time query will return a 400 Bad Request error.
      */
@@ -210,6 +236,348 @@ public class FlightIT extends BaseIntegrationTests {
         }
     }
 
+    /**
+     * Tests that flight search results can be paged through using the limit param and "next" links, both with and
+     * without a departure date, and that the last page has no "next" link.
+     */
+    @Test
+    public void testFlightSearch_Paged() {
+        Link next;
+        try (Response response = clientRequest("/flights?origin=AKL&destination=SYD&limit=3").get()) {
+            next = response.getLink("next");
+            assertEquals(List.of(FLIGHTS.get("EVR-976"), FLIGHTS.get("ABH-259"), FLIGHTS.get("LVT-200")),
+                    readPage(response));
+        }
+        assertNotNull(next);
+        try (Response response = client.target(next).request().get()) {
+            assertNull(response.getLink("next"));
+            assertEquals(List.of(FLIGHTS.get("ZJS-735")), readPage(response));
+        }
+
+        try (Response response = clientRequest(
+                "/flights?origin=AKL&destination=SYD&departureDate=2022-08-21&dayRange=10&limit=2").get()) {
+            next = response.getLink("next");
+            assertEquals(List.of(FLIGHTS.get("EVR-976"), FLIGHTS.get("ABH-259")), readPage(response));
+        }
+        assertNotNull(next);
+        try (Response response = client.target(next).request().get()) {
+            assertNull(response.getLink("next"));
+            assertEquals(List.of(FLIGHTS.get("LVT-200")), readPage(response));
+        }
+    }
+
+    /**
+     * Tests that a large page of results (every flight) is returned in full, in departure time order, and contains the
+     * same flights as paging through the results in smaller pages.
+     */
+    @Test
+    public void testFlightSearch_LargePage() {
+        List<FlightDTO> allFlights;
+        try (Response response = clientRequest("/flights?origin=a&destination=a&limit=1000").get()) {
+            assertNull(response.getLink("next"));
+            allFlights = readPage(response);
+        }
+        assertTrue(allFlights.size() > 60);
+        for (int i = 1; i < allFlights.size(); i++) {
+            assertFalse(allFlights.get(i).getDepartureTime().isBefore(allFlights.get(i - 1).getDepartureTime()));
+        }
+
+        List<FlightDTO> pagedFlights = new ArrayList<>();
+        Link next = Link.fromUri(WEB_SERVICE_URI + "/flights?origin=a&destination=a&limit=60").build();
+        while (next != null) {
+            try (Response response = client.target(next).request().get()) {
+                next = response.getLink("next");
+                pagedFlights.addAll(readPage(response));
+            }
+        }
+        assertEquals(allFlights, pagedFlights);
+    }
+
+    /**
+     * Tests that repeated searches for the same airports - however they're named - are served from the search cache,
+     * and that the cache's hits and misses are reported.
+     */
+    @Test
+    public void testFlightSearch_Cached() {
+        List<FlightDTO> expected = List.of(
+                FLIGHTS.get("EVR-976"), FLIGHTS.get("ABH-259"), FLIGHTS.get("LVT-200"), FLIGHTS.get("ZJS-735"));
+        for (String query : List.of("origin=AKL&destination=SYD", "origin=auckland&destination=sydney")) {
+            try (Response response = clientRequest("/flights?" + query).get()) {
+                assertEquals(expected, readPage(response));
+            }
+        }
+
+        try (Response response = clientRequest("/flights/search-cache").get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            CacheStatsDTO stats = response.readEntity(CacheStatsDTO.class);
+            assertEquals(1, stats.getHits());
+            assertEquals(1, stats.getMisses());
+            assertEquals(1, stats.getSize());
+        }
+    }
+
+    /**
+     * Tests that search results include the number of seats remaining in each cabin class only if requested, and that
+     * the counts (including any cached) reflect new bookings.
+     */
+    @Test
+    public void testFlightSearch_SeatsRemaining() {
+        String query = "/flights?origin=AKL&destination=LAX&departureDate=2022-08-13";
+        try (Response response = clientRequest(query).get()) {
+            assertNull(readPage(response).get(0).getSeatsRemaining());
+        }
+
+        Map<CabinClass, Integer> before;
+        try (Response response = clientRequest(query + "&seatsRemaining=true").get()) {
+            before = readPage(response).get(0).getSeatsRemaining();
+        }
+        assertFalse(before.isEmpty());
+
+        logInAsAlice();
+        makeBooking(13, "23J", "36E", "58C");
+
+        Map<CabinClass, Integer> after;
+        try (Response response = clientRequest(query + "&seatsRemaining=true").get()) {
+            after = readPage(response).get(0).getSeatsRemaining();
+        }
+        assertEquals(before.keySet(), after.keySet());
+        int total = 0;
+        for (CabinClass cabinClass : before.keySet()) {
+            assertTrue(after.get(cabinClass) <= before.get(cabinClass));
+            total += before.get(cabinClass) - after.get(cabinClass);
+        }
+        assertEquals(3, total);
+    }
+
+    /**
+     * Tests that a flight search can include airports near the origin and destination. Auckland is about 2150km from
+     * Sydney, and the other airports are much further away, so searching from SYD within 2500km should also return the
+     * flights from AKL.
+     */
+    @Test
+    public void testFlightSearch_WithinKm() {
+        List<FlightDTO> sydney;
+        try (Response response = clientRequest("/flights?origin=SYD&destination=LAX").get()) {
+            sydney = readPage(response);
+        }
+        List<FlightDTO> auckland;
+        try (Response response = clientRequest("/flights?origin=AKL&destination=LAX").get()) {
+            auckland = readPage(response);
+        }
+        assertFalse(sydney.isEmpty());
+        assertFalse(auckland.isEmpty());
+
+        try (Response response = clientRequest("/flights?origin=SYD&destination=LAX&withinKm=100").get()) {
+            assertEquals(sydney, readPage(response));
+        }
+
+        List<FlightDTO> nearby;
+        try (Response response = clientRequest("/flights?origin=SYD&destination=LAX&withinKm=2500").get()) {
+            nearby = readPage(response);
+        }
+        assertEquals(sydney.size() + auckland.size(), nearby.size());
+        assertTrue(nearby.containsAll(sydney));
+        assertTrue(nearby.containsAll(auckland));
+        for (int i = 1; i < nearby.size(); i++) {
+            assertFalse(nearby.get(i).getDepartureTime().isBefore(nearby.get(i - 1).getDepartureTime()));
+        }
+
+        try (Response response = clientRequest(
+                "/flights?origin=SYD&destination=LAX&departureDate=2022-08-13&withinKm=2500").get()) {
+            for (FlightDTO flight : readPage(response)) {
+                assertTrue(auckland.contains(flight) || sydney.contains(flight));
+            }
+        }
+    }
+
+    /**
+     * Tests that a flight search with a negative withinKm will return a 400 Bad Request error.
+     */
+    @Test
+    public void testFlightSearchFail_InvalidWithinKm() {
+        for (String query : List.of("withinKm=-1", "withinKm=NaN")) {
+            try (Response response = clientRequest("/flights?origin=AKL&destination=SYD&" + query).get()) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Tests that the fare calendar returns the lowest fare on each day of the month, in the origin's timezone. There
+     * are three flights from AKL to SYD departing in August 2022 NZ time, all with the same Economy fare, and only one
+     * of which (LVT-200, on the 31st) has Premium seats.
+     */
+    @Test
+    public void testFareCalendar() {
+        List<FareCalendarDayDTO> days = getFareCalendar("origin=AKL&destination=SYD&month=2022-08");
+        assertEquals(3, days.size());
+        assertEquals(LocalDate.of(2022, 8, 11), days.get(0).getDate());
+        assertEquals(LocalDate.of(2022, 8, 26), days.get(1).getDate());
+        assertEquals(LocalDate.of(2022, 8, 31), days.get(2).getDate());
+        for (FareCalendarDayDTO day : days) {
+            assertEquals(158, day.getPrice());
+            assertEquals(CabinClass.Economy, day.getCabinClass());
+        }
+        assertEquals(FLIGHTS.get("LVT-200").getId(), days.get(2).getFlightId());
+
+        days = getFareCalendar("origin=AKL&destination=SYD&month=2022-08&cabinClass=Business");
+        assertEquals(3, days.size());
+        assertEquals(950, days.get(0).getPrice());
+
+        days = getFareCalendar("origin=AKL&destination=SYD&month=2022-08&cabinClass=Premium");
+        assertEquals(1, days.size());
+        assertEquals(LocalDate.of(2022, 8, 31), days.get(0).getDate());
+        assertEquals(475, days.get(0).getPrice());
+
+        assertTrue(getFareCalendar("origin=AKL&destination=SYD&month=2022-07").isEmpty());
+    }
+
+    /**
+     * Tests that a day is removed from the fare calendar once its flight has no seats of the cabin class left.
+     */
+    @Test
+    public void testFareCalendar_SoldOut() {
+        String query = "origin=AKL&destination=SYD&month=2022-08&cabinClass=Premium";
+        assertEquals(1, getFareCalendar(query).size());
+
+        logInAsAlice();
+        List<String> premiumSeats = new ArrayList<>();
+        for (int row = 23; row <= 25; row++) {
+            for (char seat : "ABDEFJK".toCharArray()) {
+                premiumSeats.add(row + "" + seat);
+            }
+        }
+        makeBooking(FLIGHTS.get("LVT-200").getId(), premiumSeats.toArray(new String[0]));
+
+        assertTrue(getFareCalendar(query).isEmpty());
+        assertEquals(3, getFareCalendar("origin=AKL&destination=SYD&month=2022-08").size());
+    }
+
+    /**
+     * Tests that a fare calendar request with a missing origin, destination or month, an invalid month, or an invalid
+     * cabin class will return a 400 Bad Request error.
+     */
+    @Test
+    public void testFareCalendarFail_BadRequest() {
+        for (String query : List.of("destination=SYD&month=2022-08", "origin=AKL&month=2022-08",
+                "origin=AKL&destination=SYD", "origin=AKL&destination=SYD&month=2022-13",
+                "origin=AKL&destination=SYD&month=2022-08&cabinClass=Steerage")) {
+            try (Response response = clientRequest("/flights/calendar?" + query).get()) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Tests that a fuzzy flight search resolves misspelt origins and destinations to the intended airports, while a
+     * non-fuzzy search finds nothing.
+     */
+    @Test
+    public void testFlightSearch_Fuzzy() {
+        List<FlightDTO> expected;
+        try (Response response = clientRequest("/flights?origin=Auckland&destination=Sydney").get()) {
+            expected = readPage(response);
+        }
+        assertEquals(4, expected.size());
+
+        try (Response response = clientRequest("/flights?origin=Aukland&destination=Sydeny").get()) {
+            assertTrue(readPage(response).isEmpty());
+        }
+        try (Response response = clientRequest("/flights?origin=Aukland&destination=Sydeny&fuzzy=true").get()) {
+            assertEquals(expected, readPage(response));
+        }
+    }
+
+    /**
+     * Tests that flights can be found by misspelt names, most similar first.
+     */
+    @Test
+    public void testFlightNameSearch() {
+        try (Response response = clientRequest("/flights/by-name?q=ZJS753&limit=3").get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            List<FlightDTO> flights = response.readEntity(new GenericType<>() {
+            });
+            assertFalse(flights.isEmpty());
+            assertTrue(flights.size() <= 3);
+            assertEquals(FLIGHTS.get("ZJS-735"), flights.get(0));
+        }
+        try (Response response = clientRequest("/flights/by-name?q=").get()) {
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        }
+    }
+
+    /**
+     * Tests that a flight search with a limit which isn't positive or is too large, or a cursor which wasn't returned
+     * by the service, will return a 400 Bad Request error.
+     */
+    @Test
+    public void testFlightSearchFail_InvalidPage() {
+        for (String query : List.of("limit=0", "limit=1001", "limit=" + Integer.MAX_VALUE, "after=foobar",
+                "after=!!!")) {
+            try (Response response = clientRequest("/flights?origin=AKL&destination=SYD&" + query).get()) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Tests that an itinerary search returns direct flights and connections, quickest first, with ties broken by
+     * departure time.
+     */
+    @Test
+    public void testItinerarySearch() {
+        List<ItineraryDTO> itineraries = searchItineraries("origin=AKL&destination=LAX&limit=5");
+        assertEquals(5, itineraries.size());
+        assertEquals(List.of(FLIGHTS.get("IWO-222")), itineraries.get(0).getFlights());
+        assertEquals(List.of(FLIGHTS.get("IWM-268")), itineraries.get(1).getFlights());
+        assertEquals(List.of(FLIGHTS.get("OFM-134")), itineraries.get(2).getFlights());
+        assertEquals(List.of(FLIGHTS.get("YCT-364")), itineraries.get(3).getFlights());
+        assertEquals(List.of(FLIGHTS.get("LVT-200"), FLIGHTS.get("BBQ-587")), itineraries.get(4).getFlights());
+        assertEquals(13 * 60 + 30, itineraries.get(0).getDurationMinutes());
+        assertEquals(27 * 60 + 30, itineraries.get(4).getDurationMinutes());
+
+        assertEquals(4, searchItineraries("origin=AKL&destination=LAX&maxStops=0").size());
+    }
+
+    /**
+     * Tests that an itinerary search with a departure date only returns itineraries whose first flight departs on that
+     * date in the origin's timezone, and that connections must leave within the connection window.
+     */
+    @Test
+    public void testItinerarySearchWithDepartureDate() {
+        // LVT-200 departs at 20:00 UTC on the 30th, which is the 31st in Auckland
+        List<ItineraryDTO> itineraries = searchItineraries("origin=AKL&destination=LAX&departureDate=2022-08-31");
+        assertEquals(1, itineraries.size());
+        assertEquals(List.of(FLIGHTS.get("LVT-200"), FLIGHTS.get("BBQ-587")), itineraries.get(0).getFlights());
+
+        // BBQ-587 leaves 8h50m after LVT-200 arrives
+        assertEquals(0, searchItineraries(
+                "origin=AKL&destination=LAX&departureDate=2022-08-31&minConnection=600").size());
+
+        // Connecting through Singapore and Sydney takes two waits of more than a day each
+        assertEquals(0, searchItineraries("origin=AKL&destination=LAX&departureDate=2022-08-22").size());
+        itineraries = searchItineraries("origin=AKL&destination=LAX&departureDate=2022-08-22&maxConnection=2880");
+        assertEquals(1, itineraries.size());
+        assertEquals(List.of(FLIGHTS.get("AFS-088"), FLIGHTS.get("DIQ-151"), FLIGHTS.get("KKD-551")),
+                itineraries.get(0).getFlights());
+    }
+
+    /**
+     * Tests that an itinerary search with missing airports, too many stops, an invalid connection window or an invalid
+     * limit will return a 400 Bad Request error.
+     */
+    @Test
+    public void testItinerarySearchFail_BadRequest() {
+        for (String query : List.of("destination=LAX", "origin=AKL", "origin=AKL&destination=LAX&maxStops=3",
+                "origin=AKL&destination=LAX&minConnection=120&maxConnection=60",
+                "origin=AKL&destination=LAX&limit=0", "origin=AKL&destination=LAX&limit=" + Integer.MAX_VALUE,
+                "origin=AKL&destination=LAX&departureDate=invalid")) {
+            try (Response response = clientRequest("/flights/itineraries?" + query).get()) {
+                assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            }
+        }
+    }
+
     /**
      * Tests that we can get booking info for a flight which exists
      */
@@ -233,4 +601,62 @@ public class FlightIT extends BaseIntegrationTests {
             assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
         }
     }
+
+    /**
+     * Tests that seat suggestions for a flight are runs of adjacent available seats of the requested cabin class, each
+     * with its total cost. Seats which have been booked shouldn't be suggested.
+     */
+    @Test
+    public void testSeatSuggestions() {
+        logInAsAlice();
+        makeBooking(13, "1J");
+
+        try (Response response = clientRequest("/flights/13/seat-suggestions?count=3&cabinClass=Business&limit=2")
+                .get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            List<SeatSuggestionDTO> suggestions = response.readEntity(new GenericType<>() {
+            });
+
+            assertEquals(2, suggestions.size());
+            assertEquals(List.of("2A", "2J", "2K"), suggestions.get(0).getSeats());
+            assertEquals(List.of("3A", "3J", "3K"), suggestions.get(1).getSeats());
+            assertEquals(3 * 4050, suggestions.get(0).getTotalCost());
+        }
+    }
+
+    /**
+     * Tests that a 404 is returned when requesting seat suggestions for a nonexistent flight, and a 400 for an invalid
+     * cabin class.
+     */
+    @Test
+    public void testSeatSuggestionsFail() {
+        try (Response response = clientRequest("/flights/9999/seat-suggestions?count=2").get()) {
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        }
+        try (Response response = clientRequest("/flights/13/seat-suggestions?count=2&cabinClass=Cattle").get()) {
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        }
+    }
+
+    private List<FareCalendarDayDTO> getFareCalendar(String query) {
+        try (Response response = clientRequest("/flights/calendar?" + query).get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            return response.readEntity(new GenericType<>() {
+            });
+        }
+    }
+
+    private List<ItineraryDTO> searchItineraries(String query) {
+        try (Response response = clientRequest("/flights/itineraries?" + query).get()) {
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            return response.readEntity(new GenericType<>() {
+            });
+        }
+    }
+
+    private static List<FlightDTO> readPage(Response response) {
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        return response.readEntity(new GenericType<>() {
+        });
+    }
 }
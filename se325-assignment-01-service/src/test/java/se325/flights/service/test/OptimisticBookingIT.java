@@ -0,0 +1,21 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+
+/**
+ * Runs all of the {@link BookingIT} tests with the service in optimistic booking mode, where bookings don't lock their
+ * flight, and are retried if another booking on the same flight commits first.
+ */
+public class OptimisticBookingIT extends BookingIT {
+
+    @BeforeAll
+    public static void switchToOptimisticMode() {
+        switchBookingMode("optimistic");
+    }
+
+    @AfterAll
+    public static void switchToConfiguredMode() {
+        switchBookingMode(null);
+    }
+}
@@ -0,0 +1,21 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+
+/**
+ * Runs all of the {@link BookingIT} tests with the service in queued booking mode, where bookings and cancellations are
+ * applied by a {@link se325.flights.service.BookingQueue} rather than by the requesting thread.
+ */
+public class QueuedBookingIT extends BookingIT {
+
+    @BeforeAll
+    public static void switchToQueuedMode() {
+        switchBookingMode("queued");
+    }
+
+    @AfterAll
+    public static void switchToConfiguredMode() {
+        switchBookingMode(null);
+    }
+}
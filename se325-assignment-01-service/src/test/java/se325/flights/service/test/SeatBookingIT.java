@@ -0,0 +1,21 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+
+/**
+ * Runs all of the {@link BookingIT} tests with the service in seat-level booking mode, where bookings claim each seat
+ * through a unique constraint, and only lock their flight to record the result.
+ */
+public class SeatBookingIT extends BookingIT {
+
+    @BeforeAll
+    public static void switchToSeatMode() {
+        switchBookingMode("seat");
+    }
+
+    @AfterAll
+    public static void switchToConfiguredMode() {
+        switchBookingMode(null);
+    }
+}
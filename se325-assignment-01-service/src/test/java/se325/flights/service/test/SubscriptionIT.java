@@ -10,6 +10,8 @@ import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Response;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -144,6 +146,42 @@ public class SubscriptionIT extends BaseIntegrationTests {
         }
     }
 
+    /**
+     * Tests that identical subscriptions made by the same user are each notified once seats are available, rather than
+     * later ones replacing earlier ones.
+     */
+    @Test
+    public void testSubscription_IdenticalSubscriptionsAllNotified()
+            throws ExecutionException, InterruptedException, TimeoutException {
+        logInAsAlice();
+        URI bookingUri = bookAllSeatsInBusinessClass();
+
+        Client clientForBob = ClientBuilder.newClient();
+        logInAs("Bob", "12345", clientForBob);
+        AvailableSeatsSubscriptionDTO request = new AvailableSeatsSubscriptionDTO(13, CabinClass.Business, 5);
+        List<Future<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(clientRequest(clientForBob, "/flights/subscribe").async().post(Entity.json(request)));
+        }
+
+        try {
+            futures.get(0).get(2, TimeUnit.SECONDS);
+            fail("future.get() should have timed out, not succeeded.");
+        } catch (TimeoutException e) {
+            try (Response response = client.target(bookingUri).request().delete()) {
+                assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+            }
+
+            for (Future<Response> future : futures) {
+                try (Response subResponse = future.get(5, TimeUnit.SECONDS)) {
+                    assertEquals(Response.Status.NO_CONTENT.getStatusCode(), subResponse.getStatus());
+                }
+            }
+        } finally {
+            clientForBob.close();
+        }
+    }
+
     /**
      * Books all seats in business class on flight IWO-222 (13).
      *
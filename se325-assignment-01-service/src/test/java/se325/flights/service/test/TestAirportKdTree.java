@@ -0,0 +1,79 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.Test;
+import se325.flights.domain.Airport;
+import se325.flights.service.AirportKdTree;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link AirportKdTree}. These don't require a database, and are run by Maven's test goal.
+ */
+public class TestAirportKdTree {
+
+    /**
+     * Tests that the tree finds exactly the airports which a brute-force search of every airport finds, for many random
+     * points and distances
+     */
+    @Test
+    public void testFindWithin() {
+        Random random = new Random(325);
+        List<Airport> airports = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            airports.add(randomAirport(random, "A" + i));
+        }
+        AirportKdTree tree = new AirportKdTree(airports);
+
+        for (int i = 0; i < 200; i++) {
+            Airport point = randomAirport(random, "P");
+            double radiusKm = random.nextDouble() * 1000;
+
+            Set<Airport> expected = new HashSet<>();
+            for (Airport airport : airports) {
+                if (distanceKm(point, airport) <= radiusKm) {
+                    expected.add(airport);
+                }
+            }
+            List<Airport> found = tree.findWithin(point.getLatitude(), point.getLongitude(), radiusKm);
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, new HashSet<>(found));
+        }
+    }
+
+    /**
+     * Tests that airports either side of the antimeridian are found, and that a radius of 0 finds only the airport at
+     * the point itself
+     */
+    @Test
+    public void testFindWithin_Antimeridian() {
+        Airport west = new Airport("West", "WWW", -17.0, 179.9, "Pacific/Fiji");
+        Airport east = new Airport("East", "EEE", -17.0, -179.9, "Pacific/Fiji");
+        Airport far = new Airport("Far", "FFF", -17.0, 170.0, "Pacific/Fiji");
+        AirportKdTree tree = new AirportKdTree(List.of(west, east, far));
+
+        assertEquals(Set.of(west, east), new HashSet<>(tree.findWithin(-17.0, 179.9, 50)));
+        assertEquals(List.of(east), tree.findWithin(-17.0, -179.9, 0));
+        assertEquals(Set.of(west, east, far), new HashSet<>(tree.findWithin(0, 0, 30000)));
+    }
+
+    private static Airport randomAirport(Random random, String code) {
+        // Uniform over the sphere, rather than over latitude, so the poles aren't over-represented
+        double latitude = Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+        double longitude = random.nextDouble() * 360 - 180;
+        return new Airport(code, code, latitude, longitude, "UTC");
+    }
+
+    /**
+     * The great-circle distance between two airports, using the haversine formula
+     */
+    private static double distanceKm(Airport a, Airport b) {
+        double lat1 = Math.toRadians(a.getLatitude());
+        double lat2 = Math.toRadians(b.getLatitude());
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(b.getLongitude() - a.getLongitude());
+        double h = Math.pow(Math.sin(dLat / 2), 2) + Math.cos(lat1) * Math.cos(lat2) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * AirportKdTree.EARTH_RADIUS_KM * Math.asin(Math.sqrt(h));
+    }
+}
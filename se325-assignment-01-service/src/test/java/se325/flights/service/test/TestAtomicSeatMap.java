@@ -0,0 +1,119 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.Test;
+import se325.flights.service.AtomicSeatMap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the lock-free {@link AtomicSeatMap}. These don't require a database, and are run by Maven's test goal.
+ */
+public class TestAtomicSeatMap {
+
+    private static final int NUM_SEATS = 302;
+    private static final int NUM_THREADS = 16;
+    private static final int ATTEMPTS_PER_THREAD = 20000;
+
+    /**
+     * Tests that seats which are already claimed when the map is created can't be claimed again
+     */
+    @Test
+    public void testInitialClaims() {
+        BitSet initial = new BitSet();
+        initial.set(5);
+        initial.set(200);
+        AtomicSeatMap seats = new AtomicSeatMap(NUM_SEATS, initial);
+
+        assertEquals(2, seats.getNumClaimed());
+        assertTrue(seats.isClaimed(200));
+        assertFalse(seats.tryClaim(200));
+        assertTrue(seats.tryClaim(201));
+    }
+
+    /**
+     * Tests that a claim for several seats either claims all of them, or none of them
+     */
+    @Test
+    public void testClaimIsAllOrNothing() {
+        AtomicSeatMap seats = new AtomicSeatMap(NUM_SEATS, new BitSet());
+
+        assertTrue(seats.tryClaim(1, 2, 64, 65));
+        assertFalse(seats.tryClaim(3, 4, 65));
+        assertFalse(seats.isClaimed(3));
+        assertFalse(seats.isClaimed(4));
+        assertEquals(4, seats.getNumClaimed());
+
+        seats.release(2, 65);
+        assertTrue(seats.tryClaim(3, 4, 65));
+        assertEquals(5, seats.getNumClaimed());
+    }
+
+    /**
+     * Stress test. Many threads repeatedly claim random groups of seats, and release some of them again. Every seat
+     * has an owner count which is incremented by the thread that claims it, and decremented before it's released. If
+     * a seat were ever sold to two threads at once, its owner count would exceed one.
+     */
+    @Test
+    public void testConcurrentClaimsNeverDoubleSell() throws Exception {
+        AtomicSeatMap seats = new AtomicSeatMap(NUM_SEATS, new BitSet());
+        AtomicIntegerArray owners = new AtomicIntegerArray(NUM_SEATS);
+        AtomicInteger doubleSales = new AtomicInteger();
+        AtomicInteger successfulClaims = new AtomicInteger();
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(NUM_THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int t = 0; t < NUM_THREADS; t++) {
+            results.add(threadPool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                start.await();
+
+                for (int i = 0; i < ATTEMPTS_PER_THREAD; i++) {
+                    int[] request = random.ints(0, NUM_SEATS).distinct().limit(1 + random.nextInt(4)).toArray();
+                    if (!seats.tryClaim(request)) {
+                        continue;
+                    }
+                    successfulClaims.incrementAndGet();
+
+                    for (int seat : request) {
+                        if (owners.incrementAndGet(seat) != 1) {
+                            doubleSales.incrementAndGet();
+                        }
+                    }
+
+                    if (random.nextBoolean()) {
+                        for (int seat : request) {
+                            owners.decrementAndGet(seat);
+                        }
+                        seats.release(request);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        threadPool.shutdown();
+
+        assertEquals(0, doubleSales.get());
+        assertTrue(successfulClaims.get() > 0);
+
+        int ownedSeats = 0;
+        for (int i = 0; i < NUM_SEATS; i++) {
+            assertEquals(owners.get(i) == 1, seats.isClaimed(i), "Seat " + i + " claim state doesn't match its owner");
+            ownedSeats += owners.get(i);
+        }
+        assertEquals(ownedSeats, seats.getNumClaimed());
+    }
+}
@@ -0,0 +1,154 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se325.flights.service.BookingJournal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link BookingJournal}. These don't require a database, and are run by Maven's test goal.
+ */
+public class TestBookingJournal {
+
+    private static final int NUM_SEATS = 302;
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Tests that the booked seats recorded by one journal are recovered by the next journal to use the same directory
+     */
+    @Test
+    public void testReplay() {
+        BookingJournal journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, true);
+        journal.recordBooked(1, 1, NUM_SEATS, 1, 2, 3);
+        journal.recordBooked(2, 1, NUM_SEATS, 100);
+        journal.recordUnbooked(1, 2, NUM_SEATS, 2);
+        journal.close();
+
+        journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, true);
+        assertEquals(bits(1, 3), journal.getBookedSeats(1));
+        assertEquals(bits(100), journal.getBookedSeats(2));
+        assertNull(journal.getBookedSeats(3));
+        journal.close();
+    }
+
+    /**
+     * Tests that events recorded out of order (e.g. by threads which committed in one order, but recorded their events
+     * in another) are applied in flight version order
+     */
+    @Test
+    public void testEventsAppliedInVersionOrder() {
+        BookingJournal journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        journal.recordUnbooked(1, 2, NUM_SEATS, 5);
+        journal.recordBooked(1, 1, NUM_SEATS, 5, 6);
+        assertEquals(bits(6), journal.getBookedSeats(1));
+        journal.close();
+
+        journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        assertEquals(bits(6), journal.getBookedSeats(1));
+        journal.close();
+    }
+
+    /**
+     * Tests that full segments are rolled over, snapshots replace the segments they cover, and the seat state is the
+     * same after recovering from a snapshot plus the remaining segments
+     */
+    @Test
+    public void testSnapshot() throws IOException {
+        BookingJournal journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        BitSet expected = new BitSet();
+        int[] allSeats = new int[NUM_SEATS];
+        for (int seat = 0; seat < NUM_SEATS; seat++) {
+            allSeats[seat] = seat;
+        }
+
+        // Each event is 600+ bytes, so this fills several segments
+        for (int version = 1; version <= 300; version++) {
+            journal.recordBooked(1, version * 2 - 1, NUM_SEATS, allSeats);
+            journal.recordUnbooked(1, version * 2, NUM_SEATS, allSeats);
+        }
+        assertTrue(listSegments().size() > 1);
+
+        journal.snapshot();
+        assertEquals(1, listSegments().size());
+
+        journal.recordBooked(1, 601, NUM_SEATS, 7, 8);
+        expected.set(7);
+        expected.set(8);
+        journal.close();
+
+        journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        assertEquals(expected, journal.getBookedSeats(1));
+        journal.close();
+    }
+
+    /**
+     * Tests that an event which was only partly written (e.g. because the service stopped while writing it) is ignored,
+     * along with anything after it, but earlier events are recovered
+     */
+    @Test
+    public void testCorruptEventIgnored() throws IOException {
+        BookingJournal journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        journal.recordBooked(1, 1, NUM_SEATS, 1);
+        journal.recordBooked(1, 2, NUM_SEATS, 2);
+        journal.close();
+
+        // Overwrite the last ordinal of the second event. Each event is 8 header + 21 payload header + 2 per ordinal.
+        Path segment = listSegments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x7f, 0x7f}), 2 * 31 - 2);
+        }
+
+        journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        assertEquals(bits(1), journal.getBookedSeats(1));
+        journal.close();
+    }
+
+    /**
+     * Tests that clearing the journal discards all recorded events
+     */
+    @Test
+    public void testClear() {
+        BookingJournal journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        journal.recordBooked(1, 1, NUM_SEATS, 1);
+        journal.snapshot();
+        journal.recordBooked(1, 2, NUM_SEATS, 2);
+        journal.clear();
+        assertNull(journal.getBookedSeats(1));
+        journal.close();
+
+        journal = new BookingJournal(directory, SEGMENT_BYTES, 1000, false);
+        assertNull(journal.getBookedSeats(1));
+        journal.close();
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(".log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static BitSet bits(int... ordinals) {
+        BitSet bits = new BitSet();
+        for (int ordinal : ordinals) {
+            bits.set(ordinal);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,84 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se325.flights.domain.Flight;
+import se325.flights.domain.FlightBooking;
+import se325.flights.domain.Seat;
+import se325.flights.service.BookingQueue;
+import se325.flights.service.PersistenceManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link BookingQueue}. These run against a freshly reset in-memory database, and are run by Maven's
+ * test goal.
+ */
+public class TestBookingQueue {
+
+    private static final long FLIGHT_ID = 13;
+    private static final long USER_ID = 1;
+
+    private BookingQueue queue;
+
+    @BeforeEach
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        queue = new BookingQueue(1, 32, 5000);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    /**
+     * Tests that when one command in a batch fails with a database error part way through the batch, only that command
+     * fails - the commands applied before it, and the commands it stopped from being tried, are all re-applied and
+     * succeed.
+     */
+    @Test
+    public void testBatchFailureOnlyFailsFaultyCommand() throws Exception {
+        CompletableFuture<FlightBooking> first, duplicate, last;
+
+        // Hold the flight's lock while submitting, so that the commands are applied together in one batch
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.find(Flight.class, FLIGHT_ID, LockModeType.PESSIMISTIC_WRITE);
+
+            first = queue.submitBooking(USER_ID, FLIGHT_ID, List.of("23J"), "key");
+            // Re-using the key violates the idempotency record's unique constraint as soon as it's inserted
+            duplicate = queue.submitBooking(USER_ID, FLIGHT_ID, List.of("36E"), "key");
+            last = queue.submitBooking(USER_ID, FLIGHT_ID, List.of("58C"), null);
+
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+
+        assertEquals(List.of("23J"), getSeatCodes(BookingQueue.await(first)));
+        assertEquals(List.of("58C"), getSeatCodes(BookingQueue.await(last)));
+        assertThrows(PersistenceException.class, () -> BookingQueue.await(duplicate));
+
+        em = PersistenceManager.instance().createEntityManager();
+        try {
+            assertEquals(2, em.createQuery("select b from FlightBooking b", FlightBooking.class)
+                    .getResultList().size());
+        } finally {
+            em.close();
+        }
+    }
+
+    private static List<String> getSeatCodes(FlightBooking booking) {
+        return booking.getSeats().stream().map(Seat::getSeatCode).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,120 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se325.flights.domain.Flight;
+import se325.flights.domain.SeatLayout;
+import se325.flights.service.BookingManager;
+import se325.flights.service.BookingMode;
+import se325.flights.service.BookingQueue;
+import se325.flights.service.PersistenceManager;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the throughput of many concurrent single-seat bookings on the same flight, when made through the lock-based
+ * pessimistic booking path, and through the {@link BookingQueue}.
+ * <p>
+ * This is a benchmark rather than a test, so it isn't run by default. Run it using the benchmark profile:
+ * mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+public class TestBookingThroughput {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestBookingThroughput.class);
+
+    private static final long FLIGHT_ID = 13;
+    private static final long USER_ID = 1;
+    private static final int NUM_THREADS = 16;
+    private static final int NUM_RUNS = 3;
+
+    @Test
+    public void benchmarkBookingThroughput() throws Exception {
+        // Compare the database paths only, not the in-memory seat allocator in front of them
+        BookingManager manager = new BookingManager(BookingMode.PESSIMISTIC, false);
+        BookingQueue queue = new BookingQueue(4, 32, 5000);
+
+        for (int run = 1; run <= NUM_RUNS; run++) {
+            double pessimistic = measure(seatCodes -> {
+                EntityManager em = PersistenceManager.instance().createEntityManager();
+                try {
+                    manager.makeBooking(em, USER_ID, FLIGHT_ID, seatCodes);
+                } finally {
+                    em.close();
+                }
+            });
+            double queued = measure(seatCodes ->
+                    BookingQueue.await(queue.submitBooking(USER_ID, FLIGHT_ID, seatCodes, null)));
+
+            LOGGER.info(String.format("Run %d: pessimistic %.0f bookings/s, queued %.0f bookings/s",
+                    run, pessimistic, queued));
+        }
+        queue.shutdown();
+    }
+
+    private interface BookingPath {
+        void book(List<String> seatCodes) throws Exception;
+    }
+
+    /**
+     * Books every seat on the flight, one seat per booking, from {@link #NUM_THREADS} threads at once, starting from a
+     * freshly reset database.
+     *
+     * @return the number of bookings made per second
+     */
+    private double measure(BookingPath path) throws Exception {
+        PersistenceManager.instance().reset();
+        List<String> seatCodes = getAllSeatCodes();
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(NUM_THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            int first = i;
+            results.add(threadPool.submit(() -> {
+                start.await();
+                for (int seat = first; seat < seatCodes.size(); seat += NUM_THREADS) {
+                    path.book(List.of(seatCodes.get(seat)));
+                }
+                return null;
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        threadPool.shutdown();
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            assertEquals(0, em.find(Flight.class, FLIGHT_ID).getNumSeatsRemaining());
+        } finally {
+            em.close();
+        }
+        return seatCodes.size() / (elapsed / 1e9);
+    }
+
+    private List<String> getAllSeatCodes() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            SeatLayout layout = em.find(Flight.class, FLIGHT_ID).getAircraftType().getSeatLayout();
+            List<String> seatCodes = new ArrayList<>();
+            for (int ordinal = 0; ordinal < layout.getNumSeats(); ordinal++) {
+                seatCodes.add(layout.getSeatCode(ordinal));
+            }
+            return seatCodes;
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se325.flights.domain.Airport;
+import se325.flights.dto.FareCalendarDayDTO;
+import se325.flights.service.FareCalendar;
+import se325.flights.service.PersistenceManager;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.YearMonth;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the {@link FareCalendar}'s cache of months is bounded in size and time. These run against a freshly reset
+ * in-memory database, and are run by Maven's test goal.
+ */
+public class TestFareCalendar {
+
+    private static final YearMonth AUGUST = YearMonth.of(2022, 8);
+
+    private EntityManager em;
+    private List<Airport> origins;
+    private List<Airport> destinations;
+
+    @BeforeEach
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        em = PersistenceManager.instance().createEntityManager();
+        origins = List.of(getAirport("AKL"));
+        destinations = List.of(getAirport("SYD"));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        em.close();
+    }
+
+    /**
+     * Tests that the least recently used month is evicted once the cache is full
+     */
+    @Test
+    public void testSizeEviction() {
+        FareCalendar calendar = new FareCalendar(2, Duration.ofMinutes(1));
+        List<FareCalendarDayDTO> august = calendar.getCalendar(em, origins, destinations, AUGUST, null);
+        assertFalse(august.isEmpty());
+        calendar.getCalendar(em, origins, destinations, AUGUST.minusMonths(1), null);
+        calendar.getCalendar(em, origins, destinations, AUGUST, null);
+        assertEquals(2, calendar.size());
+        assertEquals(0, calendar.getEvictions());
+
+        calendar.getCalendar(em, origins, destinations, AUGUST.plusMonths(1), null);
+        assertEquals(2, calendar.size());
+        assertEquals(1, calendar.getEvictions());
+        assertEquals(august.size(), calendar.getCalendar(em, origins, destinations, AUGUST, null).size());
+        assertEquals(1, calendar.getEvictions());
+    }
+
+    /**
+     * Tests that months expire once their time to live has passed, and are then recomputed
+     */
+    @Test
+    public void testExpiry() throws InterruptedException {
+        FareCalendar calendar = new FareCalendar(10, Duration.ofMillis(50));
+        List<FareCalendarDayDTO> august = calendar.getCalendar(em, origins, destinations, AUGUST, null);
+        Thread.sleep(100);
+
+        assertEquals(august.size(), calendar.getCalendar(em, origins, destinations, AUGUST, null).size());
+        assertEquals(1, calendar.size());
+        assertEquals(1, calendar.getEvictions());
+    }
+
+    /**
+     * Tests that nothing is cached if the maximum number of months is 0
+     */
+    @Test
+    public void testDisabled() {
+        FareCalendar calendar = new FareCalendar(0, Duration.ofMinutes(1));
+        assertFalse(calendar.getCalendar(em, origins, destinations, AUGUST, null).isEmpty());
+        assertEquals(0, calendar.size());
+    }
+
+    private Airport getAirport(String code) {
+        return em.createQuery("select a from Airport a where a.code = :code", Airport.class)
+                .setParameter("code", code)
+                .getSingleResult();
+    }
+}
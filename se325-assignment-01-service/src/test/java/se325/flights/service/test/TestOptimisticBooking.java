@@ -0,0 +1,192 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se325.flights.domain.BookingException;
+import se325.flights.domain.FlightBooking;
+import se325.flights.service.BookingManager;
+import se325.flights.service.BookingMode;
+import se325.flights.service.PersistenceManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the optimistic booking mode, using a {@link BookingManager} created in that mode. These run against a freshly
+ * reset in-memory database, and are run by Maven's test goal.
+ * <p>
+ * Version conflicts are caused deterministically by committing a change to the flight from another transaction just
+ * before the booking's own commit.
+ */
+public class TestOptimisticBooking {
+
+    private static final long FLIGHT_ID = 13;
+    private static final long USER_ID = 1;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private BookingManager manager;
+
+    @BeforeAll
+    public static void configure() {
+        // Read when each BookingManager is created
+        System.setProperty("booking.optimistic.maxAttempts", String.valueOf(MAX_ATTEMPTS));
+        System.setProperty("booking.optimistic.backoffMillis", "1");
+    }
+
+    @AfterAll
+    public static void restoreConfiguration() {
+        System.clearProperty("booking.optimistic.maxAttempts");
+        System.clearProperty("booking.optimistic.backoffMillis");
+    }
+
+    @BeforeEach
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        // Conflicts should reach the database rather than being turned down by the in-memory seat allocator
+        manager = new BookingManager(BookingMode.OPTIMISTIC, false);
+    }
+
+    /**
+     * Tests that when many threads try to book the same seat at the same time, exactly one of them succeeds, and the
+     * rest fail with a {@link BookingException} (which BookingsResource returns as a 409 Conflict).
+     */
+    @Test
+    public void testConcurrentBookings_SameSeat() throws Exception {
+        int numThreads = 8;
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<FlightBooking>> results = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            results.add(threadPool.submit(() -> {
+                start.await();
+                EntityManager em = PersistenceManager.instance().createEntityManager();
+                try {
+                    return manager.makeBooking(em, USER_ID, FLIGHT_ID, List.of("36E"));
+                } finally {
+                    em.close();
+                }
+            }));
+        }
+        start.countDown();
+
+        int succeeded = 0;
+        for (Future<FlightBooking> result : results) {
+            try {
+                result.get(30, TimeUnit.SECONDS);
+                succeeded++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof BookingException, e.getCause().toString());
+            }
+        }
+        threadPool.shutdown();
+
+        assertEquals(1, succeeded);
+        assertEquals(1, countBookings());
+    }
+
+    /**
+     * Tests that a booking whose commit fails with a version conflict is retried against the new flight state, and then
+     * succeeds.
+     */
+    @Test
+    public void testVersionConflictRetried() throws Exception {
+        AtomicInteger commits = new AtomicInteger();
+        EntityManager em = createConflictingEntityManager(1, commits);
+        try {
+            FlightBooking booking = manager.makeBooking(em, USER_ID, FLIGHT_ID, List.of("36E"));
+            assertNotNull(booking.getId());
+        } finally {
+            em.close();
+        }
+
+        assertEquals(2, commits.get());
+        assertEquals(1, countBookings());
+    }
+
+    /**
+     * Tests that a booking which keeps conflicting is given up after booking.optimistic.maxAttempts attempts, with a
+     * {@link BookingException} (which BookingsResource returns as a 409 Conflict) - and that nothing is booked.
+     */
+    @Test
+    public void testRetriesStopAfterMaxAttempts() {
+        AtomicInteger commits = new AtomicInteger();
+        EntityManager em = createConflictingEntityManager(Integer.MAX_VALUE, commits);
+        try {
+            assertThrows(BookingException.class, () -> manager.makeBooking(em, USER_ID, FLIGHT_ID, List.of("36E")));
+        } finally {
+            em.close();
+        }
+
+        assertEquals(MAX_ATTEMPTS, commits.get());
+        assertEquals(0, countBookings());
+    }
+
+    /**
+     * Creates an EntityManager whose first numConflicts transaction commits are each preceded by another transaction
+     * committing a change to the flight - so that each of them fails with a version conflict.
+     *
+     * @param commits counts the number of commits attempted
+     */
+    private static EntityManager createConflictingEntityManager(int numConflicts, AtomicInteger commits) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                new Class<?>[]{EntityManager.class}, (proxy, method, args) -> {
+                    Object result = invoke(em, method, args);
+                    if (!method.getName().equals("getTransaction")) {
+                        return result;
+                    }
+                    EntityTransaction transaction = (EntityTransaction) result;
+                    return Proxy.newProxyInstance(EntityTransaction.class.getClassLoader(),
+                            new Class<?>[]{EntityTransaction.class}, (txProxy, txMethod, txArgs) -> {
+                                if (txMethod.getName().equals("commit")
+                                        && commits.getAndIncrement() < numConflicts) {
+                                    updateFlightVersion();
+                                }
+                                return invoke(transaction, txMethod, txArgs);
+                            });
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void updateFlightVersion() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.createQuery("update Flight f set f.version = f.version + 1 where f.id = :idLink")
+                    .setParameter("idLink", FLIGHT_ID)
+                    .executeUpdate();
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static long countBookings() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            return em.createQuery("select count(b) from FlightBooking b where b.flight.id = :idLink", Long.class)
+                    .setParameter("idLink", FLIGHT_ID)
+                    .getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+}
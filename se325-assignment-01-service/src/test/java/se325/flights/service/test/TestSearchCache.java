@@ -0,0 +1,108 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.Test;
+import se325.flights.dto.FlightDTO;
+import se325.flights.service.SearchCache;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link SearchCache}. These don't require a database, and are run by Maven's test goal.
+ */
+public class TestSearchCache {
+
+    private static final List<FlightDTO> FLIGHTS = List.of(new FlightDTO());
+
+    /**
+     * Tests that searches for the same airports share an entry however the airports were listed, and that hits and
+     * misses are counted
+     */
+    @Test
+    public void testNormalizedKeys() {
+        SearchCache cache = new SearchCache(10, Duration.ofMinutes(1));
+        assertNull(cache.get(key(List.of(1L, 4L), List.of(2L), null, 0)));
+        cache.put(key(List.of(1L, 4L), List.of(2L), null, 0), FLIGHTS, "next");
+
+        SearchCache.Page page = cache.get(key(List.of(4L, 1L, 1L), List.of(2L), null, 3));
+        assertNotNull(page);
+        assertEquals(FLIGHTS, page.getFlights());
+        assertEquals("next", page.getNext());
+        assertNull(cache.get(key(List.of(1L, 4L), List.of(2L), LocalDate.of(2022, 8, 21), 0)));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * Tests that the least recently used entry is evicted once the cache is full
+     */
+    @Test
+    public void testSizeEviction() {
+        SearchCache cache = new SearchCache(2, Duration.ofMinutes(1));
+        cache.put(key(List.of(1L), List.of(2L), null, 0), FLIGHTS, null);
+        cache.put(key(List.of(1L), List.of(3L), null, 0), FLIGHTS, null);
+        assertNotNull(cache.get(key(List.of(1L), List.of(2L), null, 0)));
+
+        cache.put(key(List.of(1L), List.of(4L), null, 0), FLIGHTS, null);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get(key(List.of(1L), List.of(2L), null, 0)));
+        assertNull(cache.get(key(List.of(1L), List.of(3L), null, 0)));
+    }
+
+    /**
+     * Tests that entries expire once their time to live has passed
+     */
+    @Test
+    public void testExpiry() throws InterruptedException {
+        SearchCache cache = new SearchCache(10, Duration.ofMillis(50));
+        cache.put(key(List.of(1L), List.of(2L), null, 0), FLIGHTS, null);
+        Thread.sleep(100);
+        assertNull(cache.get(key(List.of(1L), List.of(2L), null, 0)));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    /**
+     * Tests that invalidating a route discards only the entries covering that route
+     */
+    @Test
+    public void testInvalidateRoute() {
+        SearchCache cache = new SearchCache(10, Duration.ofMinutes(1));
+        cache.put(key(List.of(1L), List.of(2L), null, 0), FLIGHTS, null);
+        cache.put(key(List.of(1L, 4L), List.of(2L, 3L), null, 0), FLIGHTS, null);
+        cache.put(key(List.of(2L), List.of(1L), null, 0), FLIGHTS, null);
+
+        cache.invalidateRoute(4, 3);
+        assertEquals(2, cache.size());
+        assertNull(cache.get(key(List.of(1L, 4L), List.of(2L, 3L), null, 0)));
+
+        cache.invalidateRoute(1, 2);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(key(List.of(2L), List.of(1L), null, 0)));
+    }
+
+    /**
+     * Tests that a booking on a route only invalidates the searches on that route which include seat counts
+     */
+    @Test
+    public void testInvalidateSeatsRemaining() {
+        SearchCache cache = new SearchCache(10, Duration.ofMinutes(1));
+        SearchCache.Key withSeats = new SearchCache.Key(List.of(1L), List.of(2L), null, 0, 100, null, true);
+        cache.put(withSeats, FLIGHTS, null);
+        cache.put(key(List.of(1L), List.of(2L), null, 0), FLIGHTS, null);
+
+        cache.invalidateSeatsRemaining(1, 2);
+        assertNull(cache.get(withSeats));
+        assertNotNull(cache.get(key(List.of(1L), List.of(2L), null, 0)));
+    }
+
+    private static SearchCache.Key key(List<Long> originIds, List<Long> destinationIds, LocalDate departureDate,
+                                       int dayRange) {
+        return new SearchCache.Key(originIds, destinationIds, departureDate, dayRange, 100, null, false);
+    }
+}
@@ -0,0 +1,117 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.domain.SeatLayout;
+import se325.flights.domain.User;
+import se325.flights.service.PersistenceManager;
+import se325.flights.service.SeatAllocator;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the {@link SeatAllocator} loads, claims and releases seats consistently with the database. These run
+ * against a freshly reset in-memory database, and are run by Maven's test goal.
+ */
+public class TestSeatAllocator {
+
+    private static final long FLIGHT_ID = 13;
+    private static final long USER_ID = 1;
+
+    private SeatAllocator allocator;
+    private SeatLayout layout;
+
+    @BeforeEach
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        allocator = SeatAllocator.instance();
+        allocator.clear();
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            layout = em.find(Flight.class, FLIGHT_ID).getAircraftType().getSeatLayout();
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Tests that a flight's seat map is loaded from the seats booked in the database, so that booked seats can't be
+     * claimed
+     */
+    @Test
+    public void testLoadFromDatabase() throws Exception {
+        book("23J", "36E");
+
+        BitSet claimed = allocator.getClaimedSeats(FLIGHT_ID);
+        assertEquals(2, claimed.cardinality());
+        assertTrue(claimed.get(layout.getOrdinal("23J")));
+        assertTrue(claimed.get(layout.getOrdinal("36E")));
+
+        assertThrows(BookingException.class, () -> allocator.claim(FLIGHT_ID, List.of("58C", "36E")));
+        assertFalse(allocator.getClaimedSeats(FLIGHT_ID).get(layout.getOrdinal("58C")));
+    }
+
+    /**
+     * Tests that claimed seats can't be claimed again until they're released, whether by ordinal or by seat code
+     */
+    @Test
+    public void testClaimAndRelease() throws Exception {
+        int[] ordinals = allocator.claim(FLIGHT_ID, List.of("36E", "36F"));
+        assertArrayEquals(new int[]{layout.getOrdinal("36E"), layout.getOrdinal("36F")}, ordinals);
+        assertThrows(BookingException.class, () -> allocator.claim(FLIGHT_ID, List.of("36F")));
+
+        allocator.release(FLIGHT_ID, ordinals);
+        allocator.claim(FLIGHT_ID, List.of("36F"));
+
+        allocator.release(FLIGHT_ID, List.of("36F", "not a seat"));
+        allocator.claim(FLIGHT_ID, List.of("36F"));
+    }
+
+    /**
+     * Tests that claims for unknown flights, invalid seats, or no seats fail
+     */
+    @Test
+    public void testInvalidClaims() {
+        assertThrows(NoResultException.class, () -> allocator.claim(999, List.of("36E")));
+        assertThrows(BookingException.class, () -> allocator.claim(FLIGHT_ID, List.of("36E", "99Z")));
+        assertThrows(BookingException.class, () -> allocator.claim(FLIGHT_ID, List.of()));
+        assertTrue(allocator.getClaimedSeats(FLIGHT_ID).isEmpty());
+    }
+
+    /**
+     * Tests that seat maps are only loaded once, so changes made to the database directly aren't seen until the maps
+     * are cleared - which is why the allocator is only safe when it's the only thing making bookings
+     */
+    @Test
+    public void testClearReloads() throws Exception {
+        allocator.load(FLIGHT_ID);
+        book("36E");
+        assertFalse(allocator.getClaimedSeats(FLIGHT_ID).get(layout.getOrdinal("36E")));
+
+        allocator.clear();
+        assertTrue(allocator.getClaimedSeats(FLIGHT_ID).get(layout.getOrdinal("36E")));
+    }
+
+    /**
+     * Books the given seats directly in the database, bypassing the allocator
+     */
+    private static void book(String... seatCodes) throws BookingException {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            Flight flight = em.find(Flight.class, FLIGHT_ID);
+            em.persist(flight.makeBooking(em.getReference(User.class, USER_ID), seatCodes));
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+}
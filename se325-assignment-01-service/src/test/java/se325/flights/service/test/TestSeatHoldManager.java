@@ -0,0 +1,111 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.domain.SeatLayout;
+import se325.flights.service.PersistenceManager;
+import se325.flights.service.SeatHold;
+import se325.flights.service.SeatHoldManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that a {@link SeatHold} being confirmed by the {@link SeatHoldManager} stays in place, and can't be confirmed
+ * again or released, until its booking has either committed or failed. These run against a freshly reset in-memory
+ * database, and are run by Maven's test goal.
+ */
+public class TestSeatHoldManager {
+
+    private static final long FLIGHT_ID = 13;
+    private static final long ALICE_ID = 1;
+    private static final long BOB_ID = 2;
+
+    private SeatHoldManager holds;
+    private EntityManager em;
+    private Flight flight;
+    private SeatLayout layout;
+
+    @BeforeEach
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        holds = SeatHoldManager.instance();
+        holds.clear();
+
+        em = PersistenceManager.instance().createEntityManager();
+        flight = em.find(Flight.class, FLIGHT_ID);
+        layout = flight.getAircraftType().getSeatLayout();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        holds.clear();
+        em.close();
+    }
+
+    /**
+     * Tests that a hold being confirmed still holds its seats against everyone but the booking confirming it
+     */
+    @Test
+    public void testConfirmingHoldStillHeld() throws Exception {
+        SeatHold hold = holds.placeHold(flight, ALICE_ID, List.of("23J", "36E"), null);
+        holds.placeHold(flight, BOB_ID, List.of("58C"), null);
+
+        SeatHold confirming = holds.beginConfirm(hold.getId(), ALICE_ID);
+        assertSame(hold, confirming);
+
+        BitSet held = holds.getHeldSeats(FLIGHT_ID);
+        assertEquals(3, held.cardinality());
+        assertTrue(held.get(layout.getOrdinal("36E")));
+
+        BitSet heldByOthers = holds.getHeldSeats(FLIGHT_ID, hold);
+        assertEquals(1, heldByOthers.cardinality());
+        assertTrue(heldByOthers.get(layout.getOrdinal("58C")));
+
+        assertThrows(BookingException.class, () -> holds.placeHold(flight, BOB_ID, List.of("36E"), null));
+    }
+
+    /**
+     * Tests that a hold being confirmed can't be confirmed again or released, and that a failed confirmation puts it
+     * back so that it can
+     */
+    @Test
+    public void testFailedConfirmKeepsHold() throws Exception {
+        SeatHold hold = holds.placeHold(flight, ALICE_ID, List.of("23J", "36E"), null);
+
+        holds.beginConfirm(hold.getId(), ALICE_ID);
+        assertThrows(NoResultException.class, () -> holds.beginConfirm(hold.getId(), ALICE_ID));
+        assertThrows(NoResultException.class, () -> holds.releaseHold(hold.getId(), ALICE_ID));
+
+        holds.endConfirm(hold);
+        assertEquals(2, holds.getHeldSeats(FLIGHT_ID).cardinality());
+        assertSame(hold, holds.beginConfirm(hold.getId(), ALICE_ID));
+
+        holds.endConfirm(hold);
+        holds.releaseHold(hold.getId(), ALICE_ID);
+        assertTrue(holds.getHeldSeats(FLIGHT_ID).isEmpty());
+    }
+
+    /**
+     * Tests that a hold is removed once its booking has committed, and that only the user who placed a hold can
+     * confirm it
+     */
+    @Test
+    public void testCommittedConfirmRemovesHold() throws Exception {
+        SeatHold hold = holds.placeHold(flight, ALICE_ID, List.of("23J", "36E"), null);
+        assertThrows(NoResultException.class, () -> holds.beginConfirm(hold.getId(), BOB_ID));
+
+        holds.beginConfirm(hold.getId(), ALICE_ID);
+        holds.discardHold(hold);
+        assertTrue(holds.getHeldSeats(FLIGHT_ID).isEmpty());
+        assertThrows(NoResultException.class, () -> holds.beginConfirm(hold.getId(), ALICE_ID));
+        assertThrows(NoResultException.class, () -> holds.releaseHold(hold.getId(), ALICE_ID));
+    }
+}
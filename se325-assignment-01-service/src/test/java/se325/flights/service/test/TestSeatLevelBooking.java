@@ -0,0 +1,93 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se325.flights.domain.BookingException;
+import se325.flights.domain.Flight;
+import se325.flights.domain.FlightBooking;
+import se325.flights.domain.User;
+import se325.flights.service.BookingManager;
+import se325.flights.service.BookingMode;
+import se325.flights.service.PersistenceManager;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the seat-level booking mode, using a {@link BookingManager} created in that mode. These run against a freshly
+ * reset in-memory database, and are run by Maven's test goal.
+ */
+public class TestSeatLevelBooking {
+
+    private static final long FLIGHT_ID = 13;
+    private static final long USER_ID = 1;
+
+    private BookingManager manager;
+
+    @BeforeEach
+    public void setUp() {
+        PersistenceManager.instance().reset();
+        // Conflicts should reach the database rather than being turned down by the in-memory seat allocator
+        manager = new BookingManager(BookingMode.SEAT, false);
+    }
+
+    /**
+     * Tests that a booking of a seat which has been claimed by a concurrent booking - whose reservation exists, but
+     * hasn't yet been merged into the flight's seat occupancy bitmap - is rejected by the seat reservations' unique
+     * constraint, with a {@link BookingException} (which BookingsResource returns as a 409 Conflict).
+     */
+    @Test
+    public void testSeatAlreadyReserved() throws Exception {
+        EntityManager concurrent = PersistenceManager.instance().createEntityManager();
+        try {
+            concurrent.getTransaction().begin();
+            Flight flight = concurrent.find(Flight.class, FLIGHT_ID);
+            concurrent.persist(flight.makeBooking(concurrent.getReference(User.class, USER_ID), "36E"));
+            // Inserts the reservation without marking the seat in the bitmap, so the booking below can't see it
+            concurrent.refresh(flight);
+            concurrent.getTransaction().commit();
+        } finally {
+            concurrent.close();
+        }
+
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            assertFalse(em.find(Flight.class, FLIGHT_ID).getSeatOccupancy().get(getOrdinal(em, "36E")));
+
+            assertThrows(BookingException.class,
+                    () -> manager.makeBooking(em, USER_ID, FLIGHT_ID, List.of("36F", "36E")));
+            assertFalse(em.getTransaction().isActive());
+
+            // Nothing was booked by the failed booking
+            assertEquals(1, em.createQuery("select count(b) from FlightBooking b", Long.class).getSingleResult());
+            assertFalse(em.find(Flight.class, FLIGHT_ID).getSeatOccupancy().get(getOrdinal(em, "36F")));
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Tests that a successful seat-level booking is merged into the flight's seat occupancy bitmap.
+     */
+    @Test
+    public void testBookingOccupiesSeats() throws Exception {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            FlightBooking booking = manager.makeBooking(em, USER_ID, FLIGHT_ID, List.of("36E", "36F"));
+            assertNotNull(booking.getId());
+
+            em.clear();
+            Flight flight = em.find(Flight.class, FLIGHT_ID);
+            assertTrue(flight.getSeatOccupancy().get(getOrdinal(em, "36E")));
+            assertTrue(flight.getSeatOccupancy().get(getOrdinal(em, "36F")));
+        } finally {
+            em.close();
+        }
+    }
+
+    private static int getOrdinal(EntityManager em, String seatCode) {
+        return em.find(Flight.class, FLIGHT_ID).getAircraftType().getSeatLayout().getOrdinal(seatCode);
+    }
+}
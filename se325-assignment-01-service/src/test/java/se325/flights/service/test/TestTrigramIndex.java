@@ -0,0 +1,67 @@
+package se325.flights.service.test;
+
+import org.junit.jupiter.api.Test;
+import se325.flights.service.TrigramIndex;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link TrigramIndex}. These don't require a database, and are run by Maven's test goal.
+ */
+public class TestTrigramIndex {
+
+    private static TrigramIndex<String> cities() {
+        TrigramIndex<String> index = new TrigramIndex<>();
+        for (String city : List.of("Auckland", "Sydney", "Tokyo", "Singapore", "Los Angeles")) {
+            index.add(city, city);
+        }
+        return index;
+    }
+
+    /**
+     * Tests that misspelt queries find the intended strings, ignoring case and punctuation
+     */
+    @Test
+    public void testTypos() {
+        TrigramIndex<String> index = cities();
+        assertEquals(List.of("Auckland"), index.search("Aukland", 0.4, 10));
+        assertEquals(List.of("Sydney"), index.search("sydeny", 0.4, 10));
+        assertEquals(List.of("Tokyo"), index.search("TOKIO", 0.4, 10));
+        assertEquals(List.of("Los Angeles"), index.search("los-angelas", 0.4, 10));
+        assertEquals(List.of(), index.search("Wellington", 0.4, 10));
+        assertEquals(List.of(), index.search("  ", 0.4, 10));
+    }
+
+    /**
+     * Tests that results are ranked by similarity, that the limit and minimum similarity are respected, and that an
+     * identical string has a similarity of 1
+     */
+    @Test
+    public void testRanking() {
+        TrigramIndex<String> index = cities();
+        assertEquals(List.of("Singapore", "Sydney"), index.search("Singapor", 0.1, 10).subList(0, 2));
+        assertEquals(List.of("Singapore"), index.search("Singapor", 0.1, 1));
+        assertEquals(List.of("Sydney"), index.search("sydney", 1.0, 10));
+    }
+
+    /**
+     * Tests that an item added with several strings is found by any of them, and is only returned once, with the
+     * similarity of its most similar string
+     */
+    @Test
+    public void testSeveralStringsPerItem() {
+        TrigramIndex<Long> index = new TrigramIndex<>();
+        index.add(1L, "AKL");
+        index.add(1L, "Auckland International Airport");
+        index.add(1L, "Auckland");
+        index.add(2L, "SYD");
+        index.add(2L, "Sydney International Airport");
+
+        assertEquals(List.of(1L), index.search("akl", 0.4, 10));
+        assertEquals(List.of(1L), index.search("Aukland", 0.4, 10));
+        // Sydney's name is shorter, so a larger proportion of its trigrams are shared with the query
+        assertEquals(List.of(2L, 1L), index.search("international", 0.3, 10));
+    }
+}